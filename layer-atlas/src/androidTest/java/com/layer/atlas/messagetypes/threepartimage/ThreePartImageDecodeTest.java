@@ -0,0 +1,160 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Decodes previews from a large fixture JPEG on a device, checking the Bitmaps and heap growth of
+ * single-pass preview decodes, and benchmarks them against sampling then scaling.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThreePartImageDecodeTest {
+    // An 8 megapixel camera photo
+    private static final int FULL_WIDTH = 3264;
+    private static final int FULL_HEIGHT = 2448;
+    private static final int PREVIEW_WIDTH = 512;
+    private static final int PREVIEW_HEIGHT = 384;
+    private static final long PREVIEW_BYTES = PREVIEW_WIDTH * PREVIEW_HEIGHT * 4L;
+    private static final long FULL_BYTES = FULL_WIDTH * FULL_HEIGHT * 4L;
+    private static final long PLENTY = Long.MAX_VALUE;
+
+    private static File sFixture;
+
+    @BeforeClass
+    public static void createFixture() throws IOException {
+        // Drawn at 16 bits to keep the fixture's own Bitmap small
+        Bitmap bitmap = Bitmap.createBitmap(FULL_WIDTH, FULL_HEIGHT, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new LinearGradient(0, 0, FULL_WIDTH, FULL_HEIGHT, Color.BLUE, Color.YELLOW, Shader.TileMode.CLAMP));
+        canvas.drawPaint(paint);
+        paint.setShader(null);
+        for (int i = 0; i < 200; i++) {
+            paint.setColor(Color.HSVToColor(new float[]{i * 37 % 360, 0.8f, 0.9f}));
+            canvas.drawCircle(i * 97 % FULL_WIDTH, i * 61 % FULL_HEIGHT, 20 + i % 150, paint);
+        }
+        sFixture = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "ThreePartImageDecodeTest.jpg");
+        FileOutputStream out = new FileOutputStream(sFixture);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+    }
+
+    @AfterClass
+    public static void deleteFixture() {
+        if (sFixture != null) sFixture.delete();
+    }
+
+    @Test
+    public void decodesLargeJpegOnceAtPreviewSize() {
+        long before = getAllocatedBytes();
+        Bitmap preview = decodePreview(PLENTY);
+        long grown = getAllocatedBytes() - before;
+
+        assertEquals(PREVIEW_WIDTH, preview.getWidth());
+        assertEquals(PREVIEW_HEIGHT, preview.getHeight());
+        assertEquals(Bitmap.Config.ARGB_8888, preview.getConfig());
+        assertEquals(PREVIEW_BYTES, preview.getRowBytes() * (long) preview.getHeight());
+
+        // No collection is requested, so a full-size or sampled intermediate Bitmap would usually
+        // still be counted in the heap's growth
+        assertTrue("Heap grew " + grown + " bytes", grown < 2 * PREVIEW_BYTES);
+        assertTrue(grown < FULL_BYTES / 16);
+        preview.recycle();
+    }
+
+    @Test
+    public void reusesReleasedPreviewBitmap() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        Bitmap first = decodePreview(PLENTY);
+        assertTrue(first.isMutable());
+        ThreePartImageUtils.releasePreviewBitmap(first);
+
+        Bitmap second = decodePreview(PLENTY);
+        assertSame(first, second);
+        assertEquals(PREVIEW_WIDTH, second.getWidth());
+        assertEquals(PREVIEW_HEIGHT, second.getHeight());
+        second.recycle();
+    }
+
+    @Test
+    public void decodesAt16BitsWhenHeapIsLow() {
+        Bitmap preview = decodePreview(PREVIEW_BYTES);
+        assertEquals(Bitmap.Config.RGB_565, preview.getConfig());
+        assertEquals(PREVIEW_WIDTH, preview.getWidth());
+        assertEquals(PREVIEW_HEIGHT, preview.getHeight());
+        assertEquals(PREVIEW_BYTES / 2, preview.getRowBytes() * (long) preview.getHeight());
+        preview.recycle();
+    }
+
+    /**
+     * Benchmark: preview decodes in a single pass, and by sampling then scaling with
+     * createScaledBitmap() as before.
+     */
+    @Test
+    public void benchmarkPreviewDecodes() {
+        int rounds = 10;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < rounds; i++) {
+            ThreePartImageUtils.releasePreviewBitmap(decodePreview(PLENTY));
+        }
+        long singlePassMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < rounds; i++) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 4;
+            Bitmap sampled = BitmapFactory.decodeFile(sFixture.getAbsolutePath(), options);
+            Bitmap scaled = Bitmap.createScaledBitmap(sampled, PREVIEW_WIDTH, PREVIEW_HEIGHT, true);
+            sampled.recycle();
+            scaled.recycle();
+        }
+        long sampleThenScaleMillis = SystemClock.elapsedRealtime() - start;
+
+        System.out.println(String.format("ThreePartImage preview decodes, %dx%d to %dx%d: %d ms single pass, %d ms sample then scale",
+                FULL_WIDTH, FULL_HEIGHT, PREVIEW_WIDTH, PREVIEW_HEIGHT, singlePassMillis / rounds, sampleThenScaleMillis / rounds));
+    }
+
+    private static Bitmap decodePreview(long availableBytes) {
+        Bitmap preview = ThreePartImageUtils.decodeScaled(sFixture, FULL_WIDTH, FULL_HEIGHT, PREVIEW_WIDTH, PREVIEW_HEIGHT, true, availableBytes);
+        assertNotNull(preview);
+        return preview;
+    }
+
+    /**
+     * Returns the bytes allocated on the Java and native heaps, which hold Bitmap pixels before
+     * and from Android O respectively.
+     */
+    private static long getAllocatedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -4,12 +4,13 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
-import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -23,6 +24,7 @@ import android.widget.TextView;
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.AvatarStyle;
+import com.layer.atlas.util.ConversationTitleCache;
 import com.layer.atlas.util.EditTextUtil;
 import com.layer.atlas.util.views.EmptyDelEditText;
 import com.layer.atlas.util.views.FlowLayout;
@@ -40,12 +42,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class AtlasAddressBar extends LinearLayout {
+    private static final long DEFAULT_SEARCH_DEBOUNCE_MILLIS = 150;
+    private static final int MAX_SELECTED_PARTICIPANTS = 24;
+
     private LayerClient mLayerClient;
     private ParticipantProvider mParticipantProvider;
     private Picasso mPicasso;
@@ -53,12 +59,24 @@ public class AtlasAddressBar extends LinearLayout {
     private OnConversationClickListener mOnConversationClickListener;
     private OnParticipantSelectionChangeListener mOnParticipantSelectionChangeListener;
 
+    private final Handler mUiThreadHandler = new Handler(Looper.getMainLooper());
+    private long mSearchDebounceMillis = DEFAULT_SEARCH_DEBOUNCE_MILLIS;
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
     private FlowLayout mSelectedParticipantLayout;
     private EmptyDelEditText mFilter;
     private RecyclerView mParticipantList;
     private AvailableConversationAdapter mAvailableConversationAdapter;
     private final Set<String> mSelectedParticipantIds = new LinkedHashSet<String>();
 
+    // Unselected chips, rebound on the next selection instead of inflating new ones
+    private final List<ParticipantChip> mRecycledChips = new ArrayList<ParticipantChip>();
+
     private boolean mShowConversations;
     // styles
     private int mInputTextSize;
@@ -106,6 +124,11 @@ public class AtlasAddressBar extends LinearLayout {
 
         mParticipantList.setAdapter(mAvailableConversationAdapter);
 
+        // Build chips for participants selected before init
+        if (!mSelectedParticipantIds.isEmpty()) {
+            applySelectedParticipants(new ArrayList<String>(mSelectedParticipantIds));
+        }
+
         // Hitting backspace with an empty search string deletes the last selected participant
         mFilter.setOnEmptyDelListener(new EmptyDelEditText.OnEmptyDelListener() {
             @Override
@@ -115,7 +138,7 @@ public class AtlasAddressBar extends LinearLayout {
             }
         });
 
-        // Refresh available participants and conversations with every search string change
+        // Refresh available participants and conversations once the search string settles
         mFilter.addTextChangedListener(new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -129,7 +152,8 @@ public class AtlasAddressBar extends LinearLayout {
 
             @Override
             public void afterTextChanged(Editable e) {
-                refresh();
+                mUiThreadHandler.removeCallbacks(mRefreshRunnable);
+                mUiThreadHandler.postDelayed(mRefreshRunnable, mSearchDebounceMillis);
             }
         });
         return this;
@@ -179,7 +203,20 @@ public class AtlasAddressBar extends LinearLayout {
         return new LinkedHashSet<String>(mSelectedParticipantIds);
     }
 
+    /**
+     * Sets how long the search string must remain unchanged before available participants and
+     * conversations are refreshed.  Intermediate search strings are never searched.
+     *
+     * @param debounceMillis Delay in milliseconds, or 0 to refresh on the next UI thread loop.
+     */
+    public AtlasAddressBar setSearchDebounce(long debounceMillis) {
+        if (debounceMillis < 0) throw new IllegalArgumentException("Debounce must not be negative");
+        mSearchDebounceMillis = debounceMillis;
+        return this;
+    }
+
     public AtlasAddressBar refresh() {
+        mUiThreadHandler.removeCallbacks(mRefreshRunnable);
         if (mAvailableConversationAdapter == null) return this;
         mAvailableConversationAdapter.refresh(getSearchFilter(), mSelectedParticipantIds);
         return this;
@@ -190,8 +227,19 @@ public class AtlasAddressBar extends LinearLayout {
         return this;
     }
 
-    public AtlasAddressBar setSelectedParticipants(Set<String> selectedParticipants) {
-        mSelectedParticipantIds.addAll(selectedParticipants);
+    /**
+     * Replaces the selected participants with the given ones, in iteration order, building all
+     * chips before a single refresh and selection change callback.  Chips for participants that
+     * remain selected are kept.
+     *
+     * @param selectedParticipants IDs of the participants to select, up to 24.
+     */
+    public AtlasAddressBar setSelectedParticipants(Collection<String> selectedParticipants) {
+        if (!applySelectedParticipants(selectedParticipants)) return this;
+        refresh();
+        if (mOnParticipantSelectionChangeListener != null) {
+            mOnParticipantSelectionChangeListener.onParticipantSelectionChanged(this, new ArrayList<String>(mSelectedParticipantIds));
+        }
         return this;
     }
 
@@ -201,10 +249,9 @@ public class AtlasAddressBar extends LinearLayout {
 
     private boolean selectParticipant(String participantId) {
         if (mSelectedParticipantIds.contains(participantId)) return true;
-        if (mSelectedParticipantIds.size() >= 24) return false;
+        if (mSelectedParticipantIds.size() >= MAX_SELECTED_PARTICIPANTS) return false;
         mSelectedParticipantIds.add(participantId);
-        ParticipantChip chip = new ParticipantChip(getContext(), mParticipantProvider, participantId, mPicasso);
-        mSelectedParticipantLayout.addView(chip, mSelectedParticipantLayout.getChildCount() - 1);
+        mSelectedParticipantLayout.addView(obtainChip(participantId), mSelectedParticipantLayout.getChildCount() - 1);
         mFilter.setText(null);
         refresh();
         if (mOnParticipantSelectionChangeListener != null) {
@@ -217,12 +264,70 @@ public class AtlasAddressBar extends LinearLayout {
         if (!mSelectedParticipantIds.contains(chip.mParticipantId)) return;
         mSelectedParticipantIds.remove(chip.mParticipantId);
         mSelectedParticipantLayout.removeView(chip);
+        recycleChip(chip);
         refresh();
         if (mOnParticipantSelectionChangeListener != null) {
             mOnParticipantSelectionChangeListener.onParticipantSelectionChanged(this, new ArrayList<String>(mSelectedParticipantIds));
         }
     }
 
+    /**
+     * Updates selected participants and their chips to match `participantIds` without refreshing
+     * or notifying listeners.  Chips are only built once initialized.
+     *
+     * @return `true` if the selection changed.
+     */
+    private boolean applySelectedParticipants(Collection<String> participantIds) {
+        Set<String> selected = new LinkedHashSet<String>();
+        for (String participantId : participantIds) {
+            if (selected.size() >= MAX_SELECTED_PARTICIPANTS) break;
+            selected.add(participantId);
+        }
+        boolean changed = !new ArrayList<String>(selected).equals(new ArrayList<String>(mSelectedParticipantIds));
+        mSelectedParticipantIds.clear();
+        mSelectedParticipantIds.addAll(selected);
+        if (mParticipantProvider == null) return changed;
+
+        // Keep chips still selected and recycle the rest
+        Map<String, ParticipantChip> chips = new HashMap<String, ParticipantChip>();
+        for (int i = mSelectedParticipantLayout.getChildCount() - 1; i >= 0; i--) {
+            View child = mSelectedParticipantLayout.getChildAt(i);
+            if (!(child instanceof ParticipantChip)) continue;
+            ParticipantChip chip = (ParticipantChip) child;
+            if (selected.contains(chip.mParticipantId)) {
+                chips.put(chip.mParticipantId, chip);
+            } else {
+                mSelectedParticipantLayout.removeViewAt(i);
+                recycleChip(chip);
+            }
+        }
+
+        // Chips precede the filter, in selection order
+        int position = 0;
+        for (String participantId : selected) {
+            ParticipantChip chip = chips.get(participantId);
+            if (chip == null) {
+                mSelectedParticipantLayout.addView(obtainChip(participantId), position);
+            } else if (mSelectedParticipantLayout.getChildAt(position) != chip) {
+                mSelectedParticipantLayout.removeView(chip);
+                mSelectedParticipantLayout.addView(chip, position);
+            }
+            position++;
+        }
+        return changed;
+    }
+
+    private ParticipantChip obtainChip(String participantId) {
+        int size = mRecycledChips.size();
+        ParticipantChip chip = size > 0 ? mRecycledChips.remove(size - 1) : new ParticipantChip(getContext());
+        chip.bind(participantId);
+        return chip;
+    }
+
+    private void recycleChip(ParticipantChip chip) {
+        if (mRecycledChips.size() < MAX_SELECTED_PARTICIPANTS) mRecycledChips.add(chip);
+    }
+
     private String getSearchFilter() {
         String s = mFilter.getText().toString();
         return s.trim().isEmpty() ? null : s;
@@ -321,10 +426,7 @@ public class AtlasAddressBar extends LinearLayout {
         super.onRestoreInstanceState(savedState.getSuperState());
 
         if (savedState.mSelectedParticipantIds != null) {
-            mSelectedParticipantIds.clear();
-            for (String participantId : savedState.mSelectedParticipantIds) {
-                selectParticipant(participantId);
-            }
+            setSelectedParticipants(savedState.mSelectedParticipantIds);
         }
     }
 
@@ -367,11 +469,10 @@ public class AtlasAddressBar extends LinearLayout {
         private TextView mName;
         private ImageView mRemove;
 
-        public ParticipantChip(Context context, ParticipantProvider participantProvider, String participantId, Picasso picasso) {
+        public ParticipantChip(Context context) {
             super(context);
             LayoutInflater inflater = LayoutInflater.from(context);
             Resources r = getContext().getResources();
-            mParticipantId = participantId;
 
             // Inflate and cache views
             inflater.inflate(R.layout.atlas_participant_chip, this, true);
@@ -379,9 +480,6 @@ public class AtlasAddressBar extends LinearLayout {
             mName = (TextView) findViewById(R.id.name);
             mRemove = (ImageView) findViewById(R.id.remove);
 
-            // Set Style
-            mName.setTypeface(mChipTypeface);
-
             // Set layout
             int height = r.getDimensionPixelSize(R.dimen.atlas_chip_height);
             int margin = r.getDimensionPixelSize(R.dimen.atlas_chip_margin);
@@ -391,12 +489,8 @@ public class AtlasAddressBar extends LinearLayout {
             setOrientation(HORIZONTAL);
             setBackgroundDrawable(r.getDrawable(R.drawable.atlas_participant_chip_background));
 
-            // Initialize participant data
-            Participant participant = participantProvider.getParticipant(participantId);
-            mName.setText(participant.getName());
-            mAvatar.init(participantProvider, picasso)
-                    .setStyle(mAvatarStyle)
-                    .setParticipants(participantId);
+            mAvatar.init(mParticipantProvider, mPicasso)
+                    .setStyle(mAvatarStyle);
 
             setOnClickListener(new OnClickListener() {
                 @Override
@@ -405,6 +499,21 @@ public class AtlasAddressBar extends LinearLayout {
                 }
             });
         }
+
+        /**
+         * Binds this chip, new or recycled, to the given participant.
+         */
+        void bind(String participantId) {
+            mParticipantId = participantId;
+
+            // Set Style
+            mName.setTypeface(mChipTypeface);
+
+            // Initialize participant data
+            Participant participant = mParticipantProvider.getParticipant(participantId);
+            mName.setText(participant.getName());
+            mAvatar.setParticipants(participantId);
+        }
     }
 
     private enum Type {
@@ -417,15 +526,25 @@ public class AtlasAddressBar extends LinearLayout {
      * Conversations.  Items are filtered by a participant filter string and by a set of selected
      * Participants.
      */
-    private class AvailableConversationAdapter extends RecyclerView.Adapter<AvailableConversationAdapter.ViewHolder> implements RecyclerViewController.Callback {
+    private class AvailableConversationAdapter extends RecyclerView.Adapter<AvailableConversationAdapter.ViewHolder> implements RecyclerViewController.Callback, ParticipantFilterer.Callback {
         protected final LayerClient mLayerClient;
         protected final ParticipantProvider mParticipantProvider;
         protected final Picasso mPicasso;
         private final RecyclerViewController<Conversation> mQueryController;
+        private final ParticipantFilterer mParticipantFilterer;
 
-        private final ArrayList<String> mParticipantIds = new ArrayList<String>();
-        private final ArrayList<Participant> mParticipants = new ArrayList<Participant>();
-        private final Map<String, Participant> mParticipantMap = new HashMap<String, Participant>();
+        // Participants of the last conversation query, and of the next one posted to run
+        private Set<String> mQueriedParticipantIds;
+        private Set<String> mPendingQueryParticipantIds;
+        private final Runnable mQueryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                queryConversations(mPendingQueryParticipantIds);
+            }
+        };
+
+        // Filtered Participants, replaced as a whole by onParticipantsFiltered()
+        private List<Participant> mParticipants = Collections.emptyList();
 
         public AvailableConversationAdapter(LayerClient client, ParticipantProvider participantProvider, Picasso picasso) {
             this(client, participantProvider, picasso, null);
@@ -436,38 +555,36 @@ public class AtlasAddressBar extends LinearLayout {
             mLayerClient = client;
             mParticipantProvider = participantProvider;
             mPicasso = picasso;
+            mParticipantFilterer = new ParticipantFilterer(participantProvider, mUiThreadHandler, this);
             setHasStableIds(false);
         }
 
         /**
-         * Refreshes this adapter by re-querying the ParticipantProvider and filtering Conversations
-         * to return only those Conversations with the given set of selected Participants.
+         * Refreshes this adapter by re-querying the ParticipantProvider in the background and
+         * filtering Conversations to return only those Conversations with the given set of
+         * selected Participants.  Conversations are only re-queried when the selected
+         * Participants change, and only the last of several refreshes in one UI thread loop
+         * queries.
          */
         public void refresh(String filter, Set<String> selectedParticipantIds) {
-            // Apply text search filter to available participants
-            String userId = mLayerClient.getAuthenticatedUserId();
-            synchronized (mParticipantIds) {
-                mParticipantProvider.getMatchingParticipants(filter, mParticipantMap);
-                mParticipants.clear();
-                for (Map.Entry<String, Participant> entry : mParticipantMap.entrySet()) {
-                    // Don't show participants we've already selected
-                    if (selectedParticipantIds.contains(entry.getKey())) continue;
-                    if (entry.getKey().equals(userId)) continue;
-                    mParticipants.add(entry.getValue());
-                }
-                Collections.sort(mParticipants);
-
-                mParticipantIds.clear();
-                for (Participant p : mParticipants) {
-                    mParticipantIds.add(p.getId());
-                }
+            // Apply text search filter to available participants, hiding those already selected
+            Set<String> excludedIds = new HashSet<String>(selectedParticipantIds);
+            excludedIds.add(mLayerClient.getAuthenticatedUserId());
+            mParticipantFilterer.filter(filter, excludedIds);
+
+            if (mShowConversations && !selectedParticipantIds.equals(mQueriedParticipantIds)) {
+                // Supersede any query not yet run
+                mPendingQueryParticipantIds = new LinkedHashSet<String>(selectedParticipantIds);
+                mQueriedParticipantIds = mPendingQueryParticipantIds;
+                mUiThreadHandler.removeCallbacks(mQueryRunnable);
+                mUiThreadHandler.post(mQueryRunnable);
             }
-            // TODO: compute add/remove/move and notify those instead of complete notify
-            notifyDataSetChanged();
+        }
 
-            if (mShowConversations) {
-                queryConversations(selectedParticipantIds);
-            }
+        @Override
+        public void onParticipantsFiltered(List<Participant> participants, ParticipantFilterer.Diff diff) {
+            mParticipants = participants;
+            diff.dispatch(this);
         }
 
         private void queryConversations(Set<String> selectedParticipantIds) {
@@ -500,58 +617,50 @@ public class AtlasAddressBar extends LinearLayout {
 
         @Override
         public void onBindViewHolder(ViewHolder viewHolder, int position) {
-            synchronized (mParticipantIds) {
-                switch (getType(position)) {
-                    case PARTICIPANT: {
-                        position = adapterPositionToParticipantPosition(position);
-                        String participantId = mParticipantIds.get(position);
-                        Participant participant = mParticipants.get(position);
-                        viewHolder.mTitle.setText(participant.getName());
-                        viewHolder.itemView.setTag(participantId);
-                        viewHolder.itemView.setOnClickListener(new OnClickListener() {
-                            @Override
-                            public void onClick(View v) {
-                                selectParticipant((String) v.getTag());
-                            }
-                        });
-                        viewHolder.mAvatar.setParticipants(participantId);
-                    }
-                    break;
-
-                    case CONVERSATION: {
-                        position = adapterPositionToConversationPosition(position);
-                        Conversation conversation = mQueryController.getItem(position);
-                        String userId = mLayerClient.getAuthenticatedUserId();
-                        List<String> names = new ArrayList<String>();
-                        Set<String> ids = new LinkedHashSet<String>();
-                        for (String participantId : conversation.getParticipants()) {
-                            if (participantId.equals(userId)) continue;
-                            ids.add(participantId);
-                            Participant p = mParticipantProvider.getParticipant(participantId);
-                            if (p == null) continue;
-                            names.add(p.getName());
+            switch (getType(position)) {
+                case PARTICIPANT: {
+                    position = adapterPositionToParticipantPosition(position);
+                    Participant participant = mParticipants.get(position);
+                    String participantId = participant.getId();
+                    viewHolder.mTitle.setText(participant.getName());
+                    viewHolder.itemView.setTag(participantId);
+                    viewHolder.itemView.setOnClickListener(new OnClickListener() {
+                        @Override
+                        public void onClick(View v) {
+                            selectParticipant((String) v.getTag());
                         }
-                        viewHolder.mTitle.setText(TextUtils.join(", ", names));
-                        viewHolder.itemView.setTag(conversation);
-                        viewHolder.itemView.setOnClickListener(new OnClickListener() {
-                            @Override
-                            public void onClick(View v) {
-                                if (mOnConversationClickListener == null) return;
-                                mOnConversationClickListener.onConversationClick(AtlasAddressBar.this, (Conversation) v.getTag());
-                            }
-                        });
-                        viewHolder.mAvatar.setParticipants(ids);
+                    });
+                    viewHolder.mAvatar.setParticipants(participantId);
+                }
+                break;
+
+                case CONVERSATION: {
+                    position = adapterPositionToConversationPosition(position);
+                    Conversation conversation = mQueryController.getItem(position);
+                    String userId = mLayerClient.getAuthenticatedUserId();
+                    Set<String> ids = new LinkedHashSet<String>();
+                    for (String participantId : conversation.getParticipants()) {
+                        if (participantId.equals(userId)) continue;
+                        ids.add(participantId);
                     }
-                    break;
+                    viewHolder.mTitle.setText(ConversationTitleCache.getInstance().getParticipantNames(mLayerClient, mParticipantProvider, conversation));
+                    viewHolder.itemView.setTag(conversation);
+                    viewHolder.itemView.setOnClickListener(new OnClickListener() {
+                        @Override
+                        public void onClick(View v) {
+                            if (mOnConversationClickListener == null) return;
+                            mOnConversationClickListener.onConversationClick(AtlasAddressBar.this, (Conversation) v.getTag());
+                        }
+                    });
+                    viewHolder.mAvatar.setParticipants(ids);
                 }
+                break;
             }
         }
 
         // first are participants; then are conversations
         Type getType(int position) {
-            synchronized (mParticipantIds) {
-                return (position < mParticipantIds.size()) ? Type.PARTICIPANT : Type.CONVERSATION;
-            }
+            return (position < mParticipants.size()) ? Type.PARTICIPANT : Type.CONVERSATION;
         }
 
         int adapterPositionToParticipantPosition(int position) {
@@ -559,22 +668,16 @@ public class AtlasAddressBar extends LinearLayout {
         }
 
         int adapterPositionToConversationPosition(int position) {
-            synchronized (mParticipantIds) {
-                return position - mParticipantIds.size();
-            }
+            return position - mParticipants.size();
         }
 
         int conversationPositionToAdapterPosition(int position) {
-            synchronized (mParticipantIds) {
-                return position + mParticipantIds.size();
-            }
+            return position + mParticipants.size();
         }
 
         @Override
         public int getItemCount() {
-            synchronized (mParticipantIds) {
-                return mQueryController.getItemCount() + mParticipantIds.size();
-            }
+            return mQueryController.getItemCount() + mParticipants.size();
         }
 
 
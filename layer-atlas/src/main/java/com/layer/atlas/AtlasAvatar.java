@@ -6,6 +6,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.AttributeSet;
@@ -14,6 +15,7 @@ import android.view.ViewGroup;
 
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.AvatarBitmapCache;
 import com.layer.atlas.util.AvatarStyle;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.picasso.transformations.CircleTransform;
@@ -22,11 +24,10 @@ import com.squareup.picasso.Target;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -58,13 +59,22 @@ public class AtlasAvatar extends View {
 
     private ParticipantProvider mParticipantProvider;
     private Picasso mPicasso;
-    private Set<String> mParticipants = new LinkedHashSet<String>();
+
+    // Participants requested by setParticipants(), and the subset shown.  Lists without
+    // duplicates, so rebinds can compare and iterate them by index without allocating iterators.
+    private final List<String> mRequestedParticipants = new ArrayList<String>();
+    private final List<String> mParticipants = new ArrayList<String>(MAX_AVATARS);
 
     // Initials and Picasso image targets by user ID
     private final Map<String, ImageTarget> mImageTargets = new HashMap<String, ImageTarget>();
     private final Map<String, String> mInitials = new HashMap<String, String>();
     private final List<ImageTarget> mPendingLoads = new ArrayList<ImageTarget>();
 
+    // Scratch structures reused by update()
+    private final List<String> mWithAvatars = new ArrayList<String>();
+    private final List<String> mWithoutAvatars = new ArrayList<String>();
+    private final List<ImageTarget> mRecycledTargets = new ArrayList<ImageTarget>(MAX_AVATARS);
+
     // Sizing set in setClusterSizes() and used in onDraw()
     private float mOuterRadius;
     private float mInnerRadius;
@@ -77,6 +87,10 @@ public class AtlasAvatar extends View {
     private Rect mRect = new Rect();
     private RectF mContentRect = new RectF();
 
+    // Pre-composited multi-participant cluster, drawn in place of the individual avatars
+    private boolean mCompositeEnabled = false;
+    private Bitmap mComposite;
+
     public AtlasAvatar(Context context) {
         super(context);
     }
@@ -102,6 +116,7 @@ public class AtlasAvatar extends View {
         mPaintBorder.setColor(getResources().getColor(R.color.atlas_avatar_border));
         mPaintInitials.setColor(getResources().getColor(R.color.atlas_avatar_text));
 
+        AvatarBitmapCache.getInstance().registerComponentCallbacks(getContext());
         return this;
     }
 
@@ -110,13 +125,32 @@ public class AtlasAvatar extends View {
         mPaintBorder.setColor(avatarStyle.getAvatarBorderColor());
         mPaintInitials.setColor(avatarStyle.getAvatarTextColor());
         mPaintInitials.setTypeface(avatarStyle.getAvatarTextTypeface());
+        invalidateCluster();
+        return this;
+    }
+
+    /**
+     * Enables rendering multi-participant clusters once into a shared cached Bitmap, keyed by
+     * participants, style, and size, so drawing becomes a single drawBitmap().  The composite is
+     * re-rendered when a member's avatar loads.
+     *
+     * @param enabled `true` to pre-composite multi-participant clusters.
+     * @return This AtlasAvatar.
+     */
+    public AtlasAvatar setCompositeEnabled(boolean enabled) {
+        mCompositeEnabled = enabled;
+        invalidateCluster();
         return this;
     }
 
     public AtlasAvatar setParticipants(String... participantIds) {
-        mParticipants.clear();
+        if (isRequested(participantIds)) {
+            refresh();
+            return this;
+        }
+        mRequestedParticipants.clear();
         for (String participantId : participantIds) {
-            mParticipants.add(participantId);
+            if (!mRequestedParticipants.contains(participantId)) mRequestedParticipants.add(participantId);
         }
         update();
         return this;
@@ -126,8 +160,12 @@ public class AtlasAvatar extends View {
      * Should be called from UI thread.
      */
     public AtlasAvatar setParticipants(Set<String> participantIds) {
-        mParticipants.clear();
-        mParticipants.addAll(participantIds);
+        if (isRequested(participantIds)) {
+            refresh();
+            return this;
+        }
+        mRequestedParticipants.clear();
+        mRequestedParticipants.addAll(participantIds);
         update();
         return this;
     }
@@ -136,77 +174,126 @@ public class AtlasAvatar extends View {
         return new LinkedHashSet<String>(mParticipants);
     }
 
+    private boolean isRequested(Set<String> participantIds) {
+        int size = mRequestedParticipants.size();
+        if (participantIds.size() != size) return false;
+        for (int i = 0; i < size; i++) {
+            if (!participantIds.contains(mRequestedParticipants.get(i))) return false;
+        }
+        return true;
+    }
+
+    private boolean isRequested(String... participantIds) {
+        if (participantIds.length != mRequestedParticipants.size()) return false;
+        for (String participantId : participantIds) {
+            if (!mRequestedParticipants.contains(participantId)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Rebinds with an unchanged participant set: only reloads avatars whose URL changed, unless a
+     * requested participant was previously unavailable from the ParticipantProvider.
+     */
+    private void refresh() {
+        if (mInitials.size() < mParticipants.size()) {
+            update();
+            return;
+        }
+        boolean changed = false;
+        for (int i = 0; i < mParticipants.size(); i++) {
+            ImageTarget target = mImageTargets.get(mParticipants.get(i));
+            if (target == null) continue;
+            Participant participant = mParticipantProvider.getParticipant(target.getParticipantId());
+            if (participant == null) continue;
+            Uri url = participant.getAvatarUrl();
+            if (url == null ? target.getUrl() == null : url.equals(target.getUrl())) continue;
+            target.setUrl(url);
+            if (!mPendingLoads.contains(target)) mPendingLoads.add(target);
+            changed = true;
+        }
+        if (!changed) return;
+        setClusterSizes();
+        invalidateCluster();
+    }
+
+    /**
+     * Selects participants to show and diffs them against those shown, reusing scratch structures
+     * and ImageTargets so steady-state rebinds do not allocate.
+     */
     private void update() {
         // Limit to MAX_AVATARS valid avatars, prioritizing participants with avatars.
-        if (mParticipants.size() > MAX_AVATARS) {
-            Queue<String> withAvatars = new LinkedList<String>();
-            Queue<String> withoutAvatars = new LinkedList<String>();
-            for (String participantId : mParticipants) {
+        mParticipants.clear();
+        if (mRequestedParticipants.size() > MAX_AVATARS) {
+            for (int i = 0; i < mRequestedParticipants.size(); i++) {
+                String participantId = mRequestedParticipants.get(i);
                 Participant participant = mParticipantProvider.getParticipant(participantId);
                 if (participant == null) continue;
                 if (participant.getAvatarUrl() != null) {
-                    withAvatars.add(participantId);
+                    mWithAvatars.add(participantId);
                 } else {
-                    withoutAvatars.add(participantId);
+                    mWithoutAvatars.add(participantId);
                 }
             }
 
-            mParticipants = new LinkedHashSet<String>();
-            int numWithout = Math.min(MAX_AVATARS - withAvatars.size(), withoutAvatars.size());
+            int numWithout = Math.min(MAX_AVATARS - mWithAvatars.size(), mWithoutAvatars.size());
             for (int i = 0; i < numWithout; i++) {
-                mParticipants.add(withoutAvatars.remove());
+                mParticipants.add(mWithoutAvatars.get(i));
             }
-            int numWith = Math.min(MAX_AVATARS, withAvatars.size());
+            int numWith = Math.min(MAX_AVATARS, mWithAvatars.size());
             for (int i = 0; i < numWith; i++) {
-                mParticipants.add(withAvatars.remove());
+                mParticipants.add(mWithAvatars.get(i));
+            }
+            mWithAvatars.clear();
+            mWithoutAvatars.clear();
+        } else {
+            for (int i = 0; i < mRequestedParticipants.size(); i++) {
+                mParticipants.add(mRequestedParticipants.get(i));
             }
         }
 
-        Diff diff = diff(mInitials.keySet(), mParticipants);
-        List<ImageTarget> toLoad = new ArrayList<ImageTarget>(mParticipants.size());
-
-        List<ImageTarget> recyclableTargets = new ArrayList<ImageTarget>();
-        for (String removed : diff.removed) {
-            mInitials.remove(removed);
-            ImageTarget target = mImageTargets.remove(removed);
+        // Remove participants no longer shown, keeping their targets for reuse.
+        Iterator<String> iterator = mInitials.keySet().iterator();
+        while (iterator.hasNext()) {
+            String participantId = iterator.next();
+            if (mParticipants.contains(participantId)) continue;
+            iterator.remove();
+            ImageTarget target = mImageTargets.remove(participantId);
             if (target != null) {
                 mPicasso.cancelRequest(target);
-                recyclableTargets.add(target);
+                target.reset();
+                mRecycledTargets.add(target);
             }
         }
 
-        for (String added : diff.added) {
-            Participant participant = mParticipantProvider.getParticipant(added);
+        // Add new participants.  Existing targets only reload if their URL, size, or transform
+        // changed.
+        mPendingLoads.clear();
+        for (int i = 0; i < mParticipants.size(); i++) {
+            String participantId = mParticipants.get(i);
+            Participant participant = mParticipantProvider.getParticipant(participantId);
             if (participant == null) continue;
-            mInitials.put(added, Util.getInitials(participant));
-
-            final ImageTarget target;
-            if (recyclableTargets.isEmpty()) {
-                target = new ImageTarget(this);
-            } else {
-                target = recyclableTargets.remove(0);
+            ImageTarget target = mImageTargets.get(participantId);
+            if (target == null) {
+                mInitials.put(participantId, Util.getInitials(participant));
+                target = mRecycledTargets.isEmpty() ? new ImageTarget(this) : mRecycledTargets.remove(mRecycledTargets.size() - 1);
+                target.setParticipantId(participantId);
+                mImageTargets.put(participantId, target);
             }
             target.setUrl(participant.getAvatarUrl());
-            mImageTargets.put(added, target);
-            toLoad.add(target);
+            mPendingLoads.add(target);
         }
 
-        // Cancel existing in case the size or anything else changed.
-        // TODO: make caching intelligent wrt sizing
-        for (String existing : diff.existing) {
-            Participant participant = mParticipantProvider.getParticipant(existing);
-            if (participant == null) continue;
-            ImageTarget existingTarget = mImageTargets.get(existing);
-            mPicasso.cancelRequest(existingTarget);
-            toLoad.add(existingTarget);
-        }
-        for (ImageTarget target : mPendingLoads) {
-            mPicasso.cancelRequest(target);
-        }
-        mPendingLoads.clear();
-        mPendingLoads.addAll(toLoad);
-
         setClusterSizes();
+        invalidateCluster();
+    }
+
+    /**
+     * Drops the current composite and redraws.
+     */
+    private void invalidateCluster() {
+        mComposite = null;
+        invalidate();
     }
 
     @Override
@@ -238,16 +325,13 @@ public class AtlasAvatar extends View {
         float outerMultiSize = fraction * dimension;
         mDeltaX = (drawableWidth - outerMultiSize) / (avatarCount - 1);
         mDeltaY = (drawableHeight - outerMultiSize) / (avatarCount - 1);
+        mComposite = null;
 
         synchronized (mPendingLoads) {
             if (!mPendingLoads.isEmpty()) {
                 int size = Math.round(hasBorder ? (mInnerRadius * 2f) : (mOuterRadius * 2f));
                 for (ImageTarget imageTarget : mPendingLoads) {
-                    mPicasso.load(imageTarget.getUrl())
-                            .tag(AtlasAvatar.TAG).noPlaceholder().noFade()
-                            .centerCrop().resize(size, size)
-                            .transform((avatarCount > 1) ? MULTI_TRANSFORM : SINGLE_TRANSFORM)
-                            .into(imageTarget);
+                    imageTarget.load(mPicasso, size, avatarCount > 1);
                 }
                 mPendingLoads.clear();
             }
@@ -261,6 +345,56 @@ public class AtlasAvatar extends View {
         int avatarCount = mInitials.size();
         canvas.drawRect(0f, 0f, canvas.getWidth(), canvas.getHeight(), PAINT_TRANSPARENT);
         if (avatarCount == 0) return;
+
+        if (mCompositeEnabled && avatarCount > 1) {
+            Bitmap composite = getComposite();
+            if (composite != null) {
+                canvas.drawBitmap(composite, 0f, 0f, PAINT_BITMAP);
+                return;
+            }
+        }
+        drawCluster(canvas);
+    }
+
+    /**
+     * Returns the cached composite for the current cluster, rendering it on a miss, or `null` if
+     * this view has not been sized.
+     */
+    private Bitmap getComposite() {
+        if (mComposite != null) return mComposite;
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) return null;
+
+        int count = mInitials.size();
+        String[] participantIds = new String[count];
+        String[] initials = new String[count];
+        AvatarBitmapCache.Key[] imageKeys = new AvatarBitmapCache.Key[count];
+        int i = 0;
+        for (Map.Entry<String, String> entry : mInitials.entrySet()) {
+            ImageTarget imageTarget = mImageTargets.get(entry.getKey());
+            participantIds[i] = entry.getKey();
+            initials[i] = entry.getValue();
+            imageKeys[i] = (imageTarget == null || imageTarget.getBitmap() == null) ? null : imageTarget.getKey();
+            i++;
+        }
+        AvatarBitmapCache.CompositeKey key = new AvatarBitmapCache.CompositeKey(participantIds, initials, imageKeys,
+                width, height, mPaintBackground.getColor(), mPaintBorder.getColor(), mPaintInitials.getColor(),
+                mPaintInitials.getTypeface());
+
+        AvatarBitmapCache cache = AvatarBitmapCache.getInstance();
+        Bitmap composite = cache.get(key);
+        if (composite == null) {
+            composite = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            drawCluster(new Canvas(composite));
+            cache.put(key, composite);
+        }
+        mComposite = composite;
+        return composite;
+    }
+
+    private void drawCluster(Canvas canvas) {
+        int avatarCount = mInitials.size();
         boolean hasBorder = (avatarCount != 1);
         float contentRadius = hasBorder ? mInnerRadius : mOuterRadius;
 
@@ -268,6 +402,7 @@ public class AtlasAvatar extends View {
         float cx = mCenterX;
         float cy = mCenterY;
         mContentRect.set(cx - contentRadius, cy - contentRadius, cx + contentRadius, cy + contentRadius);
+        mPaintInitials.setTextSize(mTextSize);
         for (Map.Entry<String, String> entry : mInitials.entrySet()) {
             // Border / background
             if (hasBorder) canvas.drawCircle(cx, cy, mOuterRadius, mPaintBorder);
@@ -277,10 +412,15 @@ public class AtlasAvatar extends View {
             Bitmap bitmap = (imageTarget == null) ? null : imageTarget.getBitmap();
             if (bitmap == null) {
                 String initials = entry.getValue();
-                mPaintInitials.setTextSize(mTextSize);
-                mPaintInitials.getTextBounds(initials, 0, initials.length(), mRect);
+                Rect bounds;
+                if (imageTarget == null) {
+                    bounds = mRect;
+                    mPaintInitials.getTextBounds(initials, 0, initials.length(), bounds);
+                } else {
+                    bounds = imageTarget.getInitialsBounds(initials, mPaintInitials);
+                }
                 canvas.drawCircle(cx, cy, contentRadius, mPaintBackground);
-                canvas.drawText(initials, cx - mRect.centerX(), cy - mRect.centerY() - 1f, mPaintInitials);
+                canvas.drawText(initials, cx - bounds.centerX(), cy - bounds.centerY() - 1f, mPaintInitials);
             } else {
                 canvas.drawBitmap(bitmap, mContentRect.left, mContentRect.top, PAINT_BITMAP);
             }
@@ -296,14 +436,34 @@ public class AtlasAvatar extends View {
         private final static AtomicLong sCounter = new AtomicLong(0);
         private final long mId;
         private final AtlasAvatar mCluster;
+        private String mParticipantId;
         private Uri mUrl;
         private Bitmap mBitmap;
 
+        // Key of the Bitmap shown or loading, and whether a Picasso load is in flight
+        private AvatarBitmapCache.Key mKey;
+        private boolean mLoading;
+
+        // Initials text bounds, measured for the initials, text size, and typeface below
+        private final Rect mInitialsBounds = new Rect();
+        private String mMeasuredInitials;
+        private float mMeasuredTextSize;
+        private Typeface mMeasuredTypeface;
+
         public ImageTarget(AtlasAvatar cluster) {
             mId = sCounter.incrementAndGet();
             mCluster = cluster;
         }
 
+        public ImageTarget setParticipantId(String participantId) {
+            mParticipantId = participantId;
+            return this;
+        }
+
+        public String getParticipantId() {
+            return mParticipantId;
+        }
+
         public ImageTarget setUrl(Uri url) {
             mUrl = url;
             return this;
@@ -313,16 +473,68 @@ public class AtlasAvatar extends View {
             return mUrl;
         }
 
+        /**
+         * Shows the cached Bitmap for the given size and transform, or issues a Picasso load on a
+         * cache miss.  Does nothing if that Bitmap is already shown or loading.
+         */
+        public void load(Picasso picasso, int size, boolean multi) {
+            boolean sameKey = mKey != null && mKey.matches(mParticipantId, mUrl, size, multi);
+            if (sameKey && (mBitmap != null || mLoading)) return;
+            picasso.cancelRequest(this);
+            AvatarBitmapCache.Key key = sameKey ? mKey : new AvatarBitmapCache.Key(mParticipantId, mUrl, size, multi);
+            mKey = key;
+            mLoading = false;
+            mBitmap = (mUrl == null) ? null : AvatarBitmapCache.getInstance().get(key);
+            if (mBitmap != null || mUrl == null) {
+                mCluster.invalidateCluster();
+                return;
+            }
+            mLoading = true;
+            picasso.load(mUrl)
+                    .tag(AtlasAvatar.TAG).noPlaceholder().noFade()
+                    .centerCrop().resize(size, size)
+                    .transform(multi ? MULTI_TRANSFORM : SINGLE_TRANSFORM)
+                    .into(this);
+        }
+
+        /**
+         * Returns the text bounds of `initials` drawn with `paint`, measuring only when the
+         * initials, text size, or typeface changed since the last measurement.
+         */
+        public Rect getInitialsBounds(String initials, Paint paint) {
+            float textSize = paint.getTextSize();
+            Typeface typeface = paint.getTypeface();
+            if (!initials.equals(mMeasuredInitials) || textSize != mMeasuredTextSize || typeface != mMeasuredTypeface) {
+                paint.getTextBounds(initials, 0, initials.length(), mInitialsBounds);
+                mMeasuredInitials = initials;
+                mMeasuredTextSize = textSize;
+                mMeasuredTypeface = typeface;
+            }
+            return mInitialsBounds;
+        }
+
+        public void reset() {
+            mMeasuredInitials = null;
+            mParticipantId = null;
+            mUrl = null;
+            mBitmap = null;
+            mKey = null;
+            mLoading = false;
+        }
+
         @Override
         public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
-            mCluster.invalidate();
+            mLoading = false;
             mBitmap = bitmap;
+            mCluster.invalidateCluster();
+            AvatarBitmapCache.getInstance().put(mKey, bitmap);
         }
 
         @Override
         public void onBitmapFailed(Drawable errorDrawable) {
-            mCluster.invalidate();
+            mLoading = false;
             mBitmap = null;
+            mCluster.invalidateCluster();
         }
 
         @Override
@@ -334,6 +546,10 @@ public class AtlasAvatar extends View {
             return mBitmap;
         }
 
+        public AvatarBitmapCache.Key getKey() {
+            return mKey;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -347,27 +563,4 @@ public class AtlasAvatar extends View {
             return (int) (mId ^ (mId >>> 32));
         }
     }
-
-    private static Diff diff(Set<String> oldSet, Set<String> newSet) {
-        Diff diff = new Diff();
-        for (String old : oldSet) {
-            if (newSet.contains(old)) {
-                diff.existing.add(old);
-            } else {
-                diff.removed.add(old);
-            }
-        }
-        for (String newItem : newSet) {
-            if (!oldSet.contains(newItem)) {
-                diff.added.add(newItem);
-            }
-        }
-        return diff;
-    }
-
-    private static class Diff {
-        public List<String> existing = new ArrayList<String>();
-        public List<String> added = new ArrayList<String>();
-        public List<String> removed = new ArrayList<String>();
-    }
 }
@@ -0,0 +1,259 @@
+package com.layer.atlas;
+
+import android.os.Handler;
+import android.os.Process;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.provider.Participant;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParticipantFilterer filters, sorts, and diffs Participants for the AtlasAddressBar on a
+ * background thread.  Each call to filter() supersedes earlier ones: superseded filters stop at
+ * their next checkpoint and their results are dropped.  Only the latest result is delivered on the
+ * UI thread, along with a Diff of insert, remove, move, and change operations that transform the
+ * previously delivered list into it.
+ */
+class ParticipantFilterer {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ParticipantProvider mParticipantProvider;
+    private final Handler mUiThreadHandler;
+    private final Callback mCallback;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    // Background thread only
+    private final Map<String, Participant> mMatches = new HashMap<String, Participant>();
+
+    // UI thread only: the most recently delivered list
+    private List<Participant> mParticipants = Collections.emptyList();
+
+    public ParticipantFilterer(ParticipantProvider participantProvider, Handler uiThreadHandler, Callback callback) {
+        mParticipantProvider = participantProvider;
+        mUiThreadHandler = uiThreadHandler;
+        mCallback = callback;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new FilterThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Filters Participants matching `filter`, excluding `excludedIds`, sorted by their natural
+     * order.  Must be called from the UI thread.
+     *
+     * @param filter      Filter passed to ParticipantProvider.getMatchingParticipants().
+     * @param excludedIds Participant IDs to exclude from the result.
+     */
+    public void filter(final String filter, Set<String> excludedIds) {
+        final int generation = mGeneration.incrementAndGet();
+        final List<Participant> previous = mParticipants;
+        final Set<String> excluded = new HashSet<String>(excludedIds);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isStale(generation)) return;
+                mMatches.clear();
+                mParticipantProvider.getMatchingParticipants(filter, mMatches);
+                if (isStale(generation)) return;
+
+                final List<Participant> participants = new ArrayList<Participant>(mMatches.size());
+                for (Map.Entry<String, Participant> entry : mMatches.entrySet()) {
+                    if (excluded.contains(entry.getKey())) continue;
+                    participants.add(entry.getValue());
+                }
+                mMatches.clear();
+                Collections.sort(participants);
+                if (isStale(generation)) return;
+
+                final Diff diff = Diff.compute(previous, participants);
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isStale(generation)) return;
+                        mParticipants = participants;
+                        mCallback.onParticipantsFiltered(participants, diff);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops any pending or running filter.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    private boolean isStale(int generation) {
+        return generation != mGeneration.get();
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    interface Callback {
+        /**
+         * Called on the UI thread with the latest filtered Participants.  The receiver should
+         * replace its list with `participants` and then dispatch `diff`.
+         */
+        void onParticipantsFiltered(List<Participant> participants, Diff diff);
+    }
+
+    /**
+     * Diff holds the operations transforming one sorted Participant list into another, in the
+     * order RecyclerView expects them: removals, then moves, then insertions, then changes.
+     */
+    static class Diff {
+        // Beyond this many moves, a full data set change is cheaper to compute and to animate
+        private static final int MAX_MOVES = 100;
+
+        private static final int REMOVE = 0;
+        private static final int MOVE = 1;
+        private static final int INSERT = 2;
+        private static final int CHANGE = 3;
+
+        private final List<int[]> mOperations = new ArrayList<int[]>();
+        private boolean mDataSetChanged = false;
+
+        static Diff compute(List<Participant> previous, List<Participant> next) {
+            Diff diff = new Diff();
+            Map<String, Participant> previousById = new HashMap<String, Participant>(previous.size());
+            for (Participant participant : previous) {
+                previousById.put(participant.getId(), participant);
+            }
+            Set<String> nextIds = new HashSet<String>(next.size());
+            for (Participant participant : next) {
+                nextIds.add(participant.getId());
+            }
+
+            // Removals, from the end so earlier positions remain valid
+            int i = previous.size() - 1;
+            while (i >= 0) {
+                if (nextIds.contains(previous.get(i).getId())) {
+                    i--;
+                    continue;
+                }
+                int end = i;
+                while (i >= 0 && !nextIds.contains(previous.get(i).getId())) i--;
+                diff.add(REMOVE, i + 1, end - i);
+            }
+
+            // Moves, reordering retained Participants to match their order in `next`
+            List<String> current = new ArrayList<String>(previous.size());
+            for (Participant participant : previous) {
+                if (nextIds.contains(participant.getId())) current.add(participant.getId());
+            }
+            int position = 0;
+            int moves = 0;
+            for (Participant participant : next) {
+                String id = participant.getId();
+                if (!previousById.containsKey(id)) continue;
+                if (!current.get(position).equals(id)) {
+                    if (++moves > MAX_MOVES) {
+                        diff.mOperations.clear();
+                        diff.mDataSetChanged = true;
+                        return diff;
+                    }
+                    int from = current.indexOf(id);
+                    current.remove(from);
+                    current.add(position, id);
+                    diff.add(MOVE, from, position);
+                }
+                position++;
+            }
+
+            // Insertions, in ascending order so earlier positions are final
+            int size = next.size();
+            i = 0;
+            while (i < size) {
+                if (previousById.containsKey(next.get(i).getId())) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < size && !previousById.containsKey(next.get(i).getId())) i++;
+                diff.add(INSERT, start, i - start);
+            }
+
+            // Changes to retained Participants' display content
+            for (i = 0; i < size; i++) {
+                Participant participant = next.get(i);
+                Participant old = previousById.get(participant.getId());
+                if (old == null || old == participant) continue;
+                if (!equal(old.getName(), participant.getName()) || !equal(old.getAvatarUrl(), participant.getAvatarUrl())) {
+                    diff.add(CHANGE, i, 1);
+                }
+            }
+            return diff;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        private void add(int type, int a, int b) {
+            mOperations.add(new int[]{type, a, b});
+        }
+
+        /**
+         * Notifies `adapter` of this Diff's operations, for Participants starting at adapter
+         * position 0.
+         */
+        void dispatch(RecyclerView.Adapter adapter) {
+            if (mDataSetChanged) {
+                adapter.notifyDataSetChanged();
+                return;
+            }
+            for (int[] operation : mOperations) {
+                switch (operation[0]) {
+                    case REMOVE:
+                        adapter.notifyItemRangeRemoved(operation[1], operation[2]);
+                        break;
+                    case MOVE:
+                        adapter.notifyItemMoved(operation[1], operation[2]);
+                        break;
+                    case INSERT:
+                        adapter.notifyItemRangeInserted(operation[1], operation[2]);
+                        break;
+                    case CHANGE:
+                        adapter.notifyItemChanged(operation[1]);
+                        break;
+                }
+            }
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Dispatched " + mOperations.size() + " participant list operations");
+            }
+        }
+    }
+
+    private static class FilterThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AtlasParticipantFilterer");
+        }
+    }
+}
@@ -24,6 +24,7 @@ import com.squareup.picasso.Picasso;
 import java.text.DateFormat;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Set;
 
 public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConversationsAdapter.ViewHolder> implements AtlasBaseAdapter<Conversation>, RecyclerViewController.Callback {
     protected final LayerClient mLayerClient;
@@ -31,14 +32,18 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     protected final Picasso mPicasso;
     private final RecyclerViewController<Conversation> mQueryController;
     private final LayoutInflater mInflater;
-    private long mInitialHistory = 0;
+    private final InitialHistorySyncer mHistorySyncer;
 
     private OnConversationClickListener mConversationClickListener;
     private ViewHolder.OnClickListener mViewHolderClickListener;
 
     private final DateFormat mDateFormat;
     private final DateFormat mTimeFormat;
+
+    // Reused across binds; AtlasAvatar copies participant IDs it is given
+    private final Set<String> mParticipantIds = new HashSet<String>();
     private ConversationStyle conversationStyle;
+    private boolean mAvatarCompositeEnabled = false;
 
     public AtlasConversationsAdapter(Context context, LayerClient client, ParticipantProvider participantProvider, Picasso picasso) {
         this(context, client, participantProvider, picasso, null);
@@ -57,6 +62,12 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         mParticipantProvider = participantProvider;
         mPicasso = picasso;
         mInflater = LayoutInflater.from(context);
+        mHistorySyncer = new InitialHistorySyncer(client, new InitialHistorySyncer.Source() {
+            @Override
+            public Conversation getItem(int position) {
+                return mQueryController.getItem(position);
+            }
+        });
         mDateFormat = android.text.format.DateFormat.getDateFormat(context);
         mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
         mViewHolderClickListener = new ViewHolder.OnClickListener() {
@@ -82,13 +93,27 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         mQueryController.execute();
     }
 
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mHistorySyncer.cancel();
+    }
+
 
     //==============================================================================================
     // Initial message history
     //==============================================================================================
 
     public AtlasConversationsAdapter setInitialHistoricMessagesToFetch(long initialHistory) {
-        mInitialHistory = initialHistory;
+        mHistorySyncer.setDesiredHistory(initialHistory);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of Conversations fetching initial historic Messages at once.
+     */
+    public AtlasConversationsAdapter setMaxConcurrentHistoricSyncs(int maxConcurrentSyncs) {
+        mHistorySyncer.setMaxConcurrentSyncs(maxConcurrentSyncs);
         return this;
     }
 
@@ -96,29 +121,19 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         this.conversationStyle = conversationStyle;
     }
 
-    private void syncInitialMessages(final int start, final int length) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long desiredHistory = mInitialHistory;
-                if (desiredHistory <= 0) return;
-                for (int i = start; i < start + length; i++) {
-                    try {
-                        final Conversation conversation = getItem(i);
-                        if (conversation == null || conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) {
-                            continue;
-                        }
-                        Query<Message> localCountQuery = Query.builder(Message.class)
-                                .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
-                                .build();
-                        long delta = desiredHistory - mLayerClient.executeQueryForCount(localCountQuery);
-                        if (delta > 0) conversation.syncMoreHistoricMessages((int) delta);
-                    } catch (IndexOutOfBoundsException e) {
-                        // Concurrent modification
-                    }
-                }
-            }
-        }).start();
+    /**
+     * Sets whether multi-participant avatar clusters are pre-composited into cached Bitmaps.  Off
+     * by default.  Applies to ViewHolders created after this call.
+     *
+     * @see AtlasAvatar#setCompositeEnabled(boolean)
+     */
+    public AtlasConversationsAdapter setAvatarCompositeEnabled(boolean enabled) {
+        mAvatarCompositeEnabled = enabled;
+        return this;
+    }
+
+    private void syncInitialMessages(int start, int length) {
+        mHistorySyncer.sync(start, length);
     }
 
 
@@ -142,7 +157,8 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         viewHolder.setClickListener(mViewHolderClickListener);
         viewHolder.mAvatarCluster
                 .init(mParticipantProvider, mPicasso)
-                .setStyle(conversationStyle.getAvatarStyle());
+                .setStyle(conversationStyle.getAvatarStyle())
+                .setCompositeEnabled(mAvatarCompositeEnabled);
         return viewHolder;
     }
 
@@ -151,12 +167,14 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         mQueryController.updateBoundPosition(position);
         Conversation conversation = mQueryController.getItem(position);
         Message lastMessage = conversation.getLastMessage();
+        mHistorySyncer.prioritize(conversation);
         Context context = viewHolder.itemView.getContext();
 
         viewHolder.setConversation(conversation);
-        HashSet<String> participantIds = new HashSet<String>(conversation.getParticipants());
-        participantIds.remove(mLayerClient.getAuthenticatedUserId());
-        viewHolder.mAvatarCluster.setParticipants(participantIds);
+        mParticipantIds.clear();
+        mParticipantIds.addAll(conversation.getParticipants());
+        mParticipantIds.remove(mLayerClient.getAuthenticatedUserId());
+        viewHolder.mAvatarCluster.setParticipants(mParticipantIds);
         viewHolder.mTitleView.setText(Util.getConversationTitle(mLayerClient, mParticipantProvider, conversation));
         viewHolder.applyStyle(conversation.getTotalUnreadMessageCount() > 0);
 
@@ -6,6 +6,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,24 +16,29 @@ import android.widget.TextView;
 
 import com.layer.atlas.AtlasAvatar;
 import com.layer.atlas.R;
+import com.layer.atlas.adapters.MessageClusterer.Cluster;
+import com.layer.atlas.adapters.MessageClusterer.ClusterType;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.messagetypes.MessageStyle;
+import com.layer.atlas.messagetypes.ParsedContentCache;
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Actor;
 import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
 import com.layer.sdk.query.ListViewController;
 import com.layer.sdk.query.Query;
 import com.layer.sdk.query.RecyclerViewController;
 import com.squareup.picasso.Picasso;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -53,15 +59,18 @@ import java.util.Set;
  *
  * When rendering Messages, the AtlasMessagesAdapter first determines which CellFactory to handle
  * the Message with calling CellFactory.isBindable() on each of its registered CellFactories. The
- * first CellFactory to return `true` is used for that Message.  Then, the adapter checks for
- * available CellHolders of that type.  If none are found, a new one is created with a call to
- * CellFactory.createCellHolder().  After creating a new CellHolder (or reusing an available one),
+ * first CellFactory to return `true` is used for that Message, and is remembered for that Message
+ * until it changes.  CellFactories declaring MIME types with CellFactory.getMimeTypes() are only
+ * consulted for Messages whose first MessagePart has one of those MIME types.  Then, the adapter
+ * checks for available CellHolders of that type.  If none are found, a new one is created with a
+ * call to CellFactory.createCellHolder().  After creating a new CellHolder (or reusing an available one),
  * the CellHolder is rendered in the UI with Message data via CellFactory.bindCellHolder().
  *
  * @see AtlasCellFactory
  */
 public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdapter.ViewHolder> implements AtlasBaseAdapter<Message>, RecyclerViewController.Callback {
     private final static int VIEW_TYPE_FOOTER = 0;
+    private final static int CELL_FACTORY_CACHE_SIZE = 1000;
 
     protected final LayerClient mLayerClient;
     protected final ParticipantProvider mParticipantProvider;
@@ -79,13 +88,20 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     protected final Map<AtlasCellFactory, Integer> mMyViewTypesByCell = new HashMap<AtlasCellFactory, Integer>();
     protected final Map<AtlasCellFactory, Integer> mTheirViewTypesByCell = new HashMap<AtlasCellFactory, Integer>();
 
+    // Resolved CellFactories by Message ID, and candidate CellFactories by first MessagePart MIME type
+    private final LruCache<Uri, AtlasCellFactory> mCellFactoriesByMessage = new LruCache<Uri, AtlasCellFactory>(CELL_FACTORY_CACHE_SIZE);
+    private final Map<String, List<AtlasCellFactory>> mCellFactoriesByMimeType = new HashMap<String, List<AtlasCellFactory>>();
+
     // Dates and Clustering
-    private final Map<Uri, Cluster> mClusterCache = new HashMap<Uri, Cluster>();
+    private final MessageClusterer mClusterer;
     private final DateFormat mDateFormat;
     private final DateFormat mTimeFormat;
 
     // Read and delivery receipts
-    private Map<Message.RecipientStatus, MessagePosition> mReceiptMap = new HashMap<Message.RecipientStatus, MessagePosition>();
+    private final MessageReceiptIndex mReceiptIndex;
+
+    // Background parsing of Message content
+    private final MessagePreParser mPreParser;
 
     private View mFooterView;
     private int mFooterPosition = 0;
@@ -104,17 +120,77 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         mDateFormat = android.text.format.DateFormat.getDateFormat(context);
         mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
         mDisplayMetrics = context.getResources().getDisplayMetrics();
+        ParsedContentCache.getInstance().registerComponentCallbacks(context);
+        mClusterer = new MessageClusterer(new MessageClusterer.Source() {
+            @Override
+            public int getItemCount() {
+                return AtlasMessagesAdapter.this.getItemCount();
+            }
+
+            @Override
+            public Message getItem(int position) {
+                return AtlasMessagesAdapter.this.getItem(position);
+            }
+
+            @Override
+            public Integer getPosition(Message message, int lastPosition) {
+                return AtlasMessagesAdapter.this.getPosition(message, lastPosition);
+            }
+
+            @Override
+            public void onClustersChanged(int positionStart, int itemCount) {
+                notifyItemRangeChanged(positionStart, itemCount);
+            }
+        }, mUiThreadHandler, MessageClusterer.DEFAULT_WINDOW_MARGIN);
+        mReceiptIndex = new MessageReceiptIndex(layerClient, new MessageReceiptIndex.Source() {
+            @Override
+            public int getItemCount() {
+                return mQueryController.getItemCount();
+            }
+
+            @Override
+            public Message getItem(int position) {
+                return mQueryController.getItem(position);
+            }
+
+            @Override
+            public void onReceiptChanged(int position) {
+                notifyItemChanged(position);
+            }
+        });
+        mPreParser = new MessagePreParser(layerClient, participantProvider, new MessagePreParser.Source() {
+            @Override
+            public int getItemCount() {
+                return mQueryController.getItemCount();
+            }
+
+            @Override
+            public Message getItem(int position) {
+                return mQueryController.getItem(position);
+            }
+
+            @Override
+            public Integer getPosition(Message message, int lastPosition) {
+                return AtlasMessagesAdapter.this.getPosition(message, lastPosition);
+            }
+
+            @Override
+            public AtlasCellFactory getCellFactory(Message message) {
+                return AtlasMessagesAdapter.this.getCellFactory(message);
+            }
+
+            @Override
+            public void onParsed(int position) {
+                notifyItemChanged(position);
+            }
+        }, mUiThreadHandler);
 
         mQueryController = layerClient.newRecyclerViewController(null, null, this);
         mQueryController.setPreProcessCallback(new ListViewController.PreProcessCallback<Message>() {
             @Override
             public void onCache(ListViewController listViewController, Message message) {
-                for (AtlasCellFactory factory : mCellFactories) {
-                    if (factory.isBindable(message)) {
-                        factory.getParsedContent(mLayerClient, mParticipantProvider, message);
-                        break;
-                    }
-                }
+                AtlasCellFactory factory = getCellFactory(message);
+                if (factory != null) factory.getParsedContent(mLayerClient, mParticipantProvider, message);
             }
         });
 
@@ -144,6 +220,12 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         return this;
     }
 
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        mPreParser.cancel();
+    }
+
     public void setStyle(MessageStyle messageStyle) {
         this.mMessageStyle = messageStyle;
     }
@@ -200,19 +282,24 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
      * @return This AtlasMessagesAdapter.
      */
     public AtlasMessagesAdapter addCellFactories(AtlasCellFactory... cellFactories) {
-        for (AtlasCellFactory CellFactory : cellFactories) {
-            CellFactory.setStyle(mMessageStyle);
-            mCellFactories.add(CellFactory);
-
-            mViewTypeCount++;
-            CellType me = new CellType(true, CellFactory);
-            mCellTypesByViewType.put(mViewTypeCount, me);
-            mMyViewTypesByCell.put(CellFactory, mViewTypeCount);
-
-            mViewTypeCount++;
-            CellType notMe = new CellType(false, CellFactory);
-            mCellTypesByViewType.put(mViewTypeCount, notMe);
-            mTheirViewTypesByCell.put(CellFactory, mViewTypeCount);
+        // Candidate lists are read under this lock by background pre-parsing
+        synchronized (mCellFactoriesByMimeType) {
+            for (AtlasCellFactory CellFactory : cellFactories) {
+                CellFactory.setStyle(mMessageStyle);
+                mCellFactories.add(CellFactory);
+
+                mViewTypeCount++;
+                CellType me = new CellType(true, CellFactory);
+                mCellTypesByViewType.put(mViewTypeCount, me);
+                mMyViewTypesByCell.put(CellFactory, mViewTypeCount);
+
+                mViewTypeCount++;
+                CellType notMe = new CellType(false, CellFactory);
+                mCellTypesByViewType.put(mViewTypeCount, notMe);
+                mTheirViewTypesByCell.put(CellFactory, mViewTypeCount);
+            }
+            mCellFactoriesByMimeType.clear();
+            mCellFactoriesByMessage.evictAll();
         }
         return this;
     }
@@ -226,11 +313,55 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         if (mFooterView != null && position == mFooterPosition) return VIEW_TYPE_FOOTER;
         Message message = getItem(position);
         boolean isMe = mLayerClient.getAuthenticatedUserId().equals(message.getSender().getUserId());
-        for (AtlasCellFactory factory : mCellFactories) {
-            if (!factory.isBindable(message)) continue;
-            return isMe ? mMyViewTypesByCell.get(factory) : mTheirViewTypesByCell.get(factory);
+        AtlasCellFactory factory = getCellFactory(message);
+        if (factory == null) return -1;
+        return isMe ? mMyViewTypesByCell.get(factory) : mTheirViewTypesByCell.get(factory);
+    }
+
+    /**
+     * Returns the first registered CellFactory that can bind the given Message, or `null` if none
+     * can.  Results are cached by Message ID until the Message changes.  Only CellFactories which
+     * declare the Message's first MessagePart MIME type, or which declare no MIME types, are
+     * consulted.
+     *
+     * @param message Message to find a CellFactory for.
+     * @return The CellFactory to bind the given Message with.
+     * @see AtlasCellFactory#getMimeTypes()
+     */
+    protected AtlasCellFactory getCellFactory(Message message) {
+        Uri id = message.getId();
+        AtlasCellFactory factory = mCellFactoriesByMessage.get(id);
+        if (factory != null) return factory;
+
+        List<MessagePart> parts = message.getMessageParts();
+        String mimeType = parts.isEmpty() ? null : parts.get(0).getMimeType();
+        for (AtlasCellFactory candidate : getCandidateCellFactories(mimeType)) {
+            if (!candidate.isBindable(message)) continue;
+            mCellFactoriesByMessage.put(id, candidate);
+            return candidate;
+        }
+        return null;
+    }
+
+    private List<AtlasCellFactory> getCandidateCellFactories(String mimeType) {
+        synchronized (mCellFactoriesByMimeType) {
+            List<AtlasCellFactory> candidates = mCellFactoriesByMimeType.get(mimeType);
+            if (candidates != null) return candidates;
+            candidates = new ArrayList<AtlasCellFactory>(mCellFactories.size());
+            for (AtlasCellFactory factory : mCellFactories) {
+                Set<String> mimeTypes = factory.getMimeTypes();
+                if (mimeTypes == null || mimeTypes.contains(mimeType)) candidates.add(factory);
+            }
+            mCellFactoriesByMimeType.put(mimeType, candidates);
+            return candidates;
+        }
+    }
+
+    private void invalidateCellFactories(int positionStart, int itemCount) {
+        for (int position = positionStart; position < positionStart + itemCount; position++) {
+            Message message = mQueryController.getItem(position);
+            if (message != null) mCellFactoriesByMessage.remove(message.getId());
         }
-        return -1;
     }
 
     @Override
@@ -274,7 +405,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         boolean oneOnOne = message.getConversation().getParticipants().size() == 2;
 
         // Clustering and dates
-        Cluster cluster = getClustering(message, position);
+        Cluster cluster = mClusterer.getClustering(message, position);
         if (cluster.mClusterWithPrevious == null) {
             // No previous message, so no gap
             viewHolder.mClusterSpaceGap.setVisibility(View.GONE);
@@ -302,13 +433,10 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         // Sender-dependent elements
         if (cellType.mMe) {
             // Read and delivery receipts
-            MessagePosition read = mReceiptMap.get(Message.RecipientStatus.READ);
-            MessagePosition delivered = mReceiptMap.get(Message.RecipientStatus.DELIVERED);
-
-            if (read != null && message == read.mMessage) {
+            if (message == mReceiptIndex.get(Message.RecipientStatus.READ)) {
                 viewHolder.mReceipt.setVisibility(View.VISIBLE);
                 viewHolder.mReceipt.setText(R.string.atlas_message_item_read);
-            } else if (delivered != null && message == delivered.mMessage) {
+            } else if (message == mReceiptIndex.get(Message.RecipientStatus.DELIVERED)) {
                 viewHolder.mReceipt.setVisibility(View.VISIBLE);
                 viewHolder.mReceipt.setText(R.string.atlas_message_item_delivered);
             } else {
@@ -370,7 +498,22 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         viewHolder.mCellHolderSpecs.position = position;
         viewHolder.mCellHolderSpecs.maxWidth = maxWidth;
         viewHolder.mCellHolderSpecs.maxHeight = maxHeight;
-        cellType.mCellFactory.bindCellHolder(cellHolder, cellType.mCellFactory.getParsedContent(mLayerClient, mParticipantProvider, message), message, viewHolder.mCellHolderSpecs);
+        bindCellHolder(cellType.mCellFactory, cellHolder, message, position, viewHolder.mCellHolderSpecs);
+        mPreParser.parseAhead(position);
+    }
+
+    /**
+     * Binds parsed content if available.  Otherwise, binds a placeholder and parses in the
+     * background if the CellFactory supports placeholders, or parses on this thread if not.
+     */
+    private void bindCellHolder(AtlasCellFactory factory, AtlasCellFactory.CellHolder cellHolder, Message message, int position, AtlasCellFactory.CellHolderSpecs specs) {
+        AtlasCellFactory.ParsedContent parsed = factory.getCachedContent(message);
+        if (parsed == null && !mPreParser.consumeCompleted(message) && factory.bindPlaceholder(cellHolder, message, specs)) {
+            mPreParser.parseForRebind(message, position);
+            return;
+        }
+        if (parsed == null) parsed = factory.getParsedContent(mLayerClient, mParticipantProvider, message);
+        factory.bindCellHolder(cellHolder, parsed, message, specs);
     }
 
     @Override
@@ -401,132 +544,6 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     }
 
 
-    //==============================================================================================
-    // Clustering
-    //==============================================================================================
-
-    // TODO: optimize by limiting search to positions in- and around- visible range
-    private Cluster getClustering(Message message, int position) {
-        Cluster result = mClusterCache.get(message.getId());
-        if (result == null) {
-            result = new Cluster();
-            mClusterCache.put(message.getId(), result);
-        }
-
-        int previousPosition = position - 1;
-        Message previousMessage = (previousPosition >= 0) ? getItem(previousPosition) : null;
-        if (previousMessage != null) {
-            result.mDateBoundaryWithPrevious = isDateBoundary(previousMessage.getSentAt(), message.getSentAt());
-            result.mClusterWithPrevious = ClusterType.fromMessages(previousMessage, message);
-
-            Cluster previousCluster = mClusterCache.get(previousMessage.getId());
-            if (previousCluster == null) {
-                previousCluster = new Cluster();
-                mClusterCache.put(previousMessage.getId(), previousCluster);
-            } else {
-                // does the previous need to change its clustering?
-                if ((previousCluster.mClusterWithNext != result.mClusterWithPrevious) ||
-                        (previousCluster.mDateBoundaryWithNext != result.mDateBoundaryWithPrevious)) {
-                    requestUpdate(previousMessage, previousPosition);
-                }
-            }
-            previousCluster.mClusterWithNext = result.mClusterWithPrevious;
-            previousCluster.mDateBoundaryWithNext = result.mDateBoundaryWithPrevious;
-        }
-
-        int nextPosition = position + 1;
-        Message nextMessage = (nextPosition < getItemCount()) ? getItem(nextPosition) : null;
-        if (nextMessage != null) {
-            result.mDateBoundaryWithNext = isDateBoundary(message.getSentAt(), nextMessage.getSentAt());
-            result.mClusterWithNext = ClusterType.fromMessages(message, nextMessage);
-
-            Cluster nextCluster = mClusterCache.get(nextMessage.getId());
-            if (nextCluster == null) {
-                nextCluster = new Cluster();
-                mClusterCache.put(nextMessage.getId(), nextCluster);
-            } else {
-                // does the next need to change its clustering?
-                if ((nextCluster.mClusterWithPrevious != result.mClusterWithNext) ||
-                        (nextCluster.mDateBoundaryWithPrevious != result.mDateBoundaryWithNext)) {
-                    requestUpdate(nextMessage, nextPosition);
-                }
-            }
-            nextCluster.mClusterWithPrevious = result.mClusterWithNext;
-            nextCluster.mDateBoundaryWithPrevious = result.mDateBoundaryWithNext;
-        }
-
-        return result;
-    }
-
-    private static boolean isDateBoundary(Date d1, Date d2) {
-        if (d1 == null || d2 == null) return false;
-        return (d1.getYear() != d2.getYear()) || (d1.getMonth() != d2.getMonth()) || (d1.getDay() != d2.getDay());
-    }
-
-    private void requestUpdate(final Message message, final int lastPosition) {
-        mUiThreadHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                notifyItemChanged(getPosition(message, lastPosition));
-            }
-        });
-    }
-
-
-    //==============================================================================================
-    // Read and delivery receipts
-    //==============================================================================================
-
-    // TODO: find clever way to prevent worst-case O(n) -- perhaps based on visible positions?
-    private void updateReceipts() {
-        final String userId = mLayerClient.getAuthenticatedUserId();
-        Map<Message.RecipientStatus, MessagePosition> receiptMap = new HashMap<Message.RecipientStatus, MessagePosition>();
-        for (int position = getItemCount(); position >= 0; position--) {
-            Message message = getItem(position);
-            if (message == null) continue;
-
-            // Only display receipts for our own messages
-            if (!userId.equals(message.getSender().getUserId())) continue;
-
-            for (Map.Entry<String, Message.RecipientStatus> entry : message.getRecipientStatus().entrySet()) {
-                // Only show receipts for other members
-                if (entry.getKey().equals(userId)) continue;
-
-                // Only the latest entry for this RecipientStatus matters
-                if (receiptMap.containsKey(entry.getValue())) continue;
-
-                // Found the latest entry for this RecipientStatus
-                receiptMap.put(entry.getValue(), new MessagePosition(message, position));
-            }
-            if (receiptMap.containsKey(Message.RecipientStatus.READ) && receiptMap.containsKey(Message.RecipientStatus.DELIVERED)) {
-                break;
-            }
-        }
-
-        // Refresh previously-marked messages
-        Set<MessagePosition> previousReceiptsToRefresh = new HashSet<MessagePosition>();
-        for (Message.RecipientStatus status : Message.RecipientStatus.values()) {
-            MessagePosition current = (mReceiptMap == null) ? null : mReceiptMap.get(status);
-            MessagePosition next = receiptMap.get(status);
-            if (current != null && next != null && current.mMessage != next.mMessage) {
-                previousReceiptsToRefresh.add(current);
-                previousReceiptsToRefresh.add(next);
-            }
-            if (current != null && next == null) {
-                previousReceiptsToRefresh.add(current);
-            }
-            if (current == null && next != null) {
-                previousReceiptsToRefresh.add(next);
-            }
-        }
-        for (MessagePosition message : previousReceiptsToRefresh) {
-            notifyItemChanged(getPosition(message.mMessage, message.mPosition));
-        }
-
-        mReceiptMap = receiptMap;
-    }
-
-
     //==============================================================================================
     // UI update callbacks
     //==============================================================================================
@@ -534,27 +551,32 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     @Override
     public void onQueryDataSetChanged(RecyclerViewController controller) {
         mFooterPosition = mQueryController.getItemCount();
-        updateReceipts();
+        mClusterer.clear();
+        mCellFactoriesByMessage.evictAll();
+        mPreParser.cancel();
+        mReceiptIndex.rebuild();
         notifyDataSetChanged();
     }
 
     @Override
     public void onQueryItemChanged(RecyclerViewController controller, int position) {
-        updateReceipts();
+        invalidateCellFactories(position, 1);
         notifyItemChanged(position);
+        mReceiptIndex.onItemRangeChanged(position, 1);
     }
 
     @Override
     public void onQueryItemRangeChanged(RecyclerViewController controller, int positionStart, int itemCount) {
-        updateReceipts();
+        invalidateCellFactories(positionStart, itemCount);
         notifyItemRangeChanged(positionStart, itemCount);
+        mReceiptIndex.onItemRangeChanged(positionStart, itemCount);
     }
 
     @Override
     public void onQueryItemInserted(RecyclerViewController controller, int position) {
         mFooterPosition++;
-        updateReceipts();
         notifyItemInserted(position);
+        mReceiptIndex.onItemRangeInserted(position, 1);
         if (mAppendListener != null && (position + 1) == getItemCount()) {
             mAppendListener.onMessageAppend(this, getItem(position));
         }
@@ -563,8 +585,8 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     @Override
     public void onQueryItemRangeInserted(RecyclerViewController controller, int positionStart, int itemCount) {
         mFooterPosition += itemCount;
-        updateReceipts();
         notifyItemRangeInserted(positionStart, itemCount);
+        mReceiptIndex.onItemRangeInserted(positionStart, itemCount);
         int positionEnd = positionStart + itemCount;
         if (mAppendListener != null && (positionEnd + 1) == getItemCount()) {
             mAppendListener.onMessageAppend(this, getItem(positionEnd));
@@ -574,21 +596,21 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     @Override
     public void onQueryItemRemoved(RecyclerViewController controller, int position) {
         mFooterPosition--;
-        updateReceipts();
         notifyItemRemoved(position);
+        mReceiptIndex.onItemRangeRemoved(position, 1);
     }
 
     @Override
     public void onQueryItemRangeRemoved(RecyclerViewController controller, int positionStart, int itemCount) {
         mFooterPosition -= itemCount;
-        updateReceipts();
         notifyItemRangeRemoved(positionStart, itemCount);
+        mReceiptIndex.onItemRangeRemoved(positionStart, itemCount);
     }
 
     @Override
     public void onQueryItemMoved(RecyclerViewController controller, int fromPosition, int toPosition) {
-        updateReceipts();
         notifyItemMoved(fromPosition, toPosition);
+        mReceiptIndex.onItemMoved(fromPosition, toPosition);
     }
 
 
@@ -643,48 +665,6 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         }
     }
 
-    private enum ClusterType {
-        NEW_SENDER,
-        LESS_THAN_MINUTE,
-        LESS_THAN_HOUR,
-        MORE_THAN_HOUR;
-
-        private static final long MILLIS_MINUTE = 60 * 1000;
-        private static final long MILLIS_HOUR = 60 * MILLIS_MINUTE;
-
-        public static ClusterType fromMessages(Message older, Message newer) {
-            // Different users?
-            if (!older.getSender().equals(newer.getSender())) return NEW_SENDER;
-
-            // Time clustering for same user?
-            Date oldSentAt = older.getSentAt();
-            Date newSentAt = newer.getSentAt();
-            if (oldSentAt == null || newSentAt == null) return LESS_THAN_MINUTE;
-            long delta = Math.abs(newSentAt.getTime() - oldSentAt.getTime());
-            if (delta <= MILLIS_MINUTE) return LESS_THAN_MINUTE;
-            if (delta <= MILLIS_HOUR) return LESS_THAN_HOUR;
-            return MORE_THAN_HOUR;
-        }
-    }
-
-    private static class Cluster {
-        public boolean mDateBoundaryWithPrevious;
-        public ClusterType mClusterWithPrevious;
-
-        public boolean mDateBoundaryWithNext;
-        public ClusterType mClusterWithNext;
-    }
-
-    private static class MessagePosition {
-        public Message mMessage;
-        public int mPosition;
-
-        public MessagePosition(Message message, int position) {
-            mMessage = message;
-            mPosition = position;
-        }
-    }
-
     private static class CellType {
         protected final boolean mMe;
         protected final AtlasCellFactory mCellFactory;
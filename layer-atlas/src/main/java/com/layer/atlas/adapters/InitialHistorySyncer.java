@@ -0,0 +1,431 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.Process;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.query.Predicate;
+import com.layer.sdk.query.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InitialHistorySyncer tops up each Conversation's local Message history to a desired count on a
+ * single background thread.  Ranges of new positions are resolved to Conversations in the
+ * background, and each Conversation is queued at most once.  Conversations bound to visible
+ * positions move to the front of the queue.
+ * <p>
+ * Queued Conversations are processed in batches.  Local Message counts are cached until a
+ * Message in the Conversation is inserted or deleted, a batch whose Conversations have no local
+ * Messages is counted with a single query, and at most getMaxConcurrentSyncs() historic syncs run
+ * at once.  Conversations beyond that limit wait in a pending list without blocking the thread, and
+ * are started as running syncs complete.
+ */
+class InitialHistorySyncer implements LayerChangeEventListener.BackgroundThread {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int BATCH_SIZE = 20;
+    private static final int DEFAULT_MAX_CONCURRENT_SYNCS = 3;
+
+    // A historic sync without a status update for this long no longer counts towards the limit
+    private static final long SYNC_TIMEOUT_MILLIS = 30 * 1000;
+
+    // Task priorities, lowest first
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_RANGE = 1;
+    private static final int PRIORITY_DEFAULT = 2;
+
+    private final LayerClient mLayerClient;
+    private final Source mSource;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong(0);
+    private volatile long mDesiredHistory = 0;
+
+    // Queued SyncTasks by Conversation ID; guarded by itself
+    private final Map<Uri, SyncTask> mQueued = new HashMap<Uri, SyncTask>();
+
+    // Local Message counts by Conversation ID; guarded by itself
+    private final Map<Uri, Long> mLocalCounts = new HashMap<Uri, Long>();
+
+    // Start times of running historic syncs by Conversation ID, oldest first; guarded by itself
+    private final Map<Uri, Long> mSyncing = new LinkedHashMap<Uri, Long>();
+    private int mMaxConcurrentSyncs = DEFAULT_MAX_CONCURRENT_SYNCS;
+
+    // Syncs waiting for a slot by Conversation ID, oldest first; guarded by mSyncing
+    private final Map<Uri, PendingSync> mPending = new LinkedHashMap<Uri, PendingSync>();
+
+    // Incremented by cancel(), so batches started before it stop syncing
+    private volatile int mGeneration = 0;
+
+    private boolean mRegistered = false;
+
+    public InitialHistorySyncer(LayerClient layerClient, Source source) {
+        mLayerClient = layerClient;
+        mSource = source;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new SyncThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the number of Messages to fetch for each Conversation, or 0 to fetch none.
+     */
+    public void setDesiredHistory(long desiredHistory) {
+        mDesiredHistory = desiredHistory;
+    }
+
+    /**
+     * Sets the maximum number of historic syncs to run at once.
+     */
+    public void setMaxConcurrentSyncs(int maxConcurrentSyncs) {
+        if (maxConcurrentSyncs < 1) throw new IllegalArgumentException("Max concurrent syncs must be positive");
+        synchronized (mSyncing) {
+            mMaxConcurrentSyncs = maxConcurrentSyncs;
+        }
+        startPendingSyncs();
+    }
+
+    public int getMaxConcurrentSyncs() {
+        synchronized (mSyncing) {
+            return mMaxConcurrentSyncs;
+        }
+    }
+
+    /**
+     * Queues Conversations at the given range of positions for syncing.  Must be called from the
+     * UI thread.
+     */
+    public void sync(int start, int length) {
+        if (mDesiredHistory <= 0 || length <= 0) return;
+        if (!mRegistered) {
+            mLayerClient.registerEventListener(this);
+            mRegistered = true;
+        }
+        mExecutor.execute(new RangeTask(start, length));
+    }
+
+    /**
+     * Moves the given Conversation to the front of the queue if it is queued.  Call when it is
+     * bound to a visible position.  Must be called from the UI thread.
+     */
+    public void prioritize(Conversation conversation) {
+        SyncTask task;
+        synchronized (mQueued) {
+            task = mQueued.get(conversation.getId());
+            if (task == null || task.mPriority == PRIORITY_VISIBLE) return;
+            if (!mExecutor.remove(task)) return;
+            task = new SyncTask(conversation, PRIORITY_VISIBLE);
+            mQueued.put(conversation.getId(), task);
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Drops all queued and pending syncs and cached counts, and stops listening for changes.  A
+     * batch already running starts no further syncs.  Must be called from the UI thread.
+     */
+    public void cancel() {
+        mGeneration++;
+        synchronized (mQueued) {
+            mExecutor.getQueue().clear();
+            mQueued.clear();
+        }
+        synchronized (mLocalCounts) {
+            mLocalCounts.clear();
+        }
+        synchronized (mSyncing) {
+            mPending.clear();
+        }
+        if (mRegistered) {
+            mLayerClient.unregisterEventListener(this);
+            mRegistered = false;
+        }
+    }
+
+    @Override
+    public void onChangeEvent(LayerChangeEvent layerChangeEvent) {
+        for (LayerChange change : layerChangeEvent.getChanges()) {
+            Object object = change.getObject();
+            if (object instanceof Message) {
+                if (change.getChangeType() == LayerChange.Type.UPDATE) continue;
+                Conversation conversation = ((Message) object).getConversation();
+                if (conversation == null) continue;
+                synchronized (mLocalCounts) {
+                    mLocalCounts.remove(conversation.getId());
+                }
+            } else if (object instanceof Conversation) {
+                if (change.getChangeType() != LayerChange.Type.UPDATE) continue;
+                if (!"historicSyncStatus".equals(change.getAttributeName())) continue;
+                Conversation conversation = (Conversation) object;
+                if (conversation.getHistoricSyncStatus() == Conversation.HistoricSyncStatus.SYNC_PENDING) continue;
+                synchronized (mSyncing) {
+                    mSyncing.remove(conversation.getId());
+                }
+            }
+        }
+        startPendingSyncs();
+    }
+
+    private void enqueue(Conversation conversation) {
+        SyncTask task = new SyncTask(conversation, PRIORITY_DEFAULT);
+        synchronized (mQueued) {
+            if (mQueued.containsKey(conversation.getId())) return;
+            mQueued.put(conversation.getId(), task);
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Tops up the history of each Conversation in `conversations` still missing history.  Stops if
+     * cancel() is called after the batch started in `generation`.
+     */
+    private void syncHistory(List<Conversation> conversations, int generation) {
+        long desiredHistory = mDesiredHistory;
+        if (desiredHistory <= 0) return;
+
+        List<Conversation> uncounted = new ArrayList<Conversation>(conversations.size());
+        for (Conversation conversation : conversations) {
+            if (conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) continue;
+            synchronized (mSyncing) {
+                if (mSyncing.containsKey(conversation.getId()) || mPending.containsKey(conversation.getId())) continue;
+            }
+            synchronized (mLocalCounts) {
+                if (mLocalCounts.containsKey(conversation.getId())) continue;
+            }
+            uncounted.add(conversation);
+        }
+
+        // Conversations without local Messages, e.g. during initial sync, need only one query
+        if (uncounted.size() > 1 && countLocalMessages(uncounted) == 0) {
+            synchronized (mLocalCounts) {
+                for (Conversation conversation : uncounted) {
+                    mLocalCounts.put(conversation.getId(), 0L);
+                }
+            }
+        }
+
+        for (Conversation conversation : conversations) {
+            if (generation != mGeneration) return;
+            if (conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) continue;
+            Long localCount;
+            synchronized (mLocalCounts) {
+                localCount = mLocalCounts.get(conversation.getId());
+            }
+            if (localCount == null) {
+                localCount = countLocalMessages(Collections.singletonList(conversation));
+                synchronized (mLocalCounts) {
+                    mLocalCounts.put(conversation.getId(), localCount);
+                }
+            }
+            long delta = desiredHistory - localCount;
+            if (delta <= 0 || !acquireSyncSlot(conversation, (int) delta)) continue;
+            conversation.syncMoreHistoricMessages((int) delta);
+        }
+    }
+
+    private long countLocalMessages(List<Conversation> conversations) {
+        Predicate predicate = conversations.size() == 1
+                ? new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversations.get(0))
+                : new Predicate(Message.Property.CONVERSATION, Predicate.Operator.IN, conversations);
+        Query<Message> localCountQuery = Query.builder(Message.class).predicate(predicate).build();
+        return mLayerClient.executeQueryForCount(localCountQuery);
+    }
+
+    /**
+     * Records a historic sync for `conversation` if fewer than getMaxConcurrentSyncs() are
+     * running.  Otherwise adds it to the pending Conversations, to be started by
+     * startPendingSyncs() when a running sync completes.  Never blocks.
+     *
+     * @return `true` if the caller should start syncing `delta` Messages now.
+     */
+    private boolean acquireSyncSlot(Conversation conversation, int delta) {
+        synchronized (mSyncing) {
+            if (mSyncing.containsKey(conversation.getId())) return false;
+            expireSyncs();
+            if (mSyncing.size() >= mMaxConcurrentSyncs) {
+                mPending.put(conversation.getId(), new PendingSync(conversation, delta));
+                return false;
+            }
+            mSyncing.put(conversation.getId(), System.currentTimeMillis());
+            return true;
+        }
+    }
+
+    /**
+     * Starts pending historic syncs while fewer than getMaxConcurrentSyncs() are running.
+     */
+    private void startPendingSyncs() {
+        List<PendingSync> starting = null;
+        synchronized (mSyncing) {
+            if (mPending.isEmpty()) return;
+            expireSyncs();
+            Iterator<PendingSync> iterator = mPending.values().iterator();
+            while (mSyncing.size() < mMaxConcurrentSyncs && iterator.hasNext()) {
+                PendingSync pending = iterator.next();
+                iterator.remove();
+                Conversation conversation = pending.mConversation;
+                if (conversation.isDeleted() || mSyncing.containsKey(conversation.getId())) continue;
+                if (conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) continue;
+                mSyncing.put(conversation.getId(), System.currentTimeMillis());
+                if (starting == null) starting = new ArrayList<PendingSync>();
+                starting.add(pending);
+            }
+        }
+        if (starting == null) return;
+        for (PendingSync pending : starting) {
+            pending.mConversation.syncMoreHistoricMessages(pending.mDelta);
+        }
+    }
+
+    /**
+     * Forgets syncs running longer than SYNC_TIMEOUT_MILLIS.  Must hold mSyncing.
+     */
+    private void expireSyncs() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> iterator = mSyncing.values().iterator();
+        while (iterator.hasNext() && now - iterator.next() >= SYNC_TIMEOUT_MILLIS) {
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Historic sync timed out; no longer counting it");
+            }
+            iterator.remove();
+        }
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Source provides the InitialHistorySyncer with Conversations by position.
+     */
+    interface Source {
+        Conversation getItem(int position);
+    }
+
+    /**
+     * Task orders queued work by priority, then by submission.
+     */
+    private abstract class Task implements Runnable, Comparable<Task> {
+        final int mPriority;
+        final long mSequence;
+
+        Task(int priority) {
+            mPriority = priority;
+            mSequence = InitialHistorySyncer.this.mSequence.getAndIncrement();
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) return mPriority < another.mPriority ? -1 : 1;
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private class RangeTask extends Task {
+        private final int mStart;
+        private final int mLength;
+
+        RangeTask(int start, int length) {
+            super(PRIORITY_RANGE);
+            mStart = start;
+            mLength = length;
+        }
+
+        @Override
+        public void run() {
+            for (int i = mStart; i < mStart + mLength; i++) {
+                try {
+                    Conversation conversation = mSource.getItem(i);
+                    if (conversation != null) enqueue(conversation);
+                } catch (IndexOutOfBoundsException e) {
+                    // Concurrent modification
+                }
+            }
+        }
+    }
+
+    private class SyncTask extends Task {
+        private final Conversation mConversation;
+
+        SyncTask(Conversation conversation, int priority) {
+            super(priority);
+            mConversation = conversation;
+        }
+
+        /**
+         * Removes this task from the queued tasks, returning `false` if it was superseded by a
+         * prioritized task or cancelled.
+         */
+        boolean claim() {
+            synchronized (mQueued) {
+                if (mQueued.get(mConversation.getId()) != this) return false;
+                mQueued.remove(mConversation.getId());
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            // Tasks queued before a cancel() cannot be claimed; a cancel() from here on stops the batch
+            int generation = mGeneration;
+
+            // Batch with the next queued SyncTasks, in priority order
+            List<Conversation> batch = new ArrayList<Conversation>(BATCH_SIZE);
+            if (claim()) batch.add(mConversation);
+            BlockingQueue<Runnable> queue = mExecutor.getQueue();
+            while (batch.size() < BATCH_SIZE && queue.peek() instanceof SyncTask) {
+                SyncTask next = (SyncTask) queue.poll();
+                if (next != null && next.claim()) batch.add(next.mConversation);
+            }
+            if (batch.isEmpty()) return;
+            try {
+                syncHistory(batch, generation);
+            } catch (Exception e) {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static class PendingSync {
+        final Conversation mConversation;
+        final int mDelta;
+
+        PendingSync(Conversation conversation, int delta) {
+            mConversation = conversation;
+            mDelta = delta;
+        }
+    }
+
+    private static class SyncThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AtlasInitialHistorySyncer");
+        }
+    }
+}
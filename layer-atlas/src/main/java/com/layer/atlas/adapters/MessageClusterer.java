@@ -0,0 +1,262 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import com.layer.sdk.messaging.Message;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * MessageClusterer computes sender, time, and date clustering between adjacent Messages for an
+ * AtlasMessagesAdapter.  Clusters are only retained for a window of positions around the most
+ * recently bound position; clusters outside the window are evicted and recomputed if their
+ * positions are bound again.  When binding a Message changes the clustering of a neighbour, the
+ * neighbour is queued for refresh, and all queued neighbours are refreshed together in contiguous
+ * position ranges on the next UI loop.
+ */
+class MessageClusterer {
+    public static final int DEFAULT_WINDOW_MARGIN = 100;
+
+    private final Source mSource;
+    private final Handler mUiThreadHandler;
+    private final int mWindowMargin;
+
+    private final Map<Uri, Cluster> mClusters = new HashMap<Uri, Cluster>();
+    private final Map<Uri, PendingUpdate> mPendingUpdates = new HashMap<Uri, PendingUpdate>();
+    private boolean mFlushPosted = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param source          Source of Messages and their positions.
+     * @param uiThreadHandler Handler used to batch neighbour refreshes.
+     * @param windowMargin    Number of positions on either side of the most recently bound
+     *                        position to retain clusters for.
+     */
+    public MessageClusterer(Source source, Handler uiThreadHandler, int windowMargin) {
+        if (windowMargin < 1) throw new IllegalArgumentException("Window margin must be positive");
+        mSource = source;
+        mUiThreadHandler = uiThreadHandler;
+        mWindowMargin = windowMargin;
+    }
+
+    /**
+     * Returns the Cluster for the Message at the given position, updating its neighbours and
+     * queueing neighbour refreshes as needed.  Must be called from the UI thread.
+     *
+     * @param message  Message being bound.
+     * @param position Position of the Message being bound.
+     * @return The Cluster for the given Message.
+     */
+    public Cluster getClustering(Message message, int position) {
+        Cluster result = obtain(message.getId(), position);
+
+        int previousPosition = position - 1;
+        Message previousMessage = (previousPosition >= 0) ? mSource.getItem(previousPosition) : null;
+        if (previousMessage != null) {
+            result.mDateBoundaryWithPrevious = isDateBoundary(previousMessage.getSentAt(), message.getSentAt());
+            result.mClusterWithPrevious = ClusterType.fromMessages(previousMessage, message);
+
+            Cluster previousCluster = mClusters.get(previousMessage.getId());
+            if (previousCluster == null) {
+                previousCluster = obtain(previousMessage.getId(), previousPosition);
+            } else {
+                previousCluster.mPosition = previousPosition;
+                // does the previous need to change its clustering?
+                if ((previousCluster.mClusterWithNext != result.mClusterWithPrevious) ||
+                        (previousCluster.mDateBoundaryWithNext != result.mDateBoundaryWithPrevious)) {
+                    requestUpdate(previousMessage, previousPosition);
+                }
+            }
+            previousCluster.mClusterWithNext = result.mClusterWithPrevious;
+            previousCluster.mDateBoundaryWithNext = result.mDateBoundaryWithPrevious;
+        }
+
+        int nextPosition = position + 1;
+        Message nextMessage = (nextPosition < mSource.getItemCount()) ? mSource.getItem(nextPosition) : null;
+        if (nextMessage != null) {
+            result.mDateBoundaryWithNext = isDateBoundary(message.getSentAt(), nextMessage.getSentAt());
+            result.mClusterWithNext = ClusterType.fromMessages(message, nextMessage);
+
+            Cluster nextCluster = mClusters.get(nextMessage.getId());
+            if (nextCluster == null) {
+                nextCluster = obtain(nextMessage.getId(), nextPosition);
+            } else {
+                nextCluster.mPosition = nextPosition;
+                // does the next need to change its clustering?
+                if ((nextCluster.mClusterWithPrevious != result.mClusterWithNext) ||
+                        (nextCluster.mDateBoundaryWithPrevious != result.mDateBoundaryWithNext)) {
+                    requestUpdate(nextMessage, nextPosition);
+                }
+            }
+            nextCluster.mClusterWithPrevious = result.mClusterWithNext;
+            nextCluster.mDateBoundaryWithPrevious = result.mDateBoundaryWithNext;
+        }
+
+        evictOutsideWindow(position);
+        return result;
+    }
+
+    /**
+     * Drops all cached clusters and pending neighbour refreshes, e.g. when the data set changes.
+     */
+    public void clear() {
+        mClusters.clear();
+        mPendingUpdates.clear();
+    }
+
+    /**
+     * Returns the number of cached clusters.
+     */
+    int size() {
+        return mClusters.size();
+    }
+
+    private Cluster obtain(Uri id, int position) {
+        Cluster cluster = mClusters.get(id);
+        if (cluster == null) {
+            cluster = new Cluster();
+            mClusters.put(id, cluster);
+        }
+        cluster.mPosition = position;
+        return cluster;
+    }
+
+    /**
+     * Evicts clusters outside the window around `position`.  Eviction only runs once the cache
+     * holds twice the window, so the cost is amortized across binds.
+     */
+    private void evictOutsideWindow(int position) {
+        int windowSize = 2 * mWindowMargin + 1;
+        if (mClusters.size() <= 2 * windowSize) return;
+        int start = position - mWindowMargin;
+        int end = position + mWindowMargin;
+        Iterator<Cluster> iterator = mClusters.values().iterator();
+        while (iterator.hasNext()) {
+            Cluster cluster = iterator.next();
+            if (cluster.mPosition < start || cluster.mPosition > end) iterator.remove();
+        }
+    }
+
+    private void requestUpdate(Message message, int lastPosition) {
+        PendingUpdate update = mPendingUpdates.get(message.getId());
+        if (update == null) {
+            mPendingUpdates.put(message.getId(), new PendingUpdate(message, lastPosition));
+        } else {
+            update.mPosition = lastPosition;
+        }
+        if (mFlushPosted) return;
+        mFlushPosted = true;
+        mUiThreadHandler.post(mFlush);
+    }
+
+    /**
+     * Resolves current positions of all queued neighbours and notifies them in contiguous ranges.
+     */
+    void flush() {
+        mFlushPosted = false;
+        if (mPendingUpdates.isEmpty()) return;
+        int[] positions = new int[mPendingUpdates.size()];
+        int count = 0;
+        for (PendingUpdate update : mPendingUpdates.values()) {
+            Integer position = mSource.getPosition(update.mMessage, update.mPosition);
+            if (position == null || position < 0) continue;
+            positions[count++] = position;
+        }
+        mPendingUpdates.clear();
+        if (count == 0) return;
+
+        Arrays.sort(positions, 0, count);
+        int rangeStart = positions[0];
+        int rangeEnd = rangeStart;
+        for (int i = 1; i < count; i++) {
+            int position = positions[i];
+            if (position == rangeEnd) continue;
+            if (position == rangeEnd + 1) {
+                rangeEnd = position;
+                continue;
+            }
+            mSource.onClustersChanged(rangeStart, rangeEnd - rangeStart + 1);
+            rangeStart = rangeEnd = position;
+        }
+        mSource.onClustersChanged(rangeStart, rangeEnd - rangeStart + 1);
+    }
+
+    static boolean isDateBoundary(Date d1, Date d2) {
+        if (d1 == null || d2 == null) return false;
+        return (d1.getYear() != d2.getYear()) || (d1.getMonth() != d2.getMonth()) || (d1.getDay() != d2.getDay());
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Source provides the MessageClusterer with Messages, positions, and a sink for refreshes.
+     */
+    interface Source {
+        int getItemCount();
+
+        Message getItem(int position);
+
+        Integer getPosition(Message message, int lastPosition);
+
+        void onClustersChanged(int positionStart, int itemCount);
+    }
+
+    enum ClusterType {
+        NEW_SENDER,
+        LESS_THAN_MINUTE,
+        LESS_THAN_HOUR,
+        MORE_THAN_HOUR;
+
+        private static final long MILLIS_MINUTE = 60 * 1000;
+        private static final long MILLIS_HOUR = 60 * MILLIS_MINUTE;
+
+        public static ClusterType fromMessages(Message older, Message newer) {
+            // Different users?
+            if (!older.getSender().equals(newer.getSender())) return NEW_SENDER;
+
+            // Time clustering for same user?
+            Date oldSentAt = older.getSentAt();
+            Date newSentAt = newer.getSentAt();
+            if (oldSentAt == null || newSentAt == null) return LESS_THAN_MINUTE;
+            long delta = Math.abs(newSentAt.getTime() - oldSentAt.getTime());
+            if (delta <= MILLIS_MINUTE) return LESS_THAN_MINUTE;
+            if (delta <= MILLIS_HOUR) return LESS_THAN_HOUR;
+            return MORE_THAN_HOUR;
+        }
+    }
+
+    static class Cluster {
+        public boolean mDateBoundaryWithPrevious;
+        public ClusterType mClusterWithPrevious;
+
+        public boolean mDateBoundaryWithNext;
+        public ClusterType mClusterWithNext;
+
+        // Last known position, used for window eviction.
+        int mPosition;
+    }
+
+    private static class PendingUpdate {
+        final Message mMessage;
+        int mPosition;
+
+        PendingUpdate(Message message, int position) {
+            mMessage = message;
+            mPosition = position;
+        }
+    }
+}
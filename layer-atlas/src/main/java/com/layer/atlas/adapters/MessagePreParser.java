@@ -0,0 +1,221 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Process;
+
+import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Message;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MessagePreParser parses Message content with AtlasCellFactory.getParsedContent() on a bounded
+ * pool of background threads.  Parsing is requested for Messages ahead of the scroll direction as
+ * positions are bound, and for Messages bound with a placeholder, which are refreshed once their
+ * content is parsed.  Only one parse is in flight per Message ID, and when the queue is full the
+ * oldest queued parse is dropped in favor of the newest.
+ */
+class MessagePreParser {
+    private static final int THREAD_COUNT = 2;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int LOOK_AHEAD = 10;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final LayerClient mLayerClient;
+    private final ParticipantProvider mParticipantProvider;
+    private final Source mSource;
+    private final Handler mUiThreadHandler;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Message IDs queued or parsing; guarded by itself
+    private final Set<Uri> mInFlight = new HashSet<Uri>();
+
+    // UI thread only: Message IDs bound with a placeholder, and IDs whose parse finished
+    private final Set<Uri> mAwaitingRebind = new HashSet<Uri>();
+    private final Set<Uri> mCompleted = new HashSet<Uri>();
+
+    private int mLastBoundPosition = -1;
+
+    public MessagePreParser(LayerClient layerClient, ParticipantProvider participantProvider, Source source, Handler uiThreadHandler) {
+        mLayerClient = layerClient;
+        mParticipantProvider = participantProvider;
+        mSource = source;
+        mUiThreadHandler = uiThreadHandler;
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new ParserThreadFactory(), new DropOldestPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests parsing of the Message bound at `position` with a placeholder.  Once parsed, the
+     * Message's position is refreshed.  Must be called from the UI thread.
+     */
+    public void parseForRebind(Message message, int position) {
+        mAwaitingRebind.add(message.getId());
+        enqueue(message, position);
+    }
+
+    /**
+     * Returns `true` if a background parse finished for the given Message since it was bound with a
+     * placeholder, in which case it should be bound without a placeholder.  Must be called from the
+     * UI thread.
+     */
+    public boolean consumeCompleted(Message message) {
+        return mCompleted.remove(message.getId());
+    }
+
+    /**
+     * Requests parsing of Messages ahead of `position` in the current scroll direction.  Must be
+     * called from the UI thread.
+     */
+    public void parseAhead(int position) {
+        int direction = (position >= mLastBoundPosition) ? 1 : -1;
+        mLastBoundPosition = position;
+        int count = mSource.getItemCount();
+        for (int i = 1; i <= LOOK_AHEAD; i++) {
+            int aheadPosition = position + direction * i;
+            if (aheadPosition < 0 || aheadPosition >= count) break;
+            Message message = mSource.getItem(aheadPosition);
+            if (message == null) continue;
+            AtlasCellFactory factory = mSource.getCellFactory(message);
+            if (factory == null || factory.getCachedContent(message) != null) continue;
+            enqueue(message, aheadPosition);
+        }
+    }
+
+    /**
+     * Drops all queued parses and pending refreshes.  Parses already running are allowed to finish.
+     */
+    public void cancel() {
+        mExecutor.getQueue().clear();
+        synchronized (mInFlight) {
+            mInFlight.clear();
+        }
+        mAwaitingRebind.clear();
+        mCompleted.clear();
+    }
+
+    private void enqueue(Message message, int position) {
+        synchronized (mInFlight) {
+            if (!mInFlight.add(message.getId())) return;
+        }
+        mExecutor.execute(new ParseTask(message, position));
+    }
+
+    private void onParsed(Message message, int lastPosition) {
+        Uri id = message.getId();
+        if (!mAwaitingRebind.remove(id)) return;
+        Integer position = mSource.getPosition(message, lastPosition);
+        if (position == null || position < 0) return;
+        mCompleted.add(id);
+        mSource.onParsed(position);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Source provides the MessagePreParser with Messages, their CellFactories, and a sink for
+     * refreshes.
+     */
+    interface Source {
+        int getItemCount();
+
+        Message getItem(int position);
+
+        Integer getPosition(Message message, int lastPosition);
+
+        AtlasCellFactory getCellFactory(Message message);
+
+        void onParsed(int position);
+    }
+
+    private class ParseTask implements Runnable {
+        private final Message mMessage;
+        private final int mPosition;
+
+        ParseTask(Message message, int position) {
+            mMessage = message;
+            mPosition = position;
+        }
+
+        @Override
+        public void run() {
+            try {
+                AtlasCellFactory factory = mSource.getCellFactory(mMessage);
+                if (factory != null) factory.getParsedContent(mLayerClient, mParticipantProvider, mMessage);
+            } catch (Exception e) {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e(e.getMessage(), e);
+                }
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(mMessage.getId());
+                }
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onParsed(mMessage, mPosition);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest queued parse to make room for the newest, which is closest to the current
+     * scroll position.  Dropped parses awaiting a rebind are refreshed immediately so they are
+     * parsed synchronously on their next bind.
+     */
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) return;
+            BlockingQueue<Runnable> queue = executor.getQueue();
+            Runnable dropped = queue.poll();
+            if (dropped != null) abandon((ParseTask) dropped);
+            if (!queue.offer(r)) abandon((ParseTask) r);
+        }
+
+        private void abandon(final ParseTask task) {
+            synchronized (mInFlight) {
+                mInFlight.remove(task.mMessage.getId());
+            }
+            mUiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onParsed(task.mMessage, task.mPosition);
+                }
+            });
+        }
+    }
+
+    private static class ParserThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AtlasMessagePreParser-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.layer.atlas.adapters;
+
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Message;
+
+import java.util.Map;
+
+/**
+ * MessageReceiptIndex tracks the latest Message sent by the authenticated user with a READ
+ * recipient status and the latest with a DELIVERED recipient status.  Rather than scanning the
+ * whole list on every change, the index is updated from the positions reported by
+ * RecyclerViewController callbacks, and only scans backwards from a changed position when a
+ * tracked Message loses its status or is removed.  Scans stop at the prefix of the list known to
+ * hold no Message with the status, so a status no Message has any more is not searched for again
+ * across the whole list.  A full scan is only performed by rebuild().
+ */
+class MessageReceiptIndex {
+    private static final Message.RecipientStatus[] TRACKED_STATUSES = {Message.RecipientStatus.READ, Message.RecipientStatus.DELIVERED};
+
+    private final LayerClient mLayerClient;
+    private final Source mSource;
+
+    // Latest Message and position for each tracked status, indexed like TRACKED_STATUSES
+    private final Message[] mMessages = new Message[TRACKED_STATUSES.length];
+    private final int[] mPositions = new int[TRACKED_STATUSES.length];
+
+    // Positions below these hold no Message with the tracked status, indexed like TRACKED_STATUSES
+    private final int[] mEmptyBelow = new int[TRACKED_STATUSES.length];
+
+    // Previous state, used to find positions needing a refresh
+    private final Message[] mPreviousMessages = new Message[TRACKED_STATUSES.length];
+    private final int[] mPreviousPositions = new int[TRACKED_STATUSES.length];
+
+    public MessageReceiptIndex(LayerClient layerClient, Source source) {
+        mLayerClient = layerClient;
+        mSource = source;
+    }
+
+    /**
+     * Returns the latest Message with the given RecipientStatus, or `null` if none is tracked.
+     */
+    public Message get(Message.RecipientStatus status) {
+        int index = indexOf(status);
+        return index < 0 ? null : mMessages[index];
+    }
+
+    /**
+     * Rebuilds the index by scanning from the end of the list.  Used when the whole data set
+     * changes, so no individual positions are refreshed.
+     */
+    public void rebuild() {
+        String userId = mLayerClient.getAuthenticatedUserId();
+        clear();
+        int remaining = TRACKED_STATUSES.length;
+        for (int position = mSource.getItemCount() - 1; position >= 0 && remaining > 0; position--) {
+            Message message = mSource.getItem(position);
+            for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+                if (mMessages[i] != null) continue;
+                if (!hasStatus(userId, message, TRACKED_STATUSES[i])) continue;
+                mMessages[i] = message;
+                mPositions[i] = position;
+                remaining--;
+            }
+        }
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            mEmptyBelow[i] = (mMessages[i] == null) ? mSource.getItemCount() : 0;
+        }
+    }
+
+    public void onItemRangeChanged(int positionStart, int itemCount) {
+        snapshot();
+        String userId = mLayerClient.getAuthenticatedUserId();
+        int positionEnd = positionStart + itemCount;
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            int emptyBelow = mEmptyBelow[i];
+            mEmptyBelow[i] = Math.min(emptyBelow, positionStart);
+            int candidate = findLatest(userId, TRACKED_STATUSES[i], positionEnd - 1, positionStart);
+            if (candidate < 0) mEmptyBelow[i] = Math.max(mEmptyBelow[i], emptyBelow);
+            if (mMessages[i] != null && mPositions[i] >= positionStart && mPositions[i] < positionEnd) {
+                // The tracked Message changed; the latest in the range wins, or else the latest
+                // before the range.
+                set(i, candidate >= 0 ? candidate : findLatest(userId, TRACKED_STATUSES[i], positionStart - 1, 0));
+            } else if (candidate >= 0 && (mMessages[i] == null || candidate > mPositions[i])) {
+                set(i, candidate);
+            }
+        }
+        notifyChanges();
+    }
+
+    public void onItemRangeInserted(int positionStart, int itemCount) {
+        snapshot();
+        String userId = mLayerClient.getAuthenticatedUserId();
+        int positionEnd = positionStart + itemCount;
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            if (mMessages[i] != null && mPositions[i] >= positionStart) {
+                mPositions[i] += itemCount;
+                mPreviousPositions[i] += itemCount;
+            }
+            int emptyBelow = mEmptyBelow[i];
+            mEmptyBelow[i] = Math.min(emptyBelow, positionStart);
+            int candidate = findLatest(userId, TRACKED_STATUSES[i], positionEnd - 1, positionStart);
+            if (candidate < 0 && positionStart <= emptyBelow) mEmptyBelow[i] = emptyBelow + itemCount;
+            if (candidate >= 0 && (mMessages[i] == null || candidate > mPositions[i])) {
+                set(i, candidate);
+            }
+        }
+        notifyChanges();
+    }
+
+    public void onItemRangeRemoved(int positionStart, int itemCount) {
+        snapshot();
+        String userId = mLayerClient.getAuthenticatedUserId();
+        int positionEnd = positionStart + itemCount;
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            if (positionEnd <= mEmptyBelow[i]) {
+                mEmptyBelow[i] -= itemCount;
+            } else if (positionStart < mEmptyBelow[i]) {
+                mEmptyBelow[i] = positionStart;
+            }
+            if (mMessages[i] == null) continue;
+            if (mPositions[i] >= positionEnd) {
+                mPositions[i] -= itemCount;
+                mPreviousPositions[i] -= itemCount;
+            } else if (mPositions[i] >= positionStart) {
+                // The tracked Message was removed; its previous position no longer exists.
+                mPreviousMessages[i] = null;
+                set(i, findLatest(userId, TRACKED_STATUSES[i], positionStart - 1, 0));
+            }
+        }
+        notifyChanges();
+    }
+
+    public void onItemMoved(int fromPosition, int toPosition) {
+        snapshot();
+        String userId = mLayerClient.getAuthenticatedUserId();
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            // Removed from `fromPosition`, then inserted at `toPosition`
+            if (fromPosition < mEmptyBelow[i]) mEmptyBelow[i]--;
+            if (toPosition <= mEmptyBelow[i]) {
+                mEmptyBelow[i] = hasStatus(userId, mSource.getItem(toPosition), TRACKED_STATUSES[i]) ? toPosition : mEmptyBelow[i] + 1;
+            }
+            if (mMessages[i] == null) {
+                if (hasStatus(userId, mSource.getItem(toPosition), TRACKED_STATUSES[i])) set(i, toPosition);
+                continue;
+            }
+            int position = mPositions[i];
+            if (position == fromPosition) {
+                // The tracked Message moved; anything between the two positions may now be later.
+                mPreviousPositions[i] = toPosition;
+                set(i, findLatest(userId, TRACKED_STATUSES[i], Math.max(fromPosition, toPosition), 0));
+            } else {
+                int moved = movedPosition(position, fromPosition, toPosition);
+                mPositions[i] = moved;
+                mPreviousPositions[i] = moved;
+                if (toPosition > moved && hasStatus(userId, mSource.getItem(toPosition), TRACKED_STATUSES[i])) {
+                    set(i, toPosition);
+                }
+            }
+        }
+        notifyChanges();
+    }
+
+    private static int movedPosition(int position, int fromPosition, int toPosition) {
+        if (fromPosition < position && position <= toPosition) return position - 1;
+        if (toPosition <= position && position < fromPosition) return position + 1;
+        return position;
+    }
+
+    /**
+     * Returns the latest position in [lowest, highest] holding a Message sent by `userId` with
+     * another member in the given RecipientStatus, or -1 if none is found.  Positions in the
+     * known-empty prefix are skipped, and the prefix grows when a search reaches it.
+     */
+    private int findLatest(String userId, Message.RecipientStatus status, int highest, int lowest) {
+        int index = indexOf(status);
+        highest = Math.min(highest, mSource.getItemCount() - 1);
+        int emptyBelow = mEmptyBelow[index];
+        for (int position = highest; position >= Math.max(lowest, emptyBelow); position--) {
+            if (hasStatus(userId, mSource.getItem(position), status)) return position;
+        }
+        if (lowest <= emptyBelow && highest >= emptyBelow) mEmptyBelow[index] = highest + 1;
+        return -1;
+    }
+
+    private static boolean hasStatus(String userId, Message message, Message.RecipientStatus status) {
+        if (message == null) return false;
+
+        // Only display receipts for our own messages
+        if (!userId.equals(message.getSender().getUserId())) return false;
+
+        for (Map.Entry<String, Message.RecipientStatus> entry : message.getRecipientStatus().entrySet()) {
+            // Only show receipts for other members
+            if (entry.getKey().equals(userId)) continue;
+            if (entry.getValue() == status) return true;
+        }
+        return false;
+    }
+
+    private void set(int index, int position) {
+        if (position < 0) {
+            mMessages[index] = null;
+            return;
+        }
+        mMessages[index] = mSource.getItem(position);
+        mPositions[index] = position;
+    }
+
+    private void clear() {
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            mMessages[i] = null;
+        }
+    }
+
+    private void snapshot() {
+        System.arraycopy(mMessages, 0, mPreviousMessages, 0, mMessages.length);
+        System.arraycopy(mPositions, 0, mPreviousPositions, 0, mPositions.length);
+    }
+
+    /**
+     * Refreshes positions whose receipt changed between the snapshot and the current state.
+     */
+    private void notifyChanges() {
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            Message previous = mPreviousMessages[i];
+            Message current = mMessages[i];
+            if (previous == current) continue;
+            if (previous != null) mSource.onReceiptChanged(mPreviousPositions[i]);
+            if (current != null) mSource.onReceiptChanged(mPositions[i]);
+        }
+    }
+
+    private static int indexOf(Message.RecipientStatus status) {
+        for (int i = 0; i < TRACKED_STATUSES.length; i++) {
+            if (TRACKED_STATUSES[i] == status) return i;
+        }
+        return -1;
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Source provides the MessageReceiptIndex with Messages and a sink for refreshes.
+     */
+    interface Source {
+        int getItemCount();
+
+        Message getItem(int position);
+
+        void onReceiptChanged(int position);
+    }
+}
@@ -1,7 +1,6 @@
 package com.layer.atlas.messagetypes;
 
 import android.support.v7.widget.RecyclerView;
-import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
@@ -9,6 +8,8 @@ import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Message;
 
+import java.util.Set;
+
 /**
  * CellFactories manage one or more types ot Messages for display within an AtlasMessagesAdapter.
  * Factories know what types of Messages they can render, generate ViewHolders for rendering their
@@ -16,21 +17,20 @@ import com.layer.sdk.messaging.Message;
  * display.
  */
 public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHolder, Tcache extends AtlasCellFactory.ParsedContent> {
-    private final LruCache<String, Tcache> mCache;
+    private final ParsedContentCache.Partition mCachePartition;
     protected MessageStyle mMessageStyle;
 
     /**
-     * Constructs an AtlasCellFactory with a parsed content cache of `cacheBytes` size.
+     * Constructs an AtlasCellFactory whose parsed content is kept in the shared ParsedContentCache.
+     * Content is stored in a Partition named after this class, weighted by `cacheBytes` relative to
+     * ParsedContentCache.DEFAULT_PARTITION_BYTES.
      *
-     * @param cacheBytes Maximum bytes of parsed content to maintain in an LRU cache.
+     * @param cacheBytes Relative share of the shared parsed content cache for this CellFactory.
+     * @see ParsedContentCache
      */
     public AtlasCellFactory(int cacheBytes) {
-        mCache = new LruCache<String, Tcache>(cacheBytes) {
-            @Override
-            protected int sizeOf(String key, Tcache value) {
-                return value.sizeOf();
-            }
-        };
+        mCachePartition = ParsedContentCache.getInstance().getPartition(getClass().getName());
+        mCachePartition.setWeight((float) cacheBytes / (float) ParsedContentCache.DEFAULT_PARTITION_BYTES);
     }
 
     /**
@@ -42,6 +42,21 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
      */
     public abstract boolean isBindable(Message message);
 
+    /**
+     * Optionally returns the MIME types of the first MessagePart of Messages this CellFactory can
+     * bind.  When declared, the AtlasMessagesAdapter only calls isBindable() for Messages whose
+     * first MessagePart has one of these MIME types, which avoids probing every CellFactory for
+     * every Message.  Returns `null` by default, meaning isBindable() is called for all Messages.
+     * Built-in CellFactories only declare their MIME types for their own class, so subclasses
+     * which bind more broadly are still consulted; subclasses may declare their own.
+     *
+     * @return The Set of first MessagePart MIME types this CellFactory can bind, or `null`.
+     * @see #isBindable(Message)
+     */
+    public Set<String> getMimeTypes() {
+        return null;
+    }
+
     /**
      * This method must perform two actions.  First, any required View hierarchy for rendering this
      * CellFactory's Messages must be added to the provided `cellView` - either by inflating a
@@ -79,6 +94,21 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
      */
     public abstract void bindCellHolder(Tholder cellHolder, Tcache cached, Message message, CellHolderSpecs specs);
 
+    /**
+     * Optionally renders a placeholder for a Message whose content has not been parsed yet.  When
+     * this returns `true`, the AtlasMessagesAdapter parses the Message on a background thread and
+     * calls bindCellHolder() once parsing finishes.  When this returns `false` (the default), the
+     * Message is parsed on the main thread just prior to binding.
+     *
+     * @param cellHolder CellHolder to render a placeholder with.
+     * @param message    Message whose content is being parsed.
+     * @param specs      Information about the CellHolder.
+     * @return `true` if a placeholder was bound, or `false` to parse before binding.
+     */
+    public boolean bindPlaceholder(Tholder cellHolder, Message message, CellHolderSpecs specs) {
+        return false;
+    }
+
     public void setStyle(MessageStyle messageStyle) {
         this.mMessageStyle = messageStyle;
     }
@@ -103,15 +133,39 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
      * @param message Message to return parsed content object for.
      * @return Parsed content object for the given Message.
      */
+    @SuppressWarnings("unchecked")
     public Tcache getParsedContent(LayerClient layerClient, ParticipantProvider participantProvider, Message message) {
+        ParsedContentCache cache = ParsedContentCache.getInstance();
         String id = message.getId().toString();
-        Tcache value = mCache.get(id);
+        Tcache value = (Tcache) cache.get(mCachePartition, id);
         if (value != null) return value;
         value = parseContent(layerClient, participantProvider, message);
-        if (value != null) mCache.put(id, value);
+        if (value != null) cache.put(mCachePartition, id, value);
         return value;
     }
 
+    /**
+     * Returns this CellFactory's Partition of the shared ParsedContentCache, e.g. for adjusting its
+     * weight.
+     *
+     * @return This CellFactory's ParsedContentCache Partition.
+     */
+    public ParsedContentCache.Partition getCachePartition() {
+        return mCachePartition;
+    }
+
+    /**
+     * Returns previously parsed content for this Message, or `null` if it has not been parsed.
+     * Unlike getParsedContent(), this never parses.
+     *
+     * @param message Message to return parsed content object for.
+     * @return Parsed content object for the given Message, or `null`.
+     */
+    @SuppressWarnings("unchecked")
+    public Tcache getCachedContent(Message message) {
+        return (Tcache) ParsedContentCache.getInstance().peek(mCachePartition, message.getId().toString());
+    }
+
     /**
      * CellHolders maintain a reference to their Message, and allow the capture of user interactions
      * with their messages (e.g. clicks).  CellHolders can be extended to act as View caches, where
@@ -156,7 +210,8 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
      */
     public interface ParsedContent {
         /**
-         * Returns the size of this ParsedContent in bytes.
+         * Returns the size of this ParsedContent in bytes.  Implementations should estimate the
+         * retained heap size, e.g. with HeapSize, so cache budgets reflect actual memory use.
          *
          * @return The size of this ParsedContent in bytes.
          */
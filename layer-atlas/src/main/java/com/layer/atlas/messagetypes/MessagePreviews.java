@@ -0,0 +1,225 @@
+package com.layer.atlas.messagetypes;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.layer.atlas.messagetypes.generic.GenericCellFactory;
+import com.layer.atlas.messagetypes.location.LocationCellFactory;
+import com.layer.atlas.messagetypes.singlepartimage.SinglePartImageCellFactory;
+import com.layer.atlas.messagetypes.text.TextCellFactory;
+import com.layer.atlas.messagetypes.threepartimage.ThreePartImageCellFactory;
+import com.layer.atlas.util.Log;
+import com.layer.sdk.messaging.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * MessagePreviews generates short text previews of Messages, e.g. for the last Message of a
+ * Conversation.  Message types register a Provider; Providers registered later take precedence
+ * over earlier ones and over the built-in text, image, and location Providers, and Messages no
+ * Provider handles get a generic description of their MessageParts.  Previews are truncated to
+ * getMaxLength() characters and cached by Message ID.
+ */
+public final class MessagePreviews {
+    public static final int DEFAULT_MAX_LENGTH = 200;
+    public static final String ELLIPSIS = "…";
+
+    private static final int CACHE_SIZE = 500;
+    private static final MessagePreviews sInstance = new MessagePreviews();
+
+    private final List<Provider> mProviders = new CopyOnWriteArrayList<Provider>();
+    private final LruCache<Uri, String> mPreviews = new LruCache<Uri, String>(CACHE_SIZE);
+    private volatile int mMaxLength = DEFAULT_MAX_LENGTH;
+
+    private MessagePreviews() {
+        // Built-in Providers, in order of precedence
+        mProviders.add(new Provider() {
+            @Override
+            public boolean isType(Message message) {
+                return TextCellFactory.isType(message);
+            }
+
+            @Override
+            public String getPreview(Context context, Message message, int maxLength) {
+                return TextCellFactory.getMessagePreview(context, message, maxLength);
+            }
+        });
+        mProviders.add(new Provider() {
+            @Override
+            public boolean isType(Message message) {
+                return ThreePartImageCellFactory.isType(message);
+            }
+
+            @Override
+            public String getPreview(Context context, Message message, int maxLength) {
+                return ThreePartImageCellFactory.getMessagePreview(context, message);
+            }
+        });
+        mProviders.add(new Provider() {
+            @Override
+            public boolean isType(Message message) {
+                return LocationCellFactory.isType(message);
+            }
+
+            @Override
+            public String getPreview(Context context, Message message, int maxLength) {
+                return LocationCellFactory.getMessagePreview(context, message);
+            }
+        });
+        mProviders.add(new Provider() {
+            @Override
+            public boolean isType(Message message) {
+                return SinglePartImageCellFactory.isType(message);
+            }
+
+            @Override
+            public String getPreview(Context context, Message message, int maxLength) {
+                return SinglePartImageCellFactory.getMessagePreview(context, message);
+            }
+        });
+    }
+
+    public static MessagePreviews getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Registers a Provider, which takes precedence over previously registered Providers.
+     *
+     * @param provider Provider to register.
+     */
+    public void registerProvider(Provider provider) {
+        mProviders.add(0, provider);
+        mPreviews.evictAll();
+    }
+
+    public void unregisterProvider(Provider provider) {
+        mProviders.remove(provider);
+        mPreviews.evictAll();
+    }
+
+    /**
+     * Sets the maximum number of characters in a preview, excluding a trailing ellipsis.
+     *
+     * @param maxLength Maximum preview length.
+     */
+    public void setMaxLength(int maxLength) {
+        if (maxLength < 1) throw new IllegalArgumentException("Max length must be positive");
+        mMaxLength = maxLength;
+        mPreviews.evictAll();
+    }
+
+    public int getMaxLength() {
+        return mMaxLength;
+    }
+
+    /**
+     * Evicts all cached previews, e.g. after a locale change.
+     */
+    public void evictAll() {
+        mPreviews.evictAll();
+    }
+
+    /**
+     * Returns a preview of the given Message, from the cache when available.
+     *
+     * @param context Context for loading preview resources.
+     * @param message Message to preview.
+     * @return A preview of the given Message.
+     */
+    public String getPreview(Context context, Message message) {
+        Uri id = message.getId();
+        String preview = mPreviews.get(id);
+        if (preview != null) return preview;
+
+        int maxLength = mMaxLength;
+        for (Provider provider : mProviders) {
+            if (!provider.isType(message)) continue;
+            preview = provider.getPreview(context, message, maxLength);
+            // Content is not yet available; don't cache.
+            if (preview == null) return "";
+            break;
+        }
+        if (preview == null) preview = GenericCellFactory.getPreview(context, message);
+        preview = truncate(preview, maxLength);
+        mPreviews.put(id, preview);
+        return preview;
+    }
+
+    /**
+     * Truncates `string` to at most `maxLength` characters plus an ellipsis, without splitting a
+     * surrogate pair.
+     */
+    public static String truncate(String string, int maxLength) {
+        if (string.length() <= maxLength) return string;
+        int length = maxLength;
+        if (Character.isHighSurrogate(string.charAt(length - 1))) length--;
+        return string.substring(0, length) + ELLIPSIS;
+    }
+
+    /**
+     * Decodes at most `maxLength` UTF-8 characters from `in`, plus an ellipsis if more remain,
+     * without reading the rest of the stream.  Closes `in`.
+     *
+     * @param in        Stream of UTF-8 text.
+     * @param maxLength Maximum number of characters to decode.
+     * @return The decoded, possibly truncated, text.
+     */
+    public static String decodeTruncated(InputStream in, int maxLength) {
+        char[] buffer = new char[maxLength + 1];
+        int count = 0;
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(in, "UTF-8");
+            int read;
+            while (count < buffer.length && (read = reader.read(buffer, count, buffer.length - count)) != -1) {
+                count += read;
+            }
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) {
+                Log.e(e.getMessage(), e);
+            }
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (count <= maxLength) return new String(buffer, 0, count);
+        int length = maxLength;
+        if (Character.isHighSurrogate(buffer[length - 1])) length--;
+        return new String(buffer, 0, length) + ELLIPSIS;
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Provider generates previews for one type of Message.
+     */
+    public interface Provider {
+        /**
+         * Returns `true` if this Provider generates previews for the given Message.
+         */
+        boolean isType(Message message);
+
+        /**
+         * Returns a preview of the given Message of about `maxLength` characters, or `null` if its
+         * content is not yet available.  Longer previews are truncated.
+         */
+        String getPreview(Context context, Message message, int maxLength);
+    }
+}
@@ -0,0 +1,303 @@
+package com.layer.atlas.messagetypes;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ParsedContentCache is a process-wide LRU cache of AtlasCellFactory.ParsedContent shared by all
+ * AtlasCellFactories under a single byte budget.  Each AtlasCellFactory class stores its content in
+ * a named Partition, which keeps hit, miss, and eviction counters and a weight.  Partitions with a
+ * higher weight are charged fewer bytes per entry, so their content is retained longer when
+ * factories compete for the shared budget.
+ *
+ * Register with registerComponentCallbacks() (or forward Activity/Application onTrimMemory() calls
+ * to onTrimMemory()) to shrink the cache under memory pressure.
+ */
+public final class ParsedContentCache {
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_PARTITION_BYTES = 256 * 1024;
+
+    private static final ParsedContentCache sInstance = new ParsedContentCache(DEFAULT_MAX_BYTES);
+
+    // Access-ordered for LRU eviction; guarded by this
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private final Map<String, Partition> mPartitions = new HashMap<String, Partition>();
+    private int mMaxBytes;
+    private int mSizeBytes;
+
+    private ComponentCallbacks2 mComponentCallbacks;
+
+    private ParsedContentCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public static ParsedContentCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the Partition with the given name, creating it with a weight of 1 if needed.
+     *
+     * @param name Partition name, typically the AtlasCellFactory class name.
+     * @return The named Partition.
+     */
+    public synchronized Partition getPartition(String name) {
+        Partition partition = mPartitions.get(name);
+        if (partition == null) {
+            partition = new Partition(name);
+            mPartitions.put(name, partition);
+        }
+        return partition;
+    }
+
+    /**
+     * Sets the shared byte budget, evicting least-recently used content if needed.
+     *
+     * @param maxBytes Maximum weighted bytes of parsed content to retain.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Max bytes must be positive");
+        mMaxBytes = maxBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the weighted bytes currently charged against the budget.
+     */
+    public synchronized int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized AtlasCellFactory.ParsedContent get(Partition partition, String id) {
+        Entry entry = mEntries.get(new Key(partition, id));
+        if (entry == null) {
+            partition.mMisses++;
+            return null;
+        }
+        partition.mHits++;
+        return entry.mValue;
+    }
+
+    /**
+     * Returns cached content without updating hit and miss counters.
+     */
+    public synchronized AtlasCellFactory.ParsedContent peek(Partition partition, String id) {
+        Entry entry = mEntries.get(new Key(partition, id));
+        return entry == null ? null : entry.mValue;
+    }
+
+    public synchronized void put(Partition partition, String id, AtlasCellFactory.ParsedContent value) {
+        int bytes = Math.max(0, value.sizeOf());
+        int charge = partition.charge(bytes);
+        if (charge > mMaxBytes) return;
+        Entry previous = mEntries.put(new Key(partition, id), new Entry(value, bytes, charge));
+        if (previous != null) discharge(partition, previous);
+        mSizeBytes += charge;
+        partition.mBytes += bytes;
+        partition.mEntries++;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void remove(Partition partition, String id) {
+        Entry entry = mEntries.remove(new Key(partition, id));
+        if (entry != null) discharge(partition, entry);
+    }
+
+    /**
+     * Evicts all parsed content from all Partitions.
+     */
+    public synchronized void evictAll() {
+        trimToSize(0);
+    }
+
+    /**
+     * Evicts least-recently used content until the weighted size is at most `maxBytes`.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<Key, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            Partition partition = eldest.getKey().mPartition;
+            discharge(partition, eldest.getValue());
+            partition.mEvictions++;
+        }
+    }
+
+    /**
+     * Shrinks the cache in response to ComponentCallbacks2.onTrimMemory().
+     *
+     * @param level Trim level passed to onTrimMemory().
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getMaxBytes() / 2);
+        }
+    }
+
+    /**
+     * Registers with the application Context to receive onTrimMemory() and onLowMemory() calls.
+     *
+     * @param context Context whose application Context to register with.
+     */
+    public synchronized void registerComponentCallbacks(Context context) {
+        if (mComponentCallbacks != null) return;
+        mComponentCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                ParsedContentCache.this.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Parsed content does not depend on configuration
+            }
+
+            @Override
+            public void onLowMemory() {
+                evictAll();
+            }
+        };
+        context.getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    /**
+     * Returns a snapshot of counters for each Partition, keyed by Partition name.
+     */
+    public synchronized Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new HashMap<String, Stats>(mPartitions.size());
+        for (Partition partition : mPartitions.values()) {
+            stats.put(partition.mName, new Stats(partition));
+        }
+        return stats;
+    }
+
+    private void discharge(Partition partition, Entry entry) {
+        mSizeBytes -= entry.mCharge;
+        partition.mBytes -= entry.mBytes;
+        partition.mEntries--;
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Partition holds one AtlasCellFactory class's share of the cache and its counters.  Counters
+     * are guarded by the ParsedContentCache.
+     */
+    public static final class Partition {
+        private final String mName;
+        private volatile float mWeight = 1f;
+
+        private long mHits;
+        private long mMisses;
+        private long mEvictions;
+        private int mEntries;
+        private int mBytes;
+
+        private Partition(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Sets the weight of this Partition.  Entries are charged `bytes / weight` against the
+         * shared budget, so a Partition with weight 2 can retain twice the bytes of one with
+         * weight 1.
+         *
+         * @param weight Positive weight for this Partition.
+         */
+        public void setWeight(float weight) {
+            if (weight <= 0) throw new IllegalArgumentException("Weight must be positive");
+            mWeight = weight;
+        }
+
+        public float getWeight() {
+            return mWeight;
+        }
+
+        private int charge(int bytes) {
+            return Math.max(1, Math.round(bytes / mWeight));
+        }
+    }
+
+    /**
+     * Stats is an immutable snapshot of a Partition's counters.
+     */
+    public static final class Stats {
+        public final String name;
+        public final float weight;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int entries;
+        public final int bytes;
+
+        private Stats(Partition partition) {
+            name = partition.mName;
+            weight = partition.mWeight;
+            hits = partition.mHits;
+            misses = partition.mMisses;
+            evictions = partition.mEvictions;
+            entries = partition.mEntries;
+            bytes = partition.mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{weight=" + weight + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", entries=" + entries + ", bytes=" + bytes + "}";
+        }
+    }
+
+    private static final class Key {
+        private final Partition mPartition;
+        private final String mId;
+
+        Key(Partition partition, String id) {
+            mPartition = partition;
+            mId = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return mPartition == key.mPartition && mId.equals(key.mId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mPartition.hashCode() + mId.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final AtlasCellFactory.ParsedContent mValue;
+        private final int mBytes;
+        private final int mCharge;
+
+        Entry(AtlasCellFactory.ParsedContent value, int bytes, int charge) {
+            mValue = value;
+            mBytes = bytes;
+            mCharge = charge;
+        }
+    }
+}
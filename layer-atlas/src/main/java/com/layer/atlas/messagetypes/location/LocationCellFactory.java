@@ -13,6 +13,7 @@ import android.widget.ImageView;
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.picasso.transformations.RoundedTransform;
@@ -26,10 +27,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Set;
 
 public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.CellHolder, LocationCellFactory.Location> implements View.OnClickListener {
     private static final String PICASSO_TAG = LocationCellFactory.class.getSimpleName();
     public static final String MIME_TYPE = "location/coordinate";
+    private static final Set<String> MIME_TYPES = Collections.singleton(MIME_TYPE);
     public static final String KEY_LATITUDE = "lat";
     public static final String KEY_LONGITUDE = "lon";
     public static final String KEY_LABEL = "label";
@@ -55,6 +59,12 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
         return context.getString(R.string.atlas_message_preview_location);
     }
 
+    @Override
+    public Set<String> getMimeTypes() {
+        // Subclasses may override isBindable(), so they must declare their own MIME types
+        return getClass() == LocationCellFactory.class ? MIME_TYPES : null;
+    }
+
     @Override
     public boolean isBindable(Message message) {
         return LocationCellFactory.isType(message);
@@ -90,10 +100,7 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
         // Google Static Map API has max dimension 640
         int mapWidth = Math.min(640, specs.maxWidth);
         int mapHeight = (int) Math.round((double) mapWidth / GOLDEN_RATIO);
-        int[] cellDims = Util.scaleDownInside(specs.maxWidth, (int) Math.round((double) specs.maxWidth / GOLDEN_RATIO), specs.maxWidth, specs.maxHeight);
-        ViewGroup.LayoutParams params = cellHolder.mImageView.getLayoutParams();
-        params.width = cellDims[0];
-        params.height = cellDims[1];
+        int[] cellDims = setCellDimensions(cellHolder, specs);
         cellHolder.mProgressBar.show();
         mPicasso.load("https://maps.googleapis.com/maps/api/staticmap?zoom=16&maptype=roadmap&scale=2&center=" + location.mLatitude + "," + location.mLongitude + "&markers=color:red%7C" + location.mLatitude + "," + location.mLongitude + "&size=" + mapWidth + "x" + mapHeight)
                 .tag(PICASSO_TAG).placeholder(PLACEHOLDER).resize(cellDims[0], cellDims[1])
@@ -110,6 +117,28 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
         });
     }
 
+    /**
+     * Cell dimensions only depend on the specs, so the placeholder is sized like the final map.
+     */
+    @Override
+    public boolean bindPlaceholder(CellHolder cellHolder, Message message, CellHolderSpecs specs) {
+        mPicasso.cancelRequest(cellHolder.mImageView);
+        cellHolder.mImageView.setTag(null);
+        cellHolder.mImageView.setOnClickListener(null);
+        setCellDimensions(cellHolder, specs);
+        cellHolder.mImageView.setImageResource(PLACEHOLDER);
+        cellHolder.mProgressBar.show();
+        return true;
+    }
+
+    private static int[] setCellDimensions(CellHolder cellHolder, CellHolderSpecs specs) {
+        int[] cellDims = Util.scaleDownInside(specs.maxWidth, (int) Math.round((double) specs.maxWidth / GOLDEN_RATIO), specs.maxWidth, specs.maxHeight);
+        ViewGroup.LayoutParams params = cellHolder.mImageView.getLayoutParams();
+        params.width = cellDims[0];
+        params.height = cellDims[1];
+        return cellDims;
+    }
+
     @Override
     public void onClick(View v) {
         Location location = (Location) v.getTag();
@@ -138,7 +167,7 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
 
         @Override
         public int sizeOf() {
-            return (mLabel == null ? 0 : mLabel.getBytes().length) + ((Double.SIZE + Double.SIZE) / Byte.SIZE);
+            return HeapSize.ofObject(1, 2 * HeapSize.DOUBLE) + HeapSize.ofString(mLabel);
         }
     }
 
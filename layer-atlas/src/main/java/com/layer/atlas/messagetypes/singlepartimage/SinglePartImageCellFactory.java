@@ -16,6 +16,7 @@ import android.widget.ImageView;
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.imagepopup.AtlasImagePopupActivity;
 import com.layer.atlas.util.picasso.transformations.RoundedTransform;
 import com.layer.sdk.LayerClient;
@@ -154,7 +155,7 @@ public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImage
 
         @Override
         public int sizeOf() {
-            return mId.toString().getBytes().length;
+            return HeapSize.ofObject(1, 0) + HeapSize.ofUri(mId);
         }
     }
 }
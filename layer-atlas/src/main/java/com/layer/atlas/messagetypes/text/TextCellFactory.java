@@ -11,16 +11,22 @@ import android.widget.Toast;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.messagetypes.MessagePreviews;
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Actor;
 import com.layer.sdk.messaging.Message;
 import com.layer.sdk.messaging.MessagePart;
 
+import java.util.Collections;
+import java.util.Set;
+
 public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder, TextCellFactory.TextInfo> implements View.OnLongClickListener {
     public final static String MIME_TYPE = "text/plain";
+    private final static Set<String> MIME_TYPES = Collections.singleton(MIME_TYPE);
 
     public TextCellFactory() {
         super(256 * 1024);
@@ -36,6 +42,24 @@ public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder
         return part.isContentReady() ? new String(part.getData()) : "";
     }
 
+    /**
+     * Returns at most `maxLength` characters of the Message's text, plus an ellipsis if truncated,
+     * decoding only that much of the MessagePart.  Returns `null` if the MessagePart's content is
+     * not yet available.
+     */
+    public static String getMessagePreview(Context context, Message message, int maxLength) {
+        MessagePart part = message.getMessageParts().get(0);
+        // For large text content, the MessagePart may not be downloaded yet.
+        if (!part.isContentReady()) return null;
+        return MessagePreviews.decodeTruncated(part.getDataStream(), maxLength);
+    }
+
+    @Override
+    public Set<String> getMimeTypes() {
+        // Subclasses may override isBindable(), so they must declare their own MIME types
+        return getClass() == TextCellFactory.class ? MIME_TYPES : null;
+    }
+
     @Override
     public boolean isBindable(Message message) {
         return TextCellFactory.isType(message);
@@ -105,7 +129,7 @@ public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder
         public TextInfo(String string, String clipboardPrefix) {
             mString = string;
             mClipboardPrefix = clipboardPrefix;
-            mSize = mString.getBytes().length + mClipboardPrefix.getBytes().length;
+            mSize = HeapSize.ofObject(2, HeapSize.INT) + HeapSize.ofString(mString) + HeapSize.ofString(mClipboardPrefix);
         }
 
         public String getString() {
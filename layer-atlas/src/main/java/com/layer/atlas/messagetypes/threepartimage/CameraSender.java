@@ -13,7 +13,6 @@ import com.layer.atlas.util.Log;
 import com.layer.sdk.messaging.Message;
 
 import java.io.File;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -31,6 +30,25 @@ public class CameraSender extends AttachmentSender {
 
     private WeakReference<Activity> mActivity = new WeakReference<Activity>(null);
 
+    // Sends ThreePartImage Messages once built in the background
+    private final ThreePartImageBuilder.Callback mBuildCallback = new ThreePartImageBuilder.Callback() {
+        @Override
+        public void onProgress(ThreePartImageBuilder.Request request, float fraction) {
+        }
+
+        @Override
+        public void onBuilt(ThreePartImageBuilder.Request request, Message message) {
+            String myName = getParticipantProvider().getParticipant(getLayerClient().getAuthenticatedUserId()).getName();
+            message.getOptions().pushNotificationMessage(getContext().getString(R.string.atlas_notification_image, myName));
+            send(message);
+        }
+
+        @Override
+        public void onFailed(ThreePartImageBuilder.Request request, Exception e) {
+            // Logged by ThreePartImageBuilder
+        }
+    };
+
     private final AtomicReference<String> mPhotoFilePath = new AtomicReference<String>(null);
 
     public CameraSender(int titleResId, Integer iconResId, Activity activity) {
@@ -69,14 +87,7 @@ public class CameraSender extends AttachmentSender {
             return true;
         }
         if (Log.isLoggable(Log.VERBOSE)) Log.v("Received camera response");
-        try {
-            String myName = getParticipantProvider().getParticipant(getLayerClient().getAuthenticatedUserId()).getName();
-            Message message = ThreePartImageUtils.newThreePartImageMessage(activity, getLayerClient(), new File(mPhotoFilePath.get()));
-            message.getOptions().pushNotificationMessage(getContext().getString(R.string.atlas_notification_image, myName));
-            send(message);
-        } catch (IOException e) {
-            if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
-        }
+        ThreePartImageBuilder.getInstance(activity).build(activity, getLayerClient(), new File(mPhotoFilePath.get()), mBuildCallback);
         return true;
     }
 
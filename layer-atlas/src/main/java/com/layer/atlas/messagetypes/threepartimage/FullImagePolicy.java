@@ -0,0 +1,254 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+
+import com.layer.atlas.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * FullImagePolicy controls what ThreePartImage full parts are sent in place of the original image
+ * file.  Images larger than the maximum dimension or byte budget are decoded at a reduced size and
+ * recompressed as JPEG, searching quality down to fit the byte budget.  Other JPEGs are copied
+ * without their metadata.  Either way only the Exif orientation is kept, so location and camera
+ * details are not sent.  GIFs are always sent untouched.
+ * <p>
+ * Without a FullImagePolicy, full parts are the untouched original image files.  Configure once,
+ * then set with `ThreePartImageUtils.setFullImagePolicy()`.  Full parts are prepared along with
+ * the preview, on ThreePartImageBuilder's background pool.
+ */
+public class FullImagePolicy {
+    public static final int DEFAULT_MAX_DIMENSION = 2048;
+    public static final int DEFAULT_QUALITY = 85;
+    public static final int DEFAULT_MIN_QUALITY = 50;
+
+    private static final String MIME_TYPE_GIF = "image/gif";
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    // JPEG markers
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP13 = 0xED;
+    private static final int MARKER_COM = 0xFE;
+
+    // Exif orientation segment
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int TIFF_BIG_ENDIAN = 0x4D4D;
+    private static final int TIFF_MAGIC = 42;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    private volatile int mMaxDimension = DEFAULT_MAX_DIMENSION;
+    private volatile int mQuality = DEFAULT_QUALITY;
+    private volatile int mMinQuality = DEFAULT_MIN_QUALITY;
+    private volatile int mMaxBytes = 0;
+    private volatile boolean mStripMetadata = true;
+
+    /**
+     * Sets the maximum width and height of full images, or 0 for no maximum.  Images recompressed
+     * for the byte budget are still decoded at most `DEFAULT_MAX_DIMENSION` wide and high, so
+     * their Bitmaps fit the heap.
+     */
+    public FullImagePolicy setMaxDimension(int maxDimension) {
+        if (maxDimension < 0) throw new IllegalArgumentException("Max dimension must not be negative");
+        mMaxDimension = maxDimension;
+        return this;
+    }
+
+    /**
+     * Sets the quality recompressed full images are encoded at, and the lowest quality a byte
+     * budget may lower it to.
+     */
+    public FullImagePolicy setQuality(int quality, int minQuality) {
+        if (minQuality < 0 || quality > 100 || minQuality > quality) {
+            throw new IllegalArgumentException("Qualities must satisfy 0 <= min quality <= quality <= 100");
+        }
+        mQuality = quality;
+        mMinQuality = minQuality;
+        return this;
+    }
+
+    /**
+     * Sets the byte budget for full images, or 0 for none.  Larger images are recompressed.
+     */
+    public FullImagePolicy setMaxBytes(int maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("Max bytes must not be negative");
+        mMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Sets whether metadata other than the Exif orientation is removed from JPEGs that are not
+     * recompressed.  Recompressed images never keep other metadata.
+     */
+    public FullImagePolicy setStripMetadata(boolean stripMetadata) {
+        mStripMetadata = stripMetadata;
+        return this;
+    }
+
+    /**
+     * Returns `true` if an image of the given type, size, and length should be recompressed.
+     */
+    boolean shouldRecompress(String mimeType, int width, int height, long length) {
+        if (MIME_TYPE_GIF.equals(mimeType)) return false;
+        int maxDimension = mMaxDimension;
+        int maxBytes = mMaxBytes;
+        if (maxDimension > 0 && (width > maxDimension || height > maxDimension)) return true;
+        return maxBytes > 0 && length > maxBytes;
+    }
+
+    /**
+     * Returns `true` if metadata should be removed from an image of the given type that is not
+     * recompressed.
+     */
+    boolean shouldStripMetadata(String mimeType) {
+        return mStripMetadata && MIME_TYPE_JPEG.equals(mimeType);
+    }
+
+    /**
+     * Returns the size an image should be decoded at for recompression.
+     */
+    int[] getTargetSize(int width, int height) {
+        int maxDimension = mMaxDimension;
+        if (maxDimension <= 0) maxDimension = DEFAULT_MAX_DIMENSION;
+        return Util.scaleDownInside(width, height, maxDimension, maxDimension);
+    }
+
+    /**
+     * Encodes `bitmap` as a JPEG full image within the byte budget, if any.
+     */
+    PreviewEncoder.Result encode(Bitmap bitmap) {
+        return PreviewEncoder.encode(bitmap, Bitmap.CompressFormat.JPEG, MIME_TYPE_JPEG, mQuality, mMinQuality, mMaxBytes);
+    }
+
+    /**
+     * Copies JPEG `source` to `destination` without metadata, as stripMetadata(InputStream,
+     * OutputStream, int) does.
+     */
+    static void stripMetadata(File source, File destination, int exifOrientation) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                stripMetadata(in, out, exifOrientation);
+            } catch (IOException e) {
+                throw new IOException("Could not strip '" + source.getAbsolutePath() + "': " + e.getMessage(), e);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a JPEG without Exif, XMP, IPTC, or comment segments, adding an Exif segment with only
+     * `exifOrientation` unless it is `ExifInterface.ORIENTATION_UNDEFINED`.  Image data and other
+     * segments, such as JFIF and ICC profiles, are copied unchanged.  `out` is not closed.
+     */
+    static void stripMetadata(InputStream source, OutputStream destination, int exifOrientation) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(source));
+        OutputStream out = new BufferedOutputStream(destination);
+        if (in.readUnsignedByte() != MARKER_PREFIX || in.readUnsignedByte() != MARKER_SOI) {
+            throw new IOException("Not a JPEG");
+        }
+        out.write(MARKER_PREFIX);
+        out.write(MARKER_SOI);
+        boolean orientationWritten = exifOrientation == ExifInterface.ORIENTATION_UNDEFINED;
+        while (true) {
+            if (in.readUnsignedByte() != MARKER_PREFIX) throw new IOException("Malformed JPEG marker");
+            int marker = in.readUnsignedByte();
+            while (marker == MARKER_PREFIX) marker = in.readUnsignedByte();
+
+            // Exif follows the JFIF segment, if any
+            if (!orientationWritten && marker != MARKER_APP0) {
+                writeOrientation(out, exifOrientation);
+                orientationWritten = true;
+            }
+            if (marker == MARKER_SOS) {
+                // Entropy-coded data follows; copy the rest unchanged
+                out.write(MARKER_PREFIX);
+                out.write(marker);
+                copy(in, out);
+                out.flush();
+                return;
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) throw new IOException("Malformed JPEG segment length " + length);
+            if (marker == MARKER_APP1 || marker == MARKER_APP13 || marker == MARKER_COM) {
+                skipFully(in, length - 2);
+                continue;
+            }
+            out.write(MARKER_PREFIX);
+            out.write(marker);
+            out.write(length >> 8);
+            out.write(length & 0xFF);
+            copy(in, out, length - 2);
+        }
+    }
+
+    /**
+     * Writes a recompressed JPEG, which carries no metadata, with only `exifOrientation` added.
+     */
+    static void writeRecompressed(byte[] jpeg, OutputStream out, int exifOrientation) throws IOException {
+        stripMetadata(new ByteArrayInputStream(jpeg), out, exifOrientation);
+    }
+
+    /**
+     * Writes an APP1 Exif segment whose only tag is the orientation.
+     */
+    private static void writeOrientation(OutputStream out, int exifOrientation) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeShort(MARKER_PREFIX << 8 | MARKER_APP1);
+        data.writeShort(2 + EXIF_HEADER.length + 8 + 2 + 12 + 4);
+        data.write(EXIF_HEADER);
+        // Big-endian TIFF header, with IFD0 right after it
+        data.writeShort(TIFF_BIG_ENDIAN);
+        data.writeShort(TIFF_MAGIC);
+        data.writeInt(8);
+        // IFD0: a single SHORT orientation entry, and no next IFD
+        data.writeShort(1);
+        data.writeShort(TAG_ORIENTATION);
+        data.writeShort(TYPE_SHORT);
+        data.writeInt(1);
+        data.writeShort(exifOrientation);
+        data.writeShort(0);
+        data.writeInt(0);
+        data.flush();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    }
+
+    private static void copy(DataInputStream in, OutputStream out, int count) throws IOException {
+        byte[] buffer = new byte[count];
+        in.readFully(buffer);
+        out.write(buffer);
+    }
+
+    private static void skipFully(InputStream in, int count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) throw new EOFException();
+            count -= skipped;
+        }
+    }
+}
@@ -3,8 +3,10 @@ package com.layer.atlas.messagetypes.threepartimage;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 
 import com.layer.atlas.R;
@@ -12,15 +14,18 @@ import com.layer.atlas.messagetypes.AttachmentSender;
 import com.layer.atlas.util.Log;
 import com.layer.sdk.messaging.Message;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 import static android.support.v4.app.ActivityCompat.requestPermissions;
 import static android.support.v4.content.ContextCompat.checkSelfPermission;
 
 /**
- * GallerySender creates a ThreePartImage from the a selected image from the user's gallety.
- * Requires `Manifest.permission.READ_EXTERNAL_STORAGE` to read photos from external storage.
+ * GallerySender creates ThreePartImages from images selected from the user's gallery.  Where the
+ * gallery supports it, several images can be selected at once; they are built in parallel and sent
+ * in the order selected.  Requires `Manifest.permission.READ_EXTERNAL_STORAGE` to read photos from
+ * external storage.
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 public class GallerySender extends AttachmentSender {
@@ -30,6 +35,25 @@ public class GallerySender extends AttachmentSender {
 
     private WeakReference<Activity> mActivity = new WeakReference<Activity>(null);
 
+    // Sends ThreePartImage Messages once built in the background
+    private final ThreePartImageBuilder.Callback mBuildCallback = new ThreePartImageBuilder.Callback() {
+        @Override
+        public void onProgress(ThreePartImageBuilder.Request request, float fraction) {
+        }
+
+        @Override
+        public void onBuilt(ThreePartImageBuilder.Request request, Message message) {
+            String myName = getParticipantProvider().getParticipant(getLayerClient().getAuthenticatedUserId()).getName();
+            message.getOptions().pushNotificationMessage(getContext().getString(R.string.atlas_notification_image, myName));
+            send(message);
+        }
+
+        @Override
+        public void onFailed(ThreePartImageBuilder.Request request, Exception e) {
+            // Logged by ThreePartImageBuilder
+        }
+    };
+
     public GallerySender(int titleResId, Integer iconResId, Activity activity) {
         this(activity.getString(titleResId), iconResId, activity);
     }
@@ -40,7 +64,13 @@ public class GallerySender extends AttachmentSender {
     }
 
     private void startGalleryIntent(Activity activity) {
-        Intent intent = new Intent(Intent.ACTION_PICK, android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        // Any image provider may be picked; ThreePartImageUtils copies images without a file path
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        }
         activity.startActivityForResult(Intent.createChooser(intent, getContext().getString(R.string.atlas_gallery_sender_chooser)), ACTIVITY_REQUEST_CODE);
     }
 
@@ -76,15 +106,23 @@ public class GallerySender extends AttachmentSender {
             if (Log.isLoggable(Log.ERROR)) Log.e("Result: " + requestCode + ", data: " + data);
             return true;
         }
-        if (Log.isLoggable(Log.VERBOSE)) Log.v("Received gallery response");
-        try {
-            String myName = getParticipantProvider().getParticipant(getLayerClient().getAuthenticatedUserId()).getName();
-            Message message = ThreePartImageUtils.newThreePartImageMessage(activity, getLayerClient(), data.getData());
-            message.getOptions().pushNotificationMessage(getContext().getString(R.string.atlas_notification_image, myName));
-            send(message);
-        } catch (IOException e) {
-            if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
-        }
+        List<Uri> imageUris = getImageUris(data);
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Received gallery response with " + imageUris.size() + " images");
+        ThreePartImageBuilder.getInstance(activity).buildAll(activity, getLayerClient(), imageUris, mBuildCallback);
         return true;
     }
+
+    private static List<Uri> getImageUris(Intent data) {
+        List<Uri> imageUris = new ArrayList<Uri>();
+        // Several images are only requested with EXTRA_ALLOW_MULTIPLE
+        ClipData clipData = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) ? data.getClipData() : null;
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) imageUris.add(uri);
+            }
+        }
+        if (imageUris.isEmpty() && data.getData() != null) imageUris.add(data.getData());
+        return imageUris;
+    }
 }
@@ -0,0 +1,187 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.graphics.Bitmap;
+
+import com.layer.atlas.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+/**
+ * PreviewEncoder compresses ThreePartImage preview Bitmaps.  By default previews are JPEGs at
+ * quality 75 within 512x512.  With a byte budget, quality is binary-searched down to the highest
+ * quality that fits, no lower than the minimum quality.  WebP previews are smaller but are only
+ * recognized by receivers that accept `ThreePartImageUtils.MIME_TYPE_PREVIEW_WEBP`, so they are
+ * opt-in.
+ * <p>
+ * Configure once, then set with `ThreePartImageUtils.setPreviewEncoder()`.
+ */
+public class PreviewEncoder {
+    public static final int DEFAULT_MIN_QUALITY = 30;
+
+    private volatile Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+    private volatile int mMaxWidth = ThreePartImageUtils.PREVIEW_MAX_WIDTH;
+    private volatile int mMaxHeight = ThreePartImageUtils.PREVIEW_MAX_HEIGHT;
+    private volatile int mQuality = ThreePartImageUtils.PREVIEW_COMPRESSION_QUALITY;
+    private volatile int mMinQuality = DEFAULT_MIN_QUALITY;
+    private volatile int mMaxBytes = 0;
+
+    /**
+     * Sets whether previews are encoded as WebP instead of JPEG.  Only enable when all receiving
+     * clients accept `ThreePartImageUtils.MIME_TYPE_PREVIEW_WEBP`.
+     */
+    public PreviewEncoder setWebP(boolean webP) {
+        mFormat = webP ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+        return this;
+    }
+
+    /**
+     * Sets the bounds previews are scaled down inside.
+     */
+    public PreviewEncoder setMaxSize(int maxWidth, int maxHeight) {
+        if (maxWidth < 1 || maxHeight < 1) throw new IllegalArgumentException("Max size must be positive");
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        return this;
+    }
+
+    /**
+     * Sets the quality previews are encoded at, and the lowest quality a byte budget may lower it
+     * to.
+     */
+    public PreviewEncoder setQuality(int quality, int minQuality) {
+        if (minQuality < 0 || quality > 100 || minQuality > quality) {
+            throw new IllegalArgumentException("Qualities must satisfy 0 <= min quality <= quality <= 100");
+        }
+        mQuality = quality;
+        mMinQuality = minQuality;
+        return this;
+    }
+
+    /**
+     * Sets the byte budget for previews, or 0 for none.  Previews that cannot fit the budget at
+     * the minimum quality are encoded at the minimum quality.
+     */
+    public PreviewEncoder setMaxBytes(int maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("Max bytes must not be negative");
+        mMaxBytes = maxBytes;
+        return this;
+    }
+
+    public int getMaxWidth() {
+        return mMaxWidth;
+    }
+
+    public int getMaxHeight() {
+        return mMaxHeight;
+    }
+
+    public boolean isWebP() {
+        return mFormat == Bitmap.CompressFormat.WEBP;
+    }
+
+    public String getMimeType() {
+        return isWebP() ? ThreePartImageUtils.MIME_TYPE_PREVIEW_WEBP : ThreePartImageUtils.MIME_TYPE_PREVIEW;
+    }
+
+    /**
+     * Encodes `bitmap`, searching for the highest quality within the byte budget if one is set.
+     */
+    public Result encode(Bitmap bitmap) {
+        Bitmap.CompressFormat format = mFormat;
+        String mimeType = format == Bitmap.CompressFormat.WEBP ? ThreePartImageUtils.MIME_TYPE_PREVIEW_WEBP : ThreePartImageUtils.MIME_TYPE_PREVIEW;
+        return encode(bitmap, format, mimeType, mQuality, mMinQuality, mMaxBytes);
+    }
+
+    /**
+     * Encodes `bitmap` at `quality`, or if that exceeds `maxBytes`, at the highest quality down to
+     * `minQuality` that fits.
+     */
+    static Result encode(Bitmap bitmap, Bitmap.CompressFormat format, String mimeType, int quality, int minQuality, int maxBytes) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] bytes = compress(bitmap, format, quality, stream);
+        int initialBytes = bytes.length;
+        int encodings = 1;
+
+        if (maxBytes > 0 && bytes.length > maxBytes && quality > minQuality) {
+            // Binary search for the highest quality that fits the budget
+            byte[] best = null;
+            int bestQuality = minQuality;
+            int low = minQuality;
+            int high = quality - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                byte[] candidate = compress(bitmap, format, mid, stream);
+                encodings++;
+                if (candidate.length <= maxBytes) {
+                    best = candidate;
+                    bestQuality = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (best == null) {
+                best = compress(bitmap, format, minQuality, stream);
+                encodings++;
+            }
+            bytes = best;
+            quality = bestQuality;
+        }
+
+        Result result = new Result(bytes, mimeType, quality, initialBytes - bytes.length);
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v(String.format(Locale.US, "Encoded %s at quality %d: %d bytes, %d bytes saved, %d encodings",
+                    mimeType, quality, bytes.length, result.getBytesSaved(), encodings));
+        }
+        return result;
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, ByteArrayOutputStream stream) {
+        stream.reset();
+        bitmap.compress(format, quality, stream);
+        return stream.toByteArray();
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Result is an encoded image.
+     */
+    public static class Result {
+        private final byte[] mBytes;
+        private final String mMimeType;
+        private final int mQuality;
+        private final int mBytesSaved;
+
+        Result(byte[] bytes, String mimeType, int quality, int bytesSaved) {
+            mBytes = bytes;
+            mMimeType = mimeType;
+            mQuality = quality;
+            mBytesSaved = bytesSaved;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * Returns the bytes saved by the byte budget, compared to encoding at the configured
+         * quality.
+         */
+        public int getBytesSaved() {
+            return mBytesSaved;
+        }
+    }
+}
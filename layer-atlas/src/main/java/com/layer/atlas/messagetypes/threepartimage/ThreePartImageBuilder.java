@@ -0,0 +1,336 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Message;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreePartImageBuilder builds ThreePartImage Messages on background threads, so decoding,
+ * scaling, and compressing previews stays off the UI thread.  Builds run a few at a time from a
+ * bounded queue, report progress, and can be cancelled.  Callbacks are made on the UI thread.
+ * Batches from buildAll() run in parallel but deliver their Messages in order.  Temporary preview
+ * files left behind by earlier processes are deleted on first use.
+ */
+public final class ThreePartImageBuilder {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_PARALLEL_BUILDS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreePartImageBuilder sInstance;
+
+    private final Handler mUiThreadHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    private ThreePartImageBuilder(final Context context) {
+        mExecutor = new ThreadPoolExecutor(MAX_PARALLEL_BUILDS, MAX_PARALLEL_BUILDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY), new BuilderThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteTempFiles(context.getCacheDir());
+            }
+        });
+    }
+
+    public static synchronized ThreePartImageBuilder getInstance(Context context) {
+        if (sInstance == null) sInstance = new ThreePartImageBuilder(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Builds a ThreePartImage Message from a content Uri in the background.
+     *
+     * @param context     Context for resolving `imageUri`.
+     * @param layerClient LayerClient for creating the Message.
+     * @param imageUri    Content Uri of the image.
+     * @param callback    Callback to receive progress and the result on the UI thread.
+     * @return A Request for cancelling the build.
+     */
+    public Request build(Context context, LayerClient layerClient, Uri imageUri, Callback callback) {
+        return enqueue(new Request(context.getApplicationContext(), layerClient, imageUri, null, callback));
+    }
+
+    /**
+     * Builds a ThreePartImage Message from an image file in the background.
+     *
+     * @param context     Context for the temporary preview file.
+     * @param layerClient LayerClient for creating the Message.
+     * @param imageFile   Image file.
+     * @param callback    Callback to receive progress and the result on the UI thread.
+     * @return A Request for cancelling the build.
+     */
+    public Request build(Context context, LayerClient layerClient, File imageFile, Callback callback) {
+        return enqueue(new Request(context.getApplicationContext(), layerClient, null, imageFile, callback));
+    }
+
+    /**
+     * Builds ThreePartImage Messages from content Uris in parallel in the background.
+     * `callback` receives built Messages in the order of `imageUris`, skipping failed and
+     * cancelled builds; failures are reported as they happen.
+     *
+     * @param context     Context for resolving `imageUris`.
+     * @param layerClient LayerClient for creating the Messages.
+     * @param imageUris   Content Uris of the images, in sending order.
+     * @param callback    Callback to receive progress and results on the UI thread.
+     * @return Requests for cancelling the builds, in the order of `imageUris`.
+     */
+    public List<Request> buildAll(Context context, LayerClient layerClient, List<Uri> imageUris, Callback callback) {
+        Context appContext = context.getApplicationContext();
+        InOrder inOrder = new InOrder(callback);
+        for (Uri imageUri : imageUris) {
+            inOrder.mRequests.add(new Request(appContext, layerClient, imageUri, null, inOrder));
+        }
+        for (Request request : inOrder.mRequests) {
+            enqueue(request);
+        }
+        return new ArrayList<Request>(inOrder.mRequests);
+    }
+
+    private Request enqueue(Request request) {
+        try {
+            mExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Too many pending ThreePartImage builds", e);
+            request.fail(e);
+        }
+        return request;
+    }
+
+    private static void deleteTempFiles(File directory) {
+        File[] files = directory == null ? null : directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            // Files from this process may belong to builds running alongside
+            if (!name.startsWith(ThreePartImageUtils.TEMP_FILE_PREFIX) || name.startsWith(ThreePartImageUtils.PROCESS_TEMP_FILE_PREFIX)) {
+                continue;
+            }
+            if (file.delete() && Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Deleted stale preview '" + file.getAbsolutePath() + "'");
+            }
+        }
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Callback receives progress and the result of a build on the UI thread.  No callbacks are
+     * made after a Request is cancelled.
+     */
+    public interface Callback {
+        /**
+         * Reports the fraction of the Message built so far, from 0 to 1.
+         */
+        void onProgress(Request request, float fraction);
+
+        void onBuilt(Request request, Message message);
+
+        void onFailed(Request request, Exception e);
+    }
+
+    /**
+     * Request is a single queued or running build.
+     */
+    public final class Request implements Runnable {
+        private final Context mContext;
+        private final LayerClient mLayerClient;
+        private final Uri mImageUri;
+        private final File mImageFile;
+        private final Callback mCallback;
+        private final ThreePartImageUtils.Metrics mMetrics = new ThreePartImageUtils.Metrics();
+        private volatile boolean mCancelled = false;
+
+        // Stream the built Message's full part reads from, closed if the Message is discarded
+        private volatile InputStream mFullStream;
+
+        private Request(Context context, LayerClient layerClient, Uri imageUri, File imageFile, Callback callback) {
+            mContext = context;
+            mLayerClient = layerClient;
+            mImageUri = imageUri;
+            mImageFile = imageFile;
+            mCallback = callback;
+        }
+
+        /**
+         * Cancels this build.  A queued build is dropped, and a running build stops at its next
+         * step.
+         */
+        public void cancel() {
+            mCancelled = true;
+            mExecutor.remove(this);
+            if (mCallback instanceof InOrder) {
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((InOrder) mCallback).flush();
+                    }
+                });
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Returns Metrics for this build, filled in once built.
+         */
+        public ThreePartImageUtils.Metrics getMetrics() {
+            return mMetrics;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+            ThreePartImageUtils.Progress progress = new ThreePartImageUtils.Progress() {
+                @Override
+                public void onProgress(final float fraction) {
+                    if (mCancelled) throw new CancellationException();
+                    mUiThreadHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mCancelled) mCallback.onProgress(Request.this, fraction);
+                        }
+                    });
+                }
+
+                @Override
+                public void onFullStreamOpened(InputStream stream) {
+                    mFullStream = stream;
+                }
+            };
+            try {
+                final Message message = (mImageUri != null)
+                        ? ThreePartImageUtils.newThreePartImageMessage(mContext, mLayerClient, mImageUri, progress, mMetrics)
+                        : ThreePartImageUtils.newThreePartImageMessage(mContext, mLayerClient, mImageFile, progress, mMetrics);
+                if (message == null) throw new IllegalArgumentException("Could not resolve image " + mImageUri);
+                mUiThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            discard();
+                        } else {
+                            mCallback.onBuilt(Request.this, message);
+                        }
+                    }
+                });
+            } catch (CancellationException e) {
+                if (Log.isLoggable(Log.VERBOSE)) Log.v("ThreePartImage build cancelled");
+            } catch (Exception e) {
+                if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
+                fail(e);
+            } catch (OutOfMemoryError e) {
+                // Nothing decoded for this build is referenced any more, so other builds can carry on
+                if (Log.isLoggable(Log.ERROR)) Log.e("Out of memory building ThreePartImage", e);
+                fail(new Exception("Out of memory building ThreePartImage", e));
+            }
+        }
+
+        /**
+         * Closes the full part stream of a built Message that will not be sent.
+         */
+        private void discard() {
+            InputStream stream = mFullStream;
+            mFullStream = null;
+            if (stream != null) ThreePartImageUtils.closeFullStream(stream);
+        }
+
+        private void fail(final Exception e) {
+            mUiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) mCallback.onFailed(Request.this, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * InOrder holds back built Messages of a batch until every earlier Request in the batch has
+     * been built, has failed, or was cancelled.  Used on the UI thread only.
+     */
+    private static class InOrder implements Callback {
+        private final Callback mCallback;
+        private final List<Request> mRequests = new ArrayList<Request>();
+        private final Map<Request, Message> mBuilt = new HashMap<Request, Message>();
+        private final Set<Request> mFailed = new HashSet<Request>();
+        private int mNext = 0;
+
+        InOrder(Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onProgress(Request request, float fraction) {
+            mCallback.onProgress(request, fraction);
+        }
+
+        @Override
+        public void onBuilt(Request request, Message message) {
+            mBuilt.put(request, message);
+            flush();
+        }
+
+        @Override
+        public void onFailed(Request request, Exception e) {
+            mFailed.add(request);
+            mCallback.onFailed(request, e);
+            flush();
+        }
+
+        void flush() {
+            while (mNext < mRequests.size()) {
+                Request request = mRequests.get(mNext);
+                Message message = mBuilt.remove(request);
+                if (message != null) {
+                    if (request.isCancelled()) {
+                        request.discard();
+                    } else {
+                        mCallback.onBuilt(request, message);
+                    }
+                } else if (!request.isCancelled() && !mFailed.remove(request)) {
+                    return;
+                }
+                mNext++;
+            }
+        }
+    }
+
+    private static class BuilderThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AtlasThreePartImageBuilder");
+        }
+    }
+}
@@ -19,6 +19,7 @@ import android.widget.ImageView;
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.imagepopup.AtlasImagePopupActivity;
@@ -138,6 +139,25 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         });
     }
 
+    /**
+     * Info parsing happens in the background, so the placeholder is sized like a maximum-sized
+     * preview until the full image dimensions are known.
+     */
+    @Override
+    public boolean bindPlaceholder(CellHolder cellHolder, Message message, CellHolderSpecs specs) {
+        mPicasso.cancelRequest(cellHolder.mImageView);
+        cellHolder.mImageView.setTag(null);
+        cellHolder.mImageView.setOnClickListener(null);
+        cellHolder.mImageView.setOnLongClickListener(null);
+        int[] cellDims = Util.scaleDownInside(ThreePartImageUtils.PREVIEW_MAX_WIDTH, ThreePartImageUtils.PREVIEW_MAX_HEIGHT, specs.maxWidth, specs.maxHeight);
+        ViewGroup.LayoutParams params = cellHolder.mImageView.getLayoutParams();
+        params.width = cellDims[0];
+        params.height = cellDims[1];
+        cellHolder.mImageView.setImageResource(PLACEHOLDER);
+        cellHolder.mProgressBar.show();
+        return true;
+    }
+
     @Override
     public void onClick(View v) {
         AtlasImagePopupActivity.init(mLayerClient);
@@ -178,7 +198,7 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         List<MessagePart> parts = message.getMessageParts();
         return parts.size() == 3 &&
                 parts.get(ThreePartImageUtils.PART_INDEX_FULL).getMimeType().startsWith("image/") &&
-                parts.get(ThreePartImageUtils.PART_INDEX_PREVIEW).getMimeType().equals(ThreePartImageUtils.MIME_TYPE_PREVIEW) &&
+                ThreePartImageUtils.isPreviewMimeType(parts.get(ThreePartImageUtils.PART_INDEX_PREVIEW).getMimeType()) &&
                 parts.get(ThreePartImageUtils.PART_INDEX_INFO).getMimeType().equals(ThreePartImageUtils.MIME_TYPE_INFO);
     }
 
@@ -218,7 +238,7 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
 
         @Override
         public int sizeOf() {
-            return ((Integer.SIZE + Integer.SIZE + Integer.SIZE) / Byte.SIZE) + fullPartId.toString().getBytes().length + previewPartId.toString().getBytes().length;
+            return HeapSize.ofObject(2, 3 * HeapSize.INT) + HeapSize.ofUri(fullPartId) + HeapSize.ofUri(previewPartId);
         }
 
         @Override
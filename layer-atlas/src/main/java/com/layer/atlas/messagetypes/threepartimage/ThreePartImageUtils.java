@@ -1,11 +1,14 @@
 package com.layer.atlas.messagetypes.threepartimage;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.ExifInterface;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 
 import com.layer.atlas.util.Log;
@@ -18,7 +21,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ThreePartImageUtils {
     public static final int ORIENTATION_0 = 0;
@@ -27,6 +32,7 @@ public class ThreePartImageUtils {
     public static final int ORIENTATION_270 = 3;
 
     public static final String MIME_TYPE_PREVIEW = "image/jpeg+preview";
+    public static final String MIME_TYPE_PREVIEW_WEBP = "image/webp+preview";
     public static final String MIME_TYPE_INFO = "application/json+imageSize";
 
     public static final int PART_INDEX_FULL = 0;
@@ -37,6 +43,49 @@ public class ThreePartImageUtils {
     public static final int PREVIEW_MAX_WIDTH = 512;
     public static final int PREVIEW_MAX_HEIGHT = 512;
 
+    // Prefix of temporary preview files in the cache directory
+    static final String TEMP_FILE_PREFIX = ThreePartImageUtils.class.getSimpleName() + ".";
+
+    // Prefix of this process's temporary files; any others were left behind by earlier processes
+    static final String PROCESS_TEMP_FILE_PREFIX = TEMP_FILE_PREFIX + System.currentTimeMillis() + ".";
+
+    // A released preview Bitmap, decoded into by the next preview
+    private static final AtomicReference<Bitmap> sReusablePreview = new AtomicReference<Bitmap>(null);
+
+    private static volatile PreviewEncoder sPreviewEncoder = new PreviewEncoder();
+    private static volatile FullImagePolicy sFullImagePolicy = null;
+
+    /**
+     * Sets the PreviewEncoder used for new ThreePartImage previews.
+     */
+    public static void setPreviewEncoder(PreviewEncoder previewEncoder) {
+        if (previewEncoder == null) throw new IllegalArgumentException("Null PreviewEncoder");
+        sPreviewEncoder = previewEncoder;
+    }
+
+    public static PreviewEncoder getPreviewEncoder() {
+        return sPreviewEncoder;
+    }
+
+    /**
+     * Sets the FullImagePolicy used for new ThreePartImage full parts, or `null` to attach
+     * original images untouched.
+     */
+    public static void setFullImagePolicy(FullImagePolicy fullImagePolicy) {
+        sFullImagePolicy = fullImagePolicy;
+    }
+
+    public static FullImagePolicy getFullImagePolicy() {
+        return sFullImagePolicy;
+    }
+
+    /**
+     * Returns `true` if `mimeType` is a ThreePartImage preview MIME type.
+     */
+    public static boolean isPreviewMimeType(String mimeType) {
+        return MIME_TYPE_PREVIEW.equals(mimeType) || MIME_TYPE_PREVIEW_WEBP.equals(mimeType);
+    }
+
     public static MessagePart getInfoPart(Message message) {
         return message.getMessageParts().get(PART_INDEX_INFO);
     }
@@ -50,16 +99,77 @@ public class ThreePartImageUtils {
     }
 
     public static Message newThreePartImageMessage(Context context, LayerClient layerClient, Uri imageUri) throws IOException {
-        Cursor cursor = context.getContentResolver().query(imageUri, new String[]{MediaStore.MediaColumns.DATA}, null, null, null);
+        return newThreePartImageMessage(context, layerClient, imageUri, null, null);
+    }
+
+    public static Message newThreePartImageMessage(Context context, LayerClient layerClient, File imageFile) throws IOException {
+        return newThreePartImageMessage(context, layerClient, imageFile, null, null);
+    }
+
+    /**
+     * Builds from the file behind `imageUri` when it is readable, or else from a temporary copy of
+     * its content, as for images picked from document providers.
+     */
+    static Message newThreePartImageMessage(Context context, LayerClient layerClient, Uri imageUri, Progress progress, Metrics metrics) throws IOException {
+        File imageFile = getReadableFile(context, imageUri);
+        if (imageFile != null) return newThreePartImageMessage(context, layerClient, imageFile, progress, metrics);
+
+        File temp = newTempFile(context);
         try {
-            if (cursor == null || !cursor.moveToFirst()) return null;
-            return newThreePartImageMessage(context, layerClient, new File(cursor.getString(0)));
+            copy(context, imageUri, temp);
+            return newThreePartImageMessage(context, layerClient, temp, progress, metrics);
         } finally {
-            if (cursor != null) cursor.close();
+            // The full image part's open stream keeps the copy readable until the Message is sent
+            deleteTempFile(temp);
         }
     }
 
-    public static Message newThreePartImageMessage(Context context, LayerClient layerClient, File imageFile) throws IOException {
+    /**
+     * Returns the readable file behind a `file` Uri, or behind a content Uri with a
+     * `MediaColumns.DATA` path; or `null`.
+     */
+    private static File getReadableFile(Context context, Uri uri) {
+        String path = null;
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            path = uri.getPath();
+        } else {
+            Cursor cursor = null;
+            try {
+                cursor = context.getContentResolver().query(uri, new String[]{MediaStore.MediaColumns.DATA}, null, null, null);
+                if (cursor != null && cursor.moveToFirst()) path = cursor.getString(0);
+            } catch (IllegalArgumentException e) {
+                // Providers without a DATA column
+                if (Log.isLoggable(Log.VERBOSE)) Log.v("No file path for " + uri);
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        }
+        if (path == null) return null;
+        File file = new File(path);
+        return file.canRead() ? file : null;
+    }
+
+    private static void copy(Context context, Uri uri, File file) throws IOException {
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if (in == null) throw new IOException("Could not open " + uri);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Copied " + uri + " to '" + file.getAbsolutePath() + "'");
+    }
+
+    static Message newThreePartImageMessage(Context context, LayerClient layerClient, File imageFile, Progress progress, Metrics metrics) throws IOException {
         if (imageFile == null) throw new IllegalArgumentException("Null image file");
         if (!imageFile.exists()) throw new IllegalArgumentException("Image file does not exist");
         if (!imageFile.canRead()) throw new IllegalArgumentException("Cannot read image file");
@@ -99,95 +209,398 @@ public class ThreePartImageUtils {
             }
         }
 
-        return newThreePartImageMessage(context, layerClient, exifOrientation, orientation, imageFile);
+        return newThreePartImageMessage(context, layerClient, exifOrientation, orientation, imageFile, progress, metrics);
     }
 
     /**
-     * Creates a new ThreePartImage Message.  The full image is attached untouched, while the
-     * preview is created from the full image by loading, resizing, and compressing.
+     * Creates a new ThreePartImage Message.  The full image is attached untouched and streamed from
+     * `file`, unless the FullImagePolicy recompresses it or strips its metadata.  The preview is
+     * created from the full image by loading, resizing, and compressing.
      *
      * @param client
-     * @param file   Image file
+     * @param file     Image file
+     * @param progress Optional Progress to report to between steps.
+     * @param metrics  Optional Metrics to fill in.
      * @return
      */
-    private static Message newThreePartImageMessage(Context context, LayerClient client, int exifOrientation, int orientation, File file) throws IOException {
+    private static Message newThreePartImageMessage(Context context, LayerClient client, int exifOrientation, int orientation, File file, Progress progress, Metrics metrics) throws IOException {
         if (client == null) throw new IllegalArgumentException("Null LayerClient");
         if (file == null) throw new IllegalArgumentException("Null image file");
         if (!file.exists()) throw new IllegalArgumentException("No image file");
         if (!file.canRead()) throw new IllegalArgumentException("Cannot read image file");
+        long buildStart = SystemClock.elapsedRealtime();
 
         BitmapFactory.Options justBounds = new BitmapFactory.Options();
         justBounds.inJustDecodeBounds = true;
         BitmapFactory.decodeFile(file.getAbsolutePath(), justBounds);
+        report(progress, 0.1f);
 
-        int fullWidth = justBounds.outWidth;
-        int fullHeight = justBounds.outHeight;
-        MessagePart full = client.newMessagePart("image/jpeg", new FileInputStream(file), file.length());
+        int originalWidth = justBounds.outWidth;
+        int originalHeight = justBounds.outHeight;
+        long originalBytes = file.length();
 
-        boolean isSwap = orientation == ORIENTATION_270 || orientation == ORIENTATION_90;
-        String intoString = "{\"orientation\":" + orientation + ", \"width\":" + (!isSwap ? fullWidth : fullHeight) + ", \"height\":" + (!isSwap ? fullHeight : fullWidth) + "}";
-        MessagePart info = client.newMessagePart(MIME_TYPE_INFO, intoString.getBytes());
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Creating image info: " + intoString);
+        // Prepare the full image first, so the info part describes the image that is sent
+        FullImagePolicy policy = sFullImagePolicy;
+        File fullTemp = null;
+        int fullWidth = originalWidth;
+        int fullHeight = originalHeight;
+        long recompressMillis = 0;
+        try {
+            if (policy != null && policy.shouldRecompress(justBounds.outMimeType, originalWidth, originalHeight, originalBytes)) {
+                long recompressStart = SystemClock.elapsedRealtime();
+                int[] fullDim = policy.getTargetSize(originalWidth, originalHeight);
+                Bitmap fullBitmap = decodeScaled(file, originalWidth, originalHeight, fullDim[0], fullDim[1], false);
+                if (fullBitmap == null) throw new IOException("Could not decode '" + file.getAbsolutePath() + "'");
+                PreviewEncoder.Result encoded;
+                try {
+                    encoded = policy.encode(fullBitmap);
+                } finally {
+                    fullBitmap.recycle();
+                }
+                // Keep the original when recompressing alone would not make it smaller
+                if (encoded.getBytes().length < originalBytes || fullDim[0] != originalWidth || fullDim[1] != originalHeight) {
+                    fullTemp = newTempFile(context);
+                    FileOutputStream stream = new FileOutputStream(fullTemp);
+                    try {
+                        FullImagePolicy.writeRecompressed(encoded.getBytes(), stream, exifOrientation);
+                    } finally {
+                        stream.close();
+                    }
+                    fullWidth = fullDim[0];
+                    fullHeight = fullDim[1];
+                }
+                recompressMillis = SystemClock.elapsedRealtime() - recompressStart;
+            }
+            if (fullTemp == null && policy != null && policy.shouldStripMetadata(justBounds.outMimeType)) {
+                fullTemp = newTempFile(context);
+                try {
+                    FullImagePolicy.stripMetadata(file, fullTemp, exifOrientation);
+                } catch (IOException e) {
+                    // Send the original rather than fail on JPEGs we cannot parse
+                    if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
+                    deleteTempFile(fullTemp);
+                    fullTemp = null;
+                }
+            }
+            report(progress, 0.4f);
+
+            boolean isSwap = orientation == ORIENTATION_270 || orientation == ORIENTATION_90;
+            String intoString = "{\"orientation\":" + orientation + ", \"width\":" + (!isSwap ? fullWidth : fullHeight) + ", \"height\":" + (!isSwap ? fullHeight : fullWidth) + "}";
+            MessagePart info = client.newMessagePart(MIME_TYPE_INFO, intoString.getBytes());
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Creating image info: " + intoString);
+            }
+
+            MessagePart preview;
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Creating Preview from '" + file.getAbsolutePath() + "'");
+            }
+
+            // Determine preview size
+            PreviewEncoder encoder = sPreviewEncoder;
+            int[] previewDim = Util.scaleDownInside(originalWidth, originalHeight, encoder.getMaxWidth(), encoder.getMaxHeight());
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Preview size: " + previewDim[0] + "x" + previewDim[1]);
+            }
+
+            // Create preview
+            Bitmap previewBitmap = decodeScaled(file, originalWidth, originalHeight, previewDim[0], previewDim[1], true);
+            if (previewBitmap == null) throw new IOException("Could not decode '" + file.getAbsolutePath() + "'");
+            report(progress, 0.6f);
+
+            PreviewEncoder.Result encoded;
+            try {
+                encoded = encoder.encode(previewBitmap);
+            } finally {
+                releasePreviewBitmap(previewBitmap);
+            }
+            report(progress, 0.8f);
+
+            // WebP previews carry no Exif; receivers rotate using the info part
+            byte[] previewBytes = encoded.getBytes();
+            if (MIME_TYPE_PREVIEW.equals(encoded.getMimeType())) {
+                previewBytes = preserveExifOrientation(context, previewBytes, exifOrientation);
+            }
+            preview = client.newMessagePart(encoded.getMimeType(), previewBytes);
+
+            // The full image is streamed from its file when sent; opened last so failed or cancelled
+            // builds leave no stream open
+            File fullFile = fullTemp != null ? fullTemp : file;
+            long fullLength = fullFile.length();
+            FileInputStream fullStream = new FileInputStream(fullFile);
+            if (progress != null) progress.onFullStreamOpened(fullStream);
+            // The open stream keeps a deleted temporary file readable until the Message is sent
+            if (fullTemp != null) deleteTempFile(fullTemp);
+            boolean built = false;
+            try {
+                MessagePart full = client.newMessagePart("image/jpeg", fullStream, fullLength);
+                if (Log.isLoggable(Log.VERBOSE)) {
+                    Log.v(String.format(Locale.US, "Full image bytes: %d, preview bytes: %d, info bytes: %d", full.getSize(), preview.getSize(), info.getSize()));
+                }
+
+                MessagePart[] parts = new MessagePart[3];
+                parts[PART_INDEX_FULL] = full;
+                parts[PART_INDEX_PREVIEW] = preview;
+                parts[PART_INDEX_INFO] = info;
+                Message message = client.newMessage(parts);
+                if (metrics != null) {
+                    metrics.mOriginalBytes = originalBytes;
+                    metrics.mFullBytes = full.getSize();
+                    metrics.mPreviewBytes = preview.getSize();
+                    metrics.mOriginalWidth = originalWidth;
+                    metrics.mOriginalHeight = originalHeight;
+                    metrics.mFullWidth = fullWidth;
+                    metrics.mFullHeight = fullHeight;
+                    metrics.mRecompressMillis = recompressMillis;
+                    metrics.mBuildMillis = SystemClock.elapsedRealtime() - buildStart;
+                    if (Log.isLoggable(Log.VERBOSE)) Log.v("Built ThreePartImage: " + metrics);
+                }
+                report(progress, 1f);
+                built = true;
+                return message;
+            } finally {
+                // No Message holds the stream when building failed or was cancelled
+                if (!built) closeFullStream(fullStream);
+            }
+        } finally {
+            if (fullTemp != null && fullTemp.exists()) deleteTempFile(fullTemp);
         }
+    }
+
+    /**
+     * Decodes `file` directly at about `width` x `height`: the largest power-of-two sample size
+     * that stays at or above that size, then density scaling during decode for the rest, so no
+     * full-size or intermediate scaled Bitmap is allocated.  Preview decodes reuse the previously
+     * released preview Bitmap when it is large enough.  Decodes at 16 bits per pixel when the
+     * heap cannot fit a 32-bit Bitmap twice over.
+     */
+    private static Bitmap decodeScaled(File file, int fullWidth, int fullHeight, int width, int height, boolean preview) {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return decodeScaled(file, fullWidth, fullHeight, width, height, preview, available);
+    }
+
+    /**
+     * Decodes as decodeScaled(File, int, int, int, int, boolean) does, given `availableBytes` of
+     * free heap.
+     */
+    static Bitmap decodeScaled(File file, int fullWidth, int fullHeight, int width, int height, boolean preview, long availableBytes) {
+        BitmapFactory.Options options = newScaledDecodeOptions(fullWidth, fullHeight, width, height, availableBytes);
+        long argbBytes = (long) width * height * 4;
 
-        MessagePart preview;
+        // Scaled decodes can only reuse Bitmaps from KitKat on
+        boolean reuse = preview && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        options.inMutable = reuse;
+        Bitmap reusable = preview ? sReusablePreview.getAndSet(null) : null;
+        if (reusable != null && reuse && options.inPreferredConfig == Bitmap.Config.ARGB_8888
+                && reusable.getAllocationByteCount() >= argbBytes) {
+            options.inBitmap = reusable;
+        } else if (reusable != null) {
+            reusable.recycle();
+        }
         if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Creating Preview from '" + file.getAbsolutePath() + "'");
+            Log.v("Sample size: " + options.inSampleSize + ", density scale: " + options.inDensity + " to " + options.inTargetDensity
+                    + (options.inBitmap != null ? ", reusing Bitmap" : ""));
         }
 
-        // Determine preview size
-        int[] previewDim = Util.scaleDownInside(fullWidth, fullHeight, PREVIEW_MAX_WIDTH, PREVIEW_MAX_HEIGHT);
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Preview size: " + previewDim[0] + "x" + previewDim[1]);
+        try {
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap could not be reused
+            if (options.inBitmap == null) throw e;
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
         }
+    }
 
-        // Determine sample size for preview
+    /**
+     * Returns options decoding a `fullWidth` x `fullHeight` image at about `width` x `height` in a
+     * single decode, given `availableBytes` of free heap.
+     */
+    static BitmapFactory.Options newScaledDecodeOptions(int fullWidth, int fullHeight, int width, int height, long availableBytes) {
+        // Decoders round sampled dimensions up
         int sampleSize = 1;
-        int sampleWidth = fullWidth;
-        int sampleHeight = fullHeight;
-        while (sampleWidth > previewDim[0] && sampleHeight > previewDim[1]) {
-            sampleWidth >>= 1;
-            sampleHeight >>= 1;
-            sampleSize <<= 1;
-        }
-        if (sampleSize != 1) sampleSize >>= 1; // Back off 1 for scale-down instead of scale-up
-        BitmapFactory.Options previewOptions = new BitmapFactory.Options();
-        previewOptions.inSampleSize = sampleSize;
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Preview sampled size: " + (sampleWidth << 1) + "x" + (sampleHeight << 1));
+        while ((fullWidth + sampleSize * 2 - 1) / (sampleSize * 2) >= width
+                && (fullHeight + sampleSize * 2 - 1) / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
         }
+        int sampledWidth = (fullWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (fullHeight + sampleSize - 1) / sampleSize;
 
-        // Create preview
-        Bitmap sampledBitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), previewOptions);
-        Bitmap previewBitmap = Bitmap.createScaledBitmap(sampledBitmap, previewDim[0], previewDim[1], true);
-        sampledBitmap.recycle();
-        File temp = new File(context.getCacheDir(), ThreePartImageUtils.class.getSimpleName() + "." + System.nanoTime() + ".jpg");
-        FileOutputStream previewStream = new FileOutputStream(temp);
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Compressing preview to '" + temp.getAbsolutePath() + "'");
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (sampledWidth > width || sampledHeight > height) {
+            // Scale by the longer target side, which is rounded least
+            options.inScaled = true;
+            options.inDensity = width >= height ? sampledWidth : sampledHeight;
+            options.inTargetDensity = width >= height ? width : height;
+        }
+        long argbBytes = (long) width * height * 4;
+        options.inPreferredConfig = availableBytes < argbBytes * 2 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return options;
+    }
+
+    /**
+     * Keeps a mutable preview Bitmap for reuse by the next preview decodeScaled(), or recycles it.
+     */
+    static void releasePreviewBitmap(Bitmap bitmap) {
+        if (!bitmap.isMutable() || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || !sReusablePreview.compareAndSet(null, bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Returns JPEG `bytes` with `exifOrientation` set, going through a temporary file for
+     * ExifInterface.  The file is read back into memory so it can be deleted right away.
+     */
+    private static byte[] preserveExifOrientation(Context context, byte[] bytes, int exifOrientation) throws IOException {
+        File temp = newTempFile(context);
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                stream.write(bytes);
+            } finally {
+                stream.close();
+            }
+            setExifOrientation(temp, exifOrientation);
+            return readFully(temp);
+        } finally {
+            deleteTempFile(temp);
+        }
+    }
+
+    /**
+     * Closes the stream a full image part reads from, once its Message will not be sent.
+     */
+    static void closeFullStream(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
         }
-        previewBitmap.compress(Bitmap.CompressFormat.JPEG, PREVIEW_COMPRESSION_QUALITY, previewStream);
-        previewBitmap.recycle();
-        previewStream.close();
+    }
 
-        // Preserve exif orientation
-        ExifInterface preserver = new ExifInterface(temp.getAbsolutePath());
+    private static void setExifOrientation(File file, int exifOrientation) throws IOException {
+        if (exifOrientation == ExifInterface.ORIENTATION_UNDEFINED) return;
+        ExifInterface preserver = new ExifInterface(file.getAbsolutePath());
         preserver.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(exifOrientation));
         preserver.saveAttributes();
         if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Exif orientation preserved in preview");
+            Log.v("Exif orientation preserved in '" + file.getAbsolutePath() + "'");
         }
+    }
 
-        preview = client.newMessagePart(MIME_TYPE_PREVIEW, new FileInputStream(temp), temp.length());
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v(String.format(Locale.US, "Full image bytes: %d, preview bytes: %d, info bytes: %d", full.getSize(), preview.getSize(), info.getSize()));
+    private static File newTempFile(Context context) {
+        return new File(context.getCacheDir(), PROCESS_TEMP_FILE_PREFIX + System.nanoTime() + ".jpg");
+    }
+
+    private static void deleteTempFile(File temp) {
+        if (!temp.delete() && temp.exists() && Log.isLoggable(Log.ERROR)) {
+            Log.e("Could not delete '" + temp.getAbsolutePath() + "'");
         }
+    }
 
-        MessagePart[] parts = new MessagePart[3];
-        parts[PART_INDEX_FULL] = full;
-        parts[PART_INDEX_PREVIEW] = preview;
-        parts[PART_INDEX_INFO] = info;
-        return client.newMessage(parts);
+    private static byte[] readFully(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int count = 0;
+            int read;
+            while (count < bytes.length && (read = in.read(bytes, count, bytes.length - count)) != -1) {
+                count += read;
+            }
+            if (count < bytes.length) throw new IOException("Unexpected end of '" + file.getAbsolutePath() + "'");
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void report(Progress progress, float fraction) {
+        if (progress != null) progress.onProgress(fraction);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Progress receives the fraction of a ThreePartImage Message built so far, between steps.
+     * Throwing a CancellationException stops the build.
+     */
+    interface Progress {
+        void onProgress(float fraction);
+
+        /**
+         * Receives the stream the full image part reads from, for closing if the built Message is
+         * discarded.  Builds that fail after opening it close it themselves.
+         */
+        void onFullStreamOpened(InputStream stream);
+    }
+
+    /**
+     * Metrics describes how a ThreePartImage Message was built: the original and sent full image
+     * sizes, the preview size, and time spent.
+     */
+    public static class Metrics {
+        long mOriginalBytes;
+        long mFullBytes;
+        long mPreviewBytes;
+        int mOriginalWidth;
+        int mOriginalHeight;
+        int mFullWidth;
+        int mFullHeight;
+        long mRecompressMillis;
+        long mBuildMillis;
+
+        public long getOriginalBytes() {
+            return mOriginalBytes;
+        }
+
+        public long getFullBytes() {
+            return mFullBytes;
+        }
+
+        public long getPreviewBytes() {
+            return mPreviewBytes;
+        }
+
+        public int getOriginalWidth() {
+            return mOriginalWidth;
+        }
+
+        public int getOriginalHeight() {
+            return mOriginalHeight;
+        }
+
+        public int getFullWidth() {
+            return mFullWidth;
+        }
+
+        public int getFullHeight() {
+            return mFullHeight;
+        }
+
+        /**
+         * Returns the time spent decoding and recompressing the full image, or 0 if it was not
+         * recompressed.
+         */
+        public long getRecompressMillis() {
+            return mRecompressMillis;
+        }
+
+        public long getBuildMillis() {
+            return mBuildMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d %d bytes -> %dx%d %d bytes, preview %d bytes, recompress %dms, build %dms",
+                    mOriginalWidth, mOriginalHeight, mOriginalBytes, mFullWidth, mFullHeight, mFullBytes, mPreviewBytes,
+                    mRecompressMillis, mBuildMillis);
+        }
     }
 }
@@ -0,0 +1,345 @@
+package com.layer.atlas.provider;
+
+import com.layer.atlas.util.Log;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * IndexedParticipantProvider wraps any ParticipantProvider with an in-memory index over
+ * Participant names, so filtering does not scan every Participant.  Names are case and accent
+ * folded and split into tokens; each filter token must be a prefix of a name token, or for
+ * filter tokens of at least three characters, a substring of one.  Short tokens are looked up in a
+ * prefix index and longer ones in a trigram index, and results are ranked by match quality.
+ * When a filter narrows the previous one, e.g. while typing, only the previous matches are
+ * re-scored.
+ * <p>
+ * Call rebuild() to load all Participants from the wrapped provider, and put() or remove() as
+ * individual Participants change.  All methods are thread-safe.
+ */
+public class IndexedParticipantProvider implements ParticipantProvider {
+    private static final int PREFIX_LENGTH = 2;
+    private static final int GRAM_LENGTH = 3;
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+
+    // Match scores for a single filter token against a single name token
+    private static final int SCORE_EXACT = 4;
+    private static final int SCORE_FIRST_PREFIX = 3;
+    private static final int SCORE_PREFIX = 2;
+    private static final int SCORE_SUBSTRING = 1;
+
+    private final ParticipantProvider mParticipantProvider;
+    private int mMaxResults = Integer.MAX_VALUE;
+
+    // Guarded by this
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final Map<String, Set<String>> mPrefixes = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> mGrams = new HashMap<String, Set<String>>();
+
+    // IDs of Participants that may match the previous filter, for narrowing: its matches, or its
+    // candidates if it had more matches than its limit; guarded by this
+    private String[] mLastFilterTokens;
+    private Collection<String> mLastMatches;
+
+    public IndexedParticipantProvider(ParticipantProvider participantProvider) {
+        mParticipantProvider = participantProvider;
+    }
+
+    /**
+     * Sets the maximum number of Participants returned by getMatchingParticipants(), keeping the
+     * best ranked.
+     *
+     * @param maxResults Maximum number of matching Participants to return.
+     */
+    public IndexedParticipantProvider setMaxResults(int maxResults) {
+        if (maxResults < 1) throw new IllegalArgumentException("Max results must be positive");
+        mMaxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * Replaces the index with all Participants from the wrapped ParticipantProvider.
+     */
+    public void rebuild() {
+        Map<String, Participant> participants = mParticipantProvider.getMatchingParticipants(null, null);
+        if (participants == null) participants = Collections.emptyMap();
+        synchronized (this) {
+            mEntries.clear();
+            mPrefixes.clear();
+            mGrams.clear();
+            mLastMatches = null;
+            for (Participant participant : participants.values()) {
+                add(participant);
+            }
+        }
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v("Indexed " + participants.size() + " participants");
+        }
+    }
+
+    /**
+     * Adds or replaces a Participant in the index.
+     */
+    public synchronized void put(Participant participant) {
+        remove(participant.getId());
+        add(participant);
+        mLastMatches = null;
+    }
+
+    /**
+     * Removes a Participant from the index.
+     */
+    public synchronized void remove(String participantId) {
+        Entry entry = mEntries.remove(participantId);
+        if (entry == null) return;
+        mLastMatches = null;
+        for (String token : entry.mTokens) {
+            for (int i = 1; i <= Math.min(PREFIX_LENGTH, token.length()); i++) {
+                unindex(mPrefixes, token.substring(0, i), participantId);
+            }
+            for (int i = 0; i + GRAM_LENGTH <= token.length(); i++) {
+                unindex(mGrams, token.substring(i, i + GRAM_LENGTH), participantId);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns up to `limit` Participants matching `filter`, best matches first.  Participants with
+     * equal scores are ordered by their natural order.  Memory used is proportional to `limit`,
+     * not to the number of matches.
+     *
+     * @param filter Filter to match against Participant names, or `null` to match all.
+     * @param limit  Maximum number of Participants to return.
+     * @return Matching Participants, best matches first.
+     */
+    public List<Participant> search(String filter, int limit) {
+        String[] filterTokens = tokenize(filter);
+        PriorityQueue<Match> best = new PriorityQueue<Match>();
+        synchronized (this) {
+            Collection<String> candidates = narrows(filterTokens) ? mLastMatches : getCandidates(filterTokens);
+            // Matches are only kept for narrowing while they fit within the limit; beyond that the
+            // candidates themselves are kept, which still contain every narrower match.
+            List<String> matches = new ArrayList<String>();
+            for (String participantId : candidates) {
+                Entry entry = mEntries.get(participantId);
+                int score = score(entry.mTokens, filterTokens);
+                if (score <= 0) continue;
+                if (matches != null && matches.size() < limit) {
+                    matches.add(participantId);
+                } else {
+                    matches = null;
+                }
+                if (best.size() < limit) {
+                    best.add(new Match(entry.mParticipant, score));
+                } else if (best.peek().isWorseThan(entry.mParticipant, score)) {
+                    best.poll();
+                    best.add(new Match(entry.mParticipant, score));
+                }
+            }
+            mLastFilterTokens = filterTokens;
+            mLastMatches = filterTokens.length == 0 ? null : (matches != null ? matches : candidates);
+        }
+        List<Participant> results = new ArrayList<Participant>(best.size());
+        while (!best.isEmpty()) results.add(best.poll().mParticipant);
+        Collections.reverse(results);
+        return results;
+    }
+
+    @Override
+    public Map<String, Participant> getMatchingParticipants(String filter, Map<String, Participant> result) {
+        if (result == null) result = new HashMap<String, Participant>();
+        result.clear();
+        for (Participant participant : search(filter, mMaxResults)) {
+            result.put(participant.getId(), participant);
+        }
+        return result;
+    }
+
+    @Override
+    public Participant getParticipant(String userId) {
+        synchronized (this) {
+            Entry entry = mEntries.get(userId);
+            if (entry != null) return entry.mParticipant;
+        }
+        return mParticipantProvider.getParticipant(userId);
+    }
+
+    /**
+     * Returns `string` lower-cased with accents removed.
+     */
+    public static String fold(String string) {
+        String decomposed = Normalizer.normalize(string, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.US);
+    }
+
+    /**
+     * Splits `string` into folded tokens of letters and digits.
+     */
+    static String[] tokenize(String string) {
+        if (string == null) return new String[0];
+        String folded = fold(string);
+        List<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    private void add(Participant participant) {
+        String participantId = participant.getId();
+        String name = participant.getName();
+        Entry entry = new Entry(participant, tokenize(name));
+        mEntries.put(participantId, entry);
+        for (String token : entry.mTokens) {
+            for (int i = 1; i <= Math.min(PREFIX_LENGTH, token.length()); i++) {
+                index(mPrefixes, token.substring(0, i), participantId);
+            }
+            for (int i = 0; i + GRAM_LENGTH <= token.length(); i++) {
+                index(mGrams, token.substring(i, i + GRAM_LENGTH), participantId);
+            }
+        }
+    }
+
+    /**
+     * Returns `true` if every Participant matching `filterTokens` also matched the previous
+     * filter: its tokens are the previous tokens plus more, with the last previous token possibly
+     * extended.  Extended tokens must be long enough to have matched as substrings.
+     */
+    private boolean narrows(String[] filterTokens) {
+        if (mLastMatches == null || filterTokens.length < mLastFilterTokens.length) return false;
+        int last = mLastFilterTokens.length - 1;
+        for (int i = 0; i < last; i++) {
+            if (!filterTokens[i].equals(mLastFilterTokens[i])) return false;
+        }
+        String previous = mLastFilterTokens[last];
+        if (filterTokens[last].equals(previous)) return true;
+        return previous.length() >= GRAM_LENGTH && filterTokens[last].startsWith(previous);
+    }
+
+    /**
+     * Returns IDs of Participants that may match all filter tokens, from the smallest posting
+     * set of any filter token.
+     */
+    private Collection<String> getCandidates(String[] filterTokens) {
+        if (filterTokens.length == 0) return mEntries.keySet();
+        Set<String> smallest = null;
+        for (String token : filterTokens) {
+            Set<String> postings = getPostings(token);
+            if (postings == null) return Collections.emptySet();
+            if (smallest == null || postings.size() < smallest.size()) smallest = postings;
+        }
+        return smallest;
+    }
+
+    private Set<String> getPostings(String token) {
+        if (token.length() < GRAM_LENGTH) return mPrefixes.get(token);
+        Set<String> smallest = null;
+        for (int i = 0; i + GRAM_LENGTH <= token.length(); i++) {
+            Set<String> postings = mGrams.get(token.substring(i, i + GRAM_LENGTH));
+            if (postings == null) return null;
+            if (smallest == null || postings.size() < smallest.size()) smallest = postings;
+        }
+        return smallest;
+    }
+
+    /**
+     * Returns the sum of each filter token's best match against the name tokens, or 0 if any
+     * filter token does not match.
+     */
+    private static int score(String[] nameTokens, String[] filterTokens) {
+        if (filterTokens.length == 0) return 1;
+        int total = 0;
+        for (String filterToken : filterTokens) {
+            int best = 0;
+            for (int i = 0; i < nameTokens.length && best < SCORE_EXACT; i++) {
+                String nameToken = nameTokens[i];
+                if (nameToken.equals(filterToken)) {
+                    best = SCORE_EXACT;
+                } else if (nameToken.startsWith(filterToken)) {
+                    best = Math.max(best, i == 0 ? SCORE_FIRST_PREFIX : SCORE_PREFIX);
+                } else if (filterToken.length() >= GRAM_LENGTH && nameToken.contains(filterToken)) {
+                    best = Math.max(best, SCORE_SUBSTRING);
+                }
+            }
+            if (best == 0) return 0;
+            total += best;
+        }
+        return total;
+    }
+
+    private static void index(Map<String, Set<String>> index, String key, String participantId) {
+        Set<String> postings = index.get(key);
+        if (postings == null) {
+            postings = new HashSet<String>();
+            index.put(key, postings);
+        }
+        postings.add(participantId);
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String participantId) {
+        Set<String> postings = index.get(key);
+        if (postings == null) return;
+        postings.remove(participantId);
+        if (postings.isEmpty()) index.remove(key);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Entry {
+        final Participant mParticipant;
+        final String[] mTokens;
+
+        Entry(Participant participant, String[] tokens) {
+            mParticipant = participant;
+            mTokens = tokens;
+        }
+    }
+
+    /**
+     * Match orders worst first, so a PriorityQueue of Matches keeps the worst at its head.
+     */
+    private static class Match implements Comparable<Match> {
+        final Participant mParticipant;
+        final int mScore;
+
+        Match(Participant participant, int score) {
+            mParticipant = participant;
+            mScore = score;
+        }
+
+        boolean isWorseThan(Participant participant, int score) {
+            if (mScore != score) return mScore < score;
+            return mParticipant.compareTo(participant) > 0;
+        }
+
+        @Override
+        public int compareTo(Match another) {
+            if (mScore != another.mScore) return mScore < another.mScore ? -1 : 1;
+            return another.mParticipant.compareTo(mParticipant);
+        }
+    }
+}
@@ -9,7 +9,8 @@ public interface ParticipantProvider {
     /**
      * Returns a map of all Participants by their unique ID who match the provided `filter`, or
      * all Participants if `filter` is `null`.  If `result` is provided, it is operated on and
-     * returned.  If `result` is `null`, a new Map is created and returned.
+     * returned.  If `result` is `null`, a new Map is created and returned.  May be called from a
+     * background thread.
      *
      * @param filter The filter to apply to Participants
      * @param result The Map to operate on
@@ -0,0 +1,237 @@
+package com.layer.atlas.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * AvatarBitmapCache is a process-wide LRU cache of transformed avatar Bitmaps shared by all
+ * AtlasAvatars.  Bitmaps are keyed by participant ID, avatar URL, pixel size, and transform, so a
+ * rebound AtlasAvatar can draw an already-circled Bitmap synchronously instead of issuing a new
+ * Picasso load.  Pre-composited multi-participant clusters are cached alongside them, keyed by
+ * CompositeKey.
+ */
+public final class AvatarBitmapCache {
+    private static final int MAX_BYTES_DIVISOR = 32;
+    private static final int MIN_MAX_BYTES = 1024 * 1024;
+
+    private static volatile AvatarBitmapCache sInstance;
+
+    // Values keyed by Key or CompositeKey
+    private final LruCache<Object, Bitmap> mBitmaps;
+    private ComponentCallbacks2 mComponentCallbacks;
+
+    private AvatarBitmapCache(int maxBytes) {
+        mBitmaps = new LruCache<Object, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Object key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Returns the shared AvatarBitmapCache, sized to a fraction of the maximum heap.
+     */
+    public static AvatarBitmapCache getInstance() {
+        if (sInstance == null) {
+            synchronized (AvatarBitmapCache.class) {
+                if (sInstance == null) {
+                    long maxBytes = Runtime.getRuntime().maxMemory() / MAX_BYTES_DIVISOR;
+                    sInstance = new AvatarBitmapCache((int) Math.max(MIN_MAX_BYTES, Math.min(Integer.MAX_VALUE, maxBytes)));
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public Bitmap get(Key key) {
+        return mBitmaps.get(key);
+    }
+
+    public void put(Key key, Bitmap bitmap) {
+        if (key == null || bitmap == null) return;
+        mBitmaps.put(key, bitmap);
+    }
+
+    public Bitmap get(CompositeKey key) {
+        return mBitmaps.get(key);
+    }
+
+    public void put(CompositeKey key, Bitmap bitmap) {
+        if (key == null || bitmap == null) return;
+        mBitmaps.put(key, bitmap);
+    }
+
+    public void evictAll() {
+        mBitmaps.evictAll();
+    }
+
+    public int getSizeBytes() {
+        return mBitmaps.size();
+    }
+
+    public int getMaxBytes() {
+        return mBitmaps.maxSize();
+    }
+
+    /**
+     * Registers with the application Context to evict all Bitmaps under memory pressure.
+     *
+     * @param context Context whose application Context to register with.
+     */
+    public synchronized void registerComponentCallbacks(Context context) {
+        if (mComponentCallbacks != null) return;
+        mComponentCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    evictAll();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Avatar sizes are part of each key
+            }
+
+            @Override
+            public void onLowMemory() {
+                evictAll();
+            }
+        };
+        context.getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Key identifies a transformed avatar Bitmap by participant ID, avatar URL, pixel size, and
+     * whether it was transformed for a single or multi-participant cluster.
+     */
+    public static final class Key {
+        private final String mParticipantId;
+        private final Uri mUrl;
+        private final int mSize;
+        private final boolean mMulti;
+
+        public Key(String participantId, Uri url, int size, boolean multi) {
+            mParticipantId = participantId;
+            mUrl = url;
+            mSize = size;
+            mMulti = multi;
+        }
+
+        public String getParticipantId() {
+            return mParticipantId;
+        }
+
+        public Uri getUrl() {
+            return mUrl;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public boolean isMulti() {
+            return mMulti;
+        }
+
+        /**
+         * Returns `true` if this Key equals one built from the given values, without allocating.
+         */
+        public boolean matches(String participantId, Uri url, int size, boolean multi) {
+            if (mSize != size || mMulti != multi) return false;
+            if (!mParticipantId.equals(participantId)) return false;
+            return mUrl == null ? url == null : mUrl.equals(url);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return matches(key.mParticipantId, key.mUrl, key.mSize, key.mMulti);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mParticipantId.hashCode();
+            result = 31 * result + (mUrl == null ? 0 : mUrl.hashCode());
+            result = 31 * result + mSize;
+            result = 31 * result + (mMulti ? 1 : 0);
+            return result;
+        }
+    }
+
+    /**
+     * CompositeKey identifies a pre-composited avatar cluster by its ordered members, each
+     * member's initials and shown avatar Key (`null` while showing initials), its style, and its
+     * pixel size.
+     */
+    public static final class CompositeKey {
+        private final String[] mParticipantIds;
+        private final String[] mInitials;
+        private final Key[] mImageKeys;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mBackgroundColor;
+        private final int mBorderColor;
+        private final int mTextColor;
+        private final Typeface mTypeface;
+        private final int mHashCode;
+
+        public CompositeKey(String[] participantIds, String[] initials, Key[] imageKeys, int width, int height,
+                            int backgroundColor, int borderColor, int textColor, Typeface typeface) {
+            mParticipantIds = participantIds;
+            mInitials = initials;
+            mImageKeys = imageKeys;
+            mWidth = width;
+            mHeight = height;
+            mBackgroundColor = backgroundColor;
+            mBorderColor = borderColor;
+            mTextColor = textColor;
+            mTypeface = typeface;
+
+            int result = Arrays.hashCode(mParticipantIds);
+            result = 31 * result + Arrays.hashCode(mInitials);
+            result = 31 * result + Arrays.hashCode(mImageKeys);
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + mBackgroundColor;
+            result = 31 * result + mBorderColor;
+            result = 31 * result + mTextColor;
+            result = 31 * result + (mTypeface == null ? 0 : mTypeface.hashCode());
+            mHashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CompositeKey key = (CompositeKey) o;
+            if (mHashCode != key.mHashCode) return false;
+            if (mWidth != key.mWidth || mHeight != key.mHeight) return false;
+            if (mBackgroundColor != key.mBackgroundColor || mBorderColor != key.mBorderColor || mTextColor != key.mTextColor) return false;
+            if (mTypeface == null ? key.mTypeface != null : !mTypeface.equals(key.mTypeface)) return false;
+            return Arrays.equals(mParticipantIds, key.mParticipantIds)
+                    && Arrays.equals(mInitials, key.mInitials)
+                    && Arrays.equals(mImageKeys, key.mImageKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.layer.atlas.util;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.layer.atlas.provider.Participant;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ConversationTitleCache caches Conversation titles by Conversation ID, so binding a Conversation
+ * does not look up every participant.  Each entry records the participants and metadata title it
+ * was built from and is rebuilt if either changed, or if a participant was not yet available from
+ * the ParticipantProvider.  Entries are also invalidated by Layer change events for Conversation
+ * participants and metadata, and by invalidateParticipant() when a Participant's name changes.
+ */
+public final class ConversationTitleCache implements LayerChangeEventListener.BackgroundThread {
+    private static final int CACHE_SIZE = 500;
+    private static final ConversationTitleCache sInstance = new ConversationTitleCache();
+
+    private final LruCache<Uri, Entry> mTitles = new LruCache<Uri, Entry>(CACHE_SIZE);
+    private final LruCache<Uri, Entry> mParticipantNames = new LruCache<Uri, Entry>(CACHE_SIZE);
+
+    // LayerClients this cache listens to for Conversation changes; guarded by itself
+    private final Map<LayerClient, Boolean> mRegisteredClients = new WeakHashMap<LayerClient, Boolean>();
+
+    private long mHits;
+    private long mMisses;
+
+    private ConversationTitleCache() {
+    }
+
+    public static ConversationTitleCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the Conversation's metadata title, or a comma-separated list of other participants'
+     * names (or initials, for groups) if it has none.
+     *
+     * @see Util#getConversationTitle(LayerClient, ParticipantProvider, Conversation)
+     */
+    public String getTitle(LayerClient client, ParticipantProvider provider, Conversation conversation) {
+        return get(mTitles, client, provider, conversation, true);
+    }
+
+    /**
+     * Returns a comma-separated list of other participants' full names, ignoring any metadata
+     * title.
+     */
+    public String getParticipantNames(LayerClient client, ParticipantProvider provider, Conversation conversation) {
+        return get(mParticipantNames, client, provider, conversation, false);
+    }
+
+    /**
+     * Invalidates all cached titles, e.g. after many Participants changed.
+     */
+    public void invalidateAll() {
+        mTitles.evictAll();
+        mParticipantNames.evictAll();
+    }
+
+    /**
+     * Invalidates cached titles for the given Conversation.
+     */
+    public void invalidateConversation(Uri conversationId) {
+        mTitles.remove(conversationId);
+        mParticipantNames.remove(conversationId);
+    }
+
+    /**
+     * Invalidates cached titles of Conversations including the given participant.  Call when a
+     * Participant's name changes in the ParticipantProvider.
+     */
+    public void invalidateParticipant(String participantId) {
+        invalidateParticipant(mTitles, participantId);
+        invalidateParticipant(mParticipantNames, participantId);
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the fraction of lookups served from the cache, or 0 if there were none.
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0f : (float) mHits / total;
+    }
+
+    @Override
+    public void onChangeEvent(LayerChangeEvent layerChangeEvent) {
+        for (LayerChange change : layerChangeEvent.getChanges()) {
+            if (!(change.getObject() instanceof Conversation)) continue;
+            if (change.getChangeType() == LayerChange.Type.UPDATE) {
+                String attribute = change.getAttributeName();
+                if (attribute != null && !attribute.equals("participants") && !attribute.startsWith("metadata")) {
+                    continue;
+                }
+            }
+            invalidateConversation(((Conversation) change.getObject()).getId());
+        }
+    }
+
+    private String get(LruCache<Uri, Entry> cache, LayerClient client, ParticipantProvider provider, Conversation conversation, boolean useMetadata) {
+        register(client);
+        Uri id = conversation.getId();
+        Collection<String> participantIds = conversation.getParticipants();
+        String metadataTitle = useMetadata ? Util.getConversationMetadataTitle(conversation) : null;
+
+        Entry entry = cache.get(id);
+        if (entry != null && entry.isValid(participantIds, metadataTitle)) {
+            synchronized (this) {
+                mHits++;
+            }
+            return entry.mTitle;
+        }
+        synchronized (this) {
+            mMisses++;
+        }
+
+        if (metadataTitle != null) {
+            entry = new Entry(metadataTitle, participantIds, metadataTitle, true);
+        } else {
+            StringBuilder sb = new StringBuilder();
+            boolean complete = true;
+            boolean useInitials = useMetadata && participantIds.size() > 2;
+            String userId = client.getAuthenticatedUserId();
+            for (String participantId : participantIds) {
+                if (participantId.equals(userId)) continue;
+                Participant participant = provider.getParticipant(participantId);
+                if (participant == null) {
+                    complete = false;
+                    continue;
+                }
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(useInitials ? Util.getInitials(participant) : participant.getName());
+            }
+            entry = new Entry(useMetadata ? sb.toString().trim() : sb.toString(), participantIds, null, complete);
+        }
+        cache.put(id, entry);
+        return entry.mTitle;
+    }
+
+    private void register(LayerClient client) {
+        synchronized (mRegisteredClients) {
+            if (mRegisteredClients.containsKey(client)) return;
+            mRegisteredClients.put(client, Boolean.TRUE);
+        }
+        client.registerEventListener(this);
+    }
+
+    private static void invalidateParticipant(LruCache<Uri, Entry> cache, String participantId) {
+        for (Map.Entry<Uri, Entry> entry : cache.snapshot().entrySet()) {
+            if (entry.getValue().mParticipantIds.contains(participantId)) cache.remove(entry.getKey());
+        }
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Entry {
+        final String mTitle;
+        final Collection<String> mParticipantIds;
+        final String mMetadataTitle;
+
+        // `false` if a participant was not yet available when this title was built
+        final boolean mComplete;
+
+        Entry(String title, Collection<String> participantIds, String metadataTitle, boolean complete) {
+            mTitle = title;
+            mParticipantIds = participantIds;
+            mMetadataTitle = metadataTitle;
+            mComplete = complete;
+        }
+
+        boolean isValid(Collection<String> participantIds, String metadataTitle) {
+            if (!mComplete) return false;
+            if (mMetadataTitle == null ? metadataTitle != null : !mMetadataTitle.equals(metadataTitle)) return false;
+            return mParticipantIds == participantIds || mParticipantIds.equals(participantIds);
+        }
+    }
+}
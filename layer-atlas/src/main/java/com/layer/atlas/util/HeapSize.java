@@ -0,0 +1,129 @@
+package com.layer.atlas.util;
+
+import android.net.Uri;
+
+/**
+ * HeapSize estimates the retained heap size of objects, for charging AtlasCellFactory.ParsedContent
+ * against cache budgets.  Estimates assume the Android runtime layout: an 8-byte object header,
+ * 4-byte references, a 12-byte array header, and 8-byte alignment.  Strings are estimated with a
+ * separate backing char array, which matches or slightly overestimates newer runtimes that store
+ * characters inline.
+ */
+public final class HeapSize {
+    public static final int OBJECT_HEADER = 8;
+    public static final int ARRAY_HEADER = 12;
+    public static final int REFERENCE = 4;
+    public static final int ALIGNMENT = 8;
+
+    public static final int INT = Integer.SIZE / Byte.SIZE;
+    public static final int LONG = Long.SIZE / Byte.SIZE;
+    public static final int DOUBLE = Double.SIZE / Byte.SIZE;
+    public static final int CHAR = Character.SIZE / Byte.SIZE;
+
+    // String: value array reference plus offset, count, and hash
+    private static final int STRING_SHALLOW = ofObject(1, 3 * INT);
+
+    // Uri.StringUri: uriString, scheme, ssp, authority, path, query, fragment, userInfo, and host
+    // references, plus cached scheme separator, fragment separator, and port
+    private static final int URI_SHALLOW = ofObject(9, 3 * INT);
+
+    // Uri.PathPart: encoded, decoded, and path segments references, and its encoded path String,
+    // a substring sharing the Uri string's chars
+    private static final int URI_PATH_PART = ofObject(3, 0) + STRING_SHALLOW;
+
+    // Uri.PathSegments: segments array reference, size, and AbstractList's modCount
+    private static final int URI_PATH_SEGMENTS = ofObject(1, 2 * INT);
+
+    // Initial capacity of Uri.PathSegmentsBuilder, which doubles when full
+    private static final int URI_PATH_SEGMENTS_CAPACITY = 4;
+
+    private HeapSize() {
+    }
+
+    /**
+     * Returns the aligned size of an object with the given fields, excluding anything referenced.
+     *
+     * @param references     Number of reference fields.
+     * @param primitiveBytes Total bytes of primitive fields.
+     * @return Shallow size in bytes.
+     */
+    public static int ofObject(int references, int primitiveBytes) {
+        return align(OBJECT_HEADER + references * REFERENCE + primitiveBytes);
+    }
+
+    public static int ofCharArray(int length) {
+        return align(ARRAY_HEADER + length * CHAR);
+    }
+
+    public static int ofByteArray(int length) {
+        return align(ARRAY_HEADER + length);
+    }
+
+    /**
+     * Returns the retained size of a String and its characters, or 0 for `null`.
+     */
+    public static int ofString(String string) {
+        if (string == null) return 0;
+        return STRING_SHALLOW + ofCharArray(string.length());
+    }
+
+    public static int ofReferenceArray(int length) {
+        return align(ARRAY_HEADER + length * REFERENCE);
+    }
+
+    /**
+     * Returns the retained size of a hierarchical Uri without escapes, such as a MessagePart id,
+     * once parsed up to its path segments, or 0 for `null`.  Parsed parts and segments are
+     * substrings sharing the Uri string's chars, so the chars are only counted once.
+     */
+    public static int ofUri(Uri uri) {
+        if (uri == null) return 0;
+        String string = uri.toString();
+        int size = URI_SHALLOW + ofString(string);
+
+        // Empty and missing paths are shared constants
+        int pathStart = getPathStart(string);
+        int pathEnd = getPathEnd(string, pathStart);
+        if (pathStart < 0 || pathStart == pathEnd) return size;
+        size += URI_PATH_PART;
+
+        int segments = 0;
+        for (int i = pathStart; i < pathEnd; i++) {
+            if (string.charAt(i) != '/' && (i == pathStart || string.charAt(i - 1) == '/')) segments++;
+        }
+        if (segments == 0) return size;
+        int capacity = URI_PATH_SEGMENTS_CAPACITY;
+        while (capacity <= segments) capacity *= 2;
+        return size + URI_PATH_SEGMENTS + ofReferenceArray(capacity) + segments * STRING_SHALLOW;
+    }
+
+    /**
+     * Returns the index a Uri string's path starts at, as Uri parses it, or -1 for opaque Uris.
+     */
+    private static int getPathStart(String uri) {
+        int length = uri.length();
+        int schemeSeparator = uri.indexOf(':');
+        if (schemeSeparator >= 0 && (schemeSeparator + 1 == length || uri.charAt(schemeSeparator + 1) != '/')) return -1;
+        int start = schemeSeparator + 1;
+        if (!uri.startsWith("//", start)) return start;
+
+        // Skip the authority
+        for (start += 2; start < length; start++) {
+            char c = uri.charAt(start);
+            if (c == '?' || c == '#') return start;
+            if (c == '/' || c == '\\') break;
+        }
+        return start;
+    }
+
+    private static int getPathEnd(String uri, int pathStart) {
+        if (pathStart < 0) return pathStart;
+        int end = pathStart;
+        while (end < uri.length() && uri.charAt(end) != '?' && uri.charAt(end) != '#') end++;
+        return end;
+    }
+
+    public static int align(int bytes) {
+        return (bytes + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+    }
+}
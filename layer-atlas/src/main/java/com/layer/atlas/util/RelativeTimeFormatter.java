@@ -0,0 +1,156 @@
+package com.layer.atlas.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.LruCache;
+
+import com.layer.atlas.R;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+
+/**
+ * RelativeTimeFormatter formats timestamps relative to today: as a time or "Today" for today,
+ * "Yesterday", a day of the week within the last week, or a date.  Day boundaries are computed
+ * once per day and recomputed when the date, time, time zone, or locale changes; formatted strings
+ * are cached by bucket and timestamp minute, so DateFormats should have at most minute resolution.
+ * All methods are thread-safe.
+ */
+public final class RelativeTimeFormatter {
+    private static final long MILLIS_MINUTE = 60 * 1000;
+    private static final int CACHE_SIZE = 256;
+
+    private static RelativeTimeFormatter sInstance;
+
+    private final Context mContext;
+
+    // Day boundaries and localized strings; guarded by this
+    private long mTodayMidnight;
+    private long mYesterdayMidnight;
+    private long mWeekAgoMidnight;
+    private long mTomorrowMidnight = Long.MIN_VALUE;
+    private String mToday;
+    private String mYesterday;
+    private String[] mDaysOfWeek;
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final SimpleDateFormat mDayFormat = new SimpleDateFormat("EEE, LLL dd,", Locale.US);
+
+    // Formatted strings by timestamp minute, for each caller-provided DateFormat; guarded by this
+    private final Map<DateFormat, LruCache<Long, String>> mFormatted = new WeakHashMap<DateFormat, LruCache<Long, String>>();
+    private final LruCache<Long, String> mFormattedDays = new LruCache<Long, String>(CACHE_SIZE);
+
+    private RelativeTimeFormatter(Context context) {
+        mContext = context.getApplicationContext();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_DATE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        }, filter);
+    }
+
+    public static synchronized RelativeTimeFormatter getInstance(Context context) {
+        if (sInstance == null) sInstance = new RelativeTimeFormatter(context);
+        return sInstance;
+    }
+
+    /**
+     * Formats `date` with `timeFormat` if today, as "Yesterday", as a day of the week within the
+     * last week, or with `dateFormat` otherwise.
+     */
+    public synchronized String formatTime(Date date, DateFormat timeFormat, DateFormat dateFormat) {
+        long time = date.getTime();
+        updateBoundaries();
+        if (time > mTodayMidnight) return format(timeFormat, time);
+        if (time > mYesterdayMidnight) return mYesterday;
+        if (time > mWeekAgoMidnight) return getDayOfWeek(time);
+        return format(dateFormat, time);
+    }
+
+    /**
+     * Formats `date` as "Today", "Yesterday", a day of the week within the last week, or a date.
+     */
+    public synchronized String formatTimeDay(Date date) {
+        long time = date.getTime();
+        updateBoundaries();
+        if (time > mTodayMidnight) return mToday;
+        if (time > mYesterdayMidnight) return mYesterday;
+        if (time > mWeekAgoMidnight) return getDayOfWeek(time);
+        Long minute = time / MILLIS_MINUTE;
+        String formatted = mFormattedDays.get(minute);
+        if (formatted == null) {
+            formatted = mDayFormat.format(date);
+            mFormattedDays.put(minute, formatted);
+        }
+        return formatted;
+    }
+
+    /**
+     * Drops day boundaries, localized strings, and cached strings.
+     */
+    public synchronized void invalidate() {
+        TimeZone timeZone = TimeZone.getDefault();
+        mCalendar.setTimeZone(timeZone);
+        mDayFormat.setTimeZone(timeZone);
+        mTomorrowMidnight = Long.MIN_VALUE;
+        mFormatted.clear();
+        mFormattedDays.evictAll();
+    }
+
+    private void updateBoundaries() {
+        long now = System.currentTimeMillis();
+        if (now < mTomorrowMidnight && now >= mTodayMidnight) return;
+
+        mCalendar.setTimeInMillis(now);
+        mCalendar.set(Calendar.HOUR_OF_DAY, 0);
+        mCalendar.set(Calendar.MINUTE, 0);
+        mCalendar.set(Calendar.SECOND, 0);
+        mCalendar.set(Calendar.MILLISECOND, 0);
+        mTodayMidnight = mCalendar.getTimeInMillis();
+        mCalendar.add(Calendar.DAY_OF_MONTH, 1);
+        mTomorrowMidnight = mCalendar.getTimeInMillis();
+        mCalendar.add(Calendar.DAY_OF_MONTH, -2);
+        mYesterdayMidnight = mCalendar.getTimeInMillis();
+        mCalendar.add(Calendar.DAY_OF_MONTH, -6);
+        mWeekAgoMidnight = mCalendar.getTimeInMillis();
+
+        mToday = mContext.getString(R.string.atlas_time_today);
+        mYesterday = mContext.getString(R.string.atlas_time_yesterday);
+        mDaysOfWeek = mContext.getResources().getStringArray(R.array.atlas_time_days_of_week);
+    }
+
+    private String getDayOfWeek(long time) {
+        mCalendar.setTimeInMillis(time);
+        return mDaysOfWeek[mCalendar.get(Calendar.DAY_OF_WEEK) - 1];
+    }
+
+    private String format(DateFormat format, long time) {
+        LruCache<Long, String> cache = mFormatted.get(format);
+        if (cache == null) {
+            cache = new LruCache<Long, String>(CACHE_SIZE);
+            mFormatted.put(format, cache);
+        }
+        Long minute = time / MILLIS_MINUTE;
+        String formatted = cache.get(minute);
+        if (formatted == null) {
+            synchronized (format) {
+                formatted = format.format(time);
+            }
+            cache.put(minute, formatted);
+        }
+        return formatted;
+    }
+}
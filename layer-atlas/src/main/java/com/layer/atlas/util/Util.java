@@ -19,14 +19,11 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.net.Uri;
+import android.util.LruCache;
 
 import com.layer.atlas.BuildConfig;
 import com.layer.atlas.R;
-import com.layer.atlas.messagetypes.generic.GenericCellFactory;
-import com.layer.atlas.messagetypes.location.LocationCellFactory;
-import com.layer.atlas.messagetypes.singlepartimage.SinglePartImageCellFactory;
-import com.layer.atlas.messagetypes.text.TextCellFactory;
-import com.layer.atlas.messagetypes.threepartimage.ThreePartImageCellFactory;
+import com.layer.atlas.messagetypes.MessagePreviews;
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.sdk.LayerClient;
@@ -42,18 +39,17 @@ import com.layer.sdk.messaging.MessagePart;
 import com.layer.sdk.query.Queryable;
 
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Util {
     private static final String METADATA_KEY_CONVERSATION_TITLE = "conversationName";
-    private static final int TIME_HOURS_24 = 24 * 60 * 60 * 1000;
-    private static final SimpleDateFormat DAY_OF_WEEK = new SimpleDateFormat("EEE, LLL dd,", Locale.US);
+    private static final int INITIALS_CACHE_SIZE = 512;
+
+    // Initials by full name
+    private static final LruCache<String, String> sInitials = new LruCache<String, String>(INITIALS_CACHE_SIZE);
 
     /**
      * Returns the app version name.
@@ -74,38 +70,22 @@ public class Util {
         manager.setPrimaryClip(clipData);
     }
 
-    // TODO: base this on registered types
+    /**
+     * Returns a truncated preview of the given Message from its registered MessagePreviews
+     * Provider.
+     *
+     * @see MessagePreviews
+     */
     public static String getLastMessageString(Context context, Message message) {
-        if (TextCellFactory.isType(message)) {
-            return TextCellFactory.getMessagePreview(context, message);
-        }
-        if (ThreePartImageCellFactory.isType(message)) {
-            return ThreePartImageCellFactory.getMessagePreview(context, message);
-        }
-        if (LocationCellFactory.isType(message)) {
-            return LocationCellFactory.getMessagePreview(context, message);
-        }
-        if (SinglePartImageCellFactory.isType(message)) {
-            return SinglePartImageCellFactory.getMessagePreview(context, message);
-        }
-        return GenericCellFactory.getPreview(context, message);
+        return MessagePreviews.getInstance().getPreview(context, message);
     }
 
+    /**
+     * Returns the Conversation's metadata title, or a comma-separated list of other participants'
+     * names (or initials, for groups) if it has none.  Titles are cached by ConversationTitleCache.
+     */
     public static String getConversationTitle(LayerClient client, ParticipantProvider provider, Conversation conversation) {
-        String metadataTitle = getConversationMetadataTitle(conversation);
-        if (metadataTitle != null) return metadataTitle.trim();
-
-        StringBuilder sb = new StringBuilder();
-        String userId = client.getAuthenticatedUserId();
-        for (String participantId : conversation.getParticipants()) {
-            if (participantId.equals(userId)) continue;
-            Participant participant = provider.getParticipant(participantId);
-            if (participant == null) continue;
-            String initials = conversation.getParticipants().size() > 2 ? getInitials(participant) : participant.getName();
-            if (sb.length() > 0) sb.append(", ");
-            sb.append(initials);
-        }
-        return sb.toString().trim();
+        return ConversationTitleCache.getInstance().getTitle(client, provider, conversation);
     }
 
     public static String getConversationMetadataTitle(Conversation conversation) {
@@ -126,74 +106,47 @@ public class Util {
         return getInitials(p.getName());
     }
 
+    /**
+     * Returns the upper-cased first letters of the first two words in `fullName`.  Results are
+     * cached by name.
+     */
     public static String getInitials(String fullName) {
-        if (fullName.contains(" ")) {
-            String[] names = fullName.split(" ");
-            int count = 0;
-            StringBuilder b = new StringBuilder();
-            for (String name : names) {
-                String t = name.trim();
-                if (t.isEmpty()) continue;
-                b.append(("" + t.charAt(0)).toUpperCase());
-                if (++count >= 2) break;
+        String initials = sInitials.get(fullName);
+        if (initials == null) {
+            initials = computeInitials(fullName);
+            sInitials.put(fullName, initials);
+        }
+        return initials;
+    }
+
+    private static String computeInitials(String fullName) {
+        char[] initials = new char[2];
+        int count = 0;
+        boolean wordStart = true;
+        for (int i = 0, length = fullName.length(); i < length && count < initials.length; i++) {
+            char c = fullName.charAt(i);
+            if (c == ' ') {
+                wordStart = true;
+            } else if (wordStart && c > ' ') {
+                initials[count++] = c;
+                wordStart = false;
             }
-            return b.toString();
-        } else {
-            return ("" + fullName.trim().charAt(0)).toUpperCase();
         }
+        return new String(initials, 0, count).toUpperCase();
     }
 
+    /**
+     * @see RelativeTimeFormatter#formatTime(Date, DateFormat, DateFormat)
+     */
     public static String formatTime(Context context, Date date, DateFormat timeFormat, DateFormat dateFormat) {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        long todayMidnight = cal.getTimeInMillis();
-        long yesterMidnight = todayMidnight - TIME_HOURS_24;
-        long weekAgoMidnight = todayMidnight - TIME_HOURS_24 * 7;
-
-        String timeText;
-        if (date.getTime() > todayMidnight) {
-            timeText = timeFormat.format(date.getTime());
-        } else if (date.getTime() > yesterMidnight) {
-            timeText = context.getString(R.string.atlas_time_yesterday);
-        } else if (date.getTime() > weekAgoMidnight) {
-            cal.setTime(date);
-            timeText = context.getResources().getStringArray(R.array.atlas_time_days_of_week)[cal.get(Calendar.DAY_OF_WEEK) - 1];
-        } else {
-            timeText = dateFormat.format(date);
-        }
-        return timeText;
+        return RelativeTimeFormatter.getInstance(context).formatTime(date, timeFormat, dateFormat);
     }
 
     /**
-     * Returns Today, Yesterday, the day of the week within one week, or a date if greater.
-     *
-     * @param context
-     * @param date
-     * @return
+     * @see RelativeTimeFormatter#formatTimeDay(Date)
      */
     public static String formatTimeDay(Context context, Date date) {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        long todayMidnight = cal.getTimeInMillis();
-        long yesterdayMidnight = todayMidnight - TIME_HOURS_24;
-        long weekAgoMidnight = todayMidnight - TIME_HOURS_24 * 7;
-
-        String timeBarDayText;
-        if (date.getTime() > todayMidnight) {
-            timeBarDayText = context.getString(R.string.atlas_time_today);
-        } else if (date.getTime() > yesterdayMidnight) {
-            timeBarDayText = context.getString(R.string.atlas_time_yesterday);
-        } else if (date.getTime() > weekAgoMidnight) {
-            cal.setTime(date);
-            timeBarDayText = context.getResources().getStringArray(R.array.atlas_time_days_of_week)[cal.get(Calendar.DAY_OF_WEEK) - 1];
-        } else {
-            timeBarDayText = DAY_OF_WEEK.format(date);
-        }
-        return timeBarDayText;
+        return RelativeTimeFormatter.getInstance(context).formatTimeDay(date);
     }
 
     /**
@@ -23,15 +23,25 @@ import android.util.AttributeSet;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class FlowLayout extends ViewGroup {
     private final static String TAG = FlowLayout.class.getSimpleName();
 
-    private final List<List<View>> mLines = new ArrayList<List<View>>();
-    private final List<Integer> mLineHeights = new ArrayList<Integer>();
-    private final List<Integer> mLineMargins = new ArrayList<Integer>();
+    // Line assignments and offsets computed in onMeasure() and reused by onLayout(), indexed by
+    // child index and by line.  mMeasuredChildren holds the children they were computed for.
+    private View[] mMeasuredChildren = new View[0];
+    private int mMeasuredChildCount;
+    private int[] mChildLines = new int[0];
+    private int[] mChildLefts = new int[0];
+    private boolean[] mChildGone = new boolean[0];
+    private int[] mLineStarts = new int[1];
+    private int[] mLineTops = new int[1];
+    private int[] mLineHeights = new int[1];
+    private int[] mLineWidthsBefore = new int[1];
+    private int mLastWidthMeasureSpec;
+    private int mLastHeightMeasureSpec;
+    private int mLastPaddingTop;
+    private int mLastPaddingBottom;
+    private int mLastPaddingHorizontal;
 
     private View mStretchChild;
 
@@ -49,9 +59,15 @@ public class FlowLayout extends ViewGroup {
 
     public FlowLayout setStretchChild(View v) {
         mStretchChild = v;
+        mMeasuredChildCount = 0;
         return this;
     }
 
+    /**
+     * Measures children and assigns them to lines, starting from the line before the first child
+     * that was added, moved, or requested layout since the last measure.  Children before it keep
+     * their measurements and offsets.
+     */
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -62,18 +78,37 @@ public class FlowLayout extends ViewGroup {
         int modeWidth = MeasureSpec.getMode(widthMeasureSpec);
         int modeHeight = MeasureSpec.getMode(heightMeasureSpec);
 
-        int width = 0;
-        int height = getPaddingTop() + getPaddingBottom();
+        int childCount = getChildCount();
+        int firstDirtyChild = getFirstDirtyChild(childCount, widthMeasureSpec, heightMeasureSpec);
+        ensureChildCapacity(childCount);
+
+        // Resume at the start of the line the first dirty child may join
+        int line = firstDirtyChild == 0 ? 0 : mChildLines[firstDirtyChild - 1];
+        int firstChild = line == 0 ? 0 : mLineStarts[line];
+        if (line == 0) {
+            mLineStarts[0] = 0;
+            mLineTops[0] = getPaddingTop();
+            mLineWidthsBefore[0] = 0;
+            mLineHeights[0] = 0;
+        }
+
+        int width = mLineWidthsBefore[line];
+        int height = mLineTops[line];
 
         int lineWidth = 0;
         int lineHeight = 0;
+        boolean lineHasChildren = false;
 
-        int lastChildIndex = getChildCount() - 1;
+        int lastChildIndex = childCount - 1;
         boolean lineContainsStretchChild = false;
-        for (int childIndex = 0; childIndex <= lastChildIndex; childIndex++) {
+        for (int childIndex = firstChild; childIndex <= lastChildIndex; childIndex++) {
             View child = getChildAt(childIndex);
+            mMeasuredChildren[childIndex] = child;
+            mChildLines[childIndex] = line;
+            mChildLefts[childIndex] = lineWidth;
+            mChildGone[childIndex] = child.getVisibility() == View.GONE;
             if (child == mStretchChild) lineContainsStretchChild = true;
-            if (child.getVisibility() == View.GONE) {
+            if (mChildGone[childIndex]) {
                 if (childIndex == lastChildIndex) {
                     width = Math.max(width, lineWidth);
                     height += lineHeight;
@@ -81,37 +116,13 @@ public class FlowLayout extends ViewGroup {
                 continue;
             }
 
-            measureChildWithMargins(child, widthMeasureSpec, lineWidth, heightMeasureSpec, height);
-
             LayoutParams childLayoutParams = (LayoutParams) child.getLayoutParams();
-
-            int childWidthMode = MeasureSpec.AT_MOST;
-            int childWidthSize = sizeWidth;
-
-            int childHeightMode = MeasureSpec.AT_MOST;
-            int childHeightSize = sizeHeight;
-
-            if (childLayoutParams.width == LayoutParams.MATCH_PARENT) {
-                childWidthMode = MeasureSpec.EXACTLY;
-                childWidthSize -= childLayoutParams.leftMargin + childLayoutParams.rightMargin;
-            } else if (childLayoutParams.width >= 0) {
-                childWidthMode = MeasureSpec.EXACTLY;
-                childWidthSize = childLayoutParams.width;
+            if (childIndex >= firstDirtyChild) {
+                measureFlowChild(child, childLayoutParams, sizeWidth, sizeHeight, modeHeight);
             }
-
-            if (childLayoutParams.height >= 0) {
-                childHeightMode = MeasureSpec.EXACTLY;
-                childHeightSize = childLayoutParams.height;
-            } else if (modeHeight == MeasureSpec.UNSPECIFIED) {
-                childHeightMode = MeasureSpec.UNSPECIFIED;
-                childHeightSize = 0;
-            }
-
-            int childHeightSpec = MeasureSpec.makeMeasureSpec(childHeightSize, childHeightMode);
-            child.measure(MeasureSpec.makeMeasureSpec(childWidthSize, childWidthMode), childHeightSpec);
             int childWidth = child.getMeasuredWidth() + childLayoutParams.leftMargin + childLayoutParams.rightMargin;
 
-            if (lineWidth + childWidth > sizeWidth) {
+            if (lineHasChildren && lineWidth + childWidth > sizeWidth) {
                 // Wrap to next line
                 if (lineContainsStretchChild && (child != mStretchChild)) {
                     stretchMeasuredWidth(mStretchChild, sizeWidth, lineWidth);
@@ -123,11 +134,21 @@ public class FlowLayout extends ViewGroup {
 
                 height += lineHeight;
                 lineHeight = child.getMeasuredHeight() + childLayoutParams.topMargin + childLayoutParams.bottomMargin;
+
+                line++;
+                ensureLineCapacity(line + 1);
+                mLineStarts[line] = childIndex;
+                mLineTops[line] = height;
+                mLineWidthsBefore[line] = width;
+                mChildLines[childIndex] = line;
+                mChildLefts[childIndex] = 0;
             } else {
                 // No line wrap
                 lineWidth += childWidth;
                 lineHeight = Math.max(lineHeight, child.getMeasuredHeight() + childLayoutParams.topMargin + childLayoutParams.bottomMargin);
             }
+            lineHasChildren = true;
+            mLineHeights[line] = lineHeight;
 
             if (childIndex == lastChildIndex) {
                 width = Math.max(width, lineWidth);
@@ -138,110 +159,153 @@ public class FlowLayout extends ViewGroup {
                 }
             }
         }
+        // Don't retain removed children
+        for (int i = childCount; i < mMeasuredChildCount; i++) mMeasuredChildren[i] = null;
+        mMeasuredChildCount = childCount;
+        mLastWidthMeasureSpec = widthMeasureSpec;
+        mLastHeightMeasureSpec = heightMeasureSpec;
+        mLastPaddingTop = getPaddingTop();
+        mLastPaddingBottom = getPaddingBottom();
+        mLastPaddingHorizontal = getPaddingLeft() + getPaddingRight();
 
         width += getPaddingLeft() + getPaddingRight();
+        height += getPaddingBottom();
 
         setMeasuredDimension(
                 (modeWidth == MeasureSpec.EXACTLY) ? sizeWidth : width,
                 (modeHeight == MeasureSpec.EXACTLY) ? sizeHeight : height);
     }
 
-    private void stretchMeasuredWidth(View v, int lineTotalWidth, int lineCurrentWidth) {
-        int remaining = lineTotalWidth - lineCurrentWidth;
-        int newWidth = v.getMeasuredWidth() + remaining;
-        v.measure(MeasureSpec.makeMeasureSpec(newWidth, MeasureSpec.EXACTLY), v.getMeasuredHeightAndState());
-    }
-
-    @Override
-    protected void onLayout(boolean changed, int l, int t, int r, int b) {
-        mLines.clear();
-        mLineHeights.clear();
-        mLineMargins.clear();
+    private void measureFlowChild(View child, LayoutParams childLayoutParams, int sizeWidth, int sizeHeight, int modeHeight) {
+        int childWidthMode = MeasureSpec.AT_MOST;
+        int childWidthSize = sizeWidth;
 
-        int width = getWidth();
+        int childHeightMode = MeasureSpec.AT_MOST;
+        int childHeightSize = sizeHeight;
 
-        int lineWidth = 0;
-        int lineHeight = 0;
-        List<View> lineViews = new ArrayList<View>();
-
-        for (int i = 0; i < getChildCount(); i++) {
-            View child = getChildAt(i);
-            if (child.getVisibility() == View.GONE) continue;
-
-            LayoutParams lp = (LayoutParams) child.getLayoutParams();
-            int childWidth = child.getMeasuredWidth() + lp.leftMargin + lp.rightMargin;
-            int childHeight = child.getMeasuredHeight() + lp.bottomMargin + lp.topMargin;
-
-            if (lineWidth + childWidth > width) {
-                mLineHeights.add(lineHeight);
-                mLines.add(lineViews);
-                mLineMargins.add(getPaddingLeft());
-
-                lineHeight = 0;
-                lineWidth = 0;
-                lineViews = new ArrayList<View>();
-            }
+        if (childLayoutParams.width == LayoutParams.MATCH_PARENT) {
+            childWidthMode = MeasureSpec.EXACTLY;
+            childWidthSize -= childLayoutParams.leftMargin + childLayoutParams.rightMargin;
+        } else if (childLayoutParams.width >= 0) {
+            childWidthMode = MeasureSpec.EXACTLY;
+            childWidthSize = childLayoutParams.width;
+        }
 
-            lineWidth += childWidth;
-            lineHeight = Math.max(lineHeight, childHeight);
-            lineViews.add(child);
+        if (childLayoutParams.height >= 0) {
+            childHeightMode = MeasureSpec.EXACTLY;
+            childHeightSize = childLayoutParams.height;
+        } else if (modeHeight == MeasureSpec.UNSPECIFIED) {
+            childHeightMode = MeasureSpec.UNSPECIFIED;
+            childHeightSize = 0;
         }
 
-        mLineHeights.add(lineHeight);
-        mLines.add(lineViews);
-        mLineMargins.add(getPaddingLeft());
+        int childHeightSpec = MeasureSpec.makeMeasureSpec(childHeightSize, childHeightMode);
+        child.measure(MeasureSpec.makeMeasureSpec(childWidthSize, childWidthMode), childHeightSpec);
+    }
 
-        int numLines = mLines.size();
+    /**
+     * Returns the index of the first child that must be re-measured: every child if the measure
+     * specs or padding changed, otherwise the first child that was added, moved, shown or hidden,
+     * requested layout, or was last measured for its line: the stretch child, whose width depends
+     * on its line, or a child with `MATCH_PARENT` height, which onLayout() re-measures to its
+     * line's height.
+     */
+    private int getFirstDirtyChild(int childCount, int widthMeasureSpec, int heightMeasureSpec) {
+        if (widthMeasureSpec != mLastWidthMeasureSpec || heightMeasureSpec != mLastHeightMeasureSpec) return 0;
+        if (getPaddingTop() != mLastPaddingTop || getPaddingBottom() != mLastPaddingBottom
+                || getPaddingLeft() + getPaddingRight() != mLastPaddingHorizontal) {
+            return 0;
+        }
+        for (int i = 0; i < childCount; i++) {
+            if (i >= mMeasuredChildCount) return i;
+            View child = getChildAt(i);
+            if (child != mMeasuredChildren[i] || child == mStretchChild) return i;
+            boolean gone = child.getVisibility() == View.GONE;
+            if (gone != mChildGone[i]) return i;
+            if (!gone && (child.isLayoutRequested() || child.getLayoutParams().height == LayoutParams.MATCH_PARENT)) return i;
+        }
+        return childCount;
+    }
 
-        int left;
-        int top = getPaddingTop();
+    private void ensureChildCapacity(int childCount) {
+        if (mMeasuredChildren.length >= childCount) return;
+        int capacity = Math.max(childCount, mMeasuredChildren.length * 2);
+        View[] children = new View[capacity];
+        System.arraycopy(mMeasuredChildren, 0, children, 0, mMeasuredChildren.length);
+        mMeasuredChildren = children;
+        mChildLines = grow(mChildLines, capacity);
+        mChildLefts = grow(mChildLefts, capacity);
+        boolean[] gone = new boolean[capacity];
+        System.arraycopy(mChildGone, 0, gone, 0, mChildGone.length);
+        mChildGone = gone;
+    }
 
-        for (int i = 0; i < numLines; i++) {
-            lineHeight = mLineHeights.get(i);
-            lineViews = mLines.get(i);
-            left = mLineMargins.get(i);
+    private void ensureLineCapacity(int lineCount) {
+        if (mLineStarts.length >= lineCount) return;
+        int capacity = Math.max(lineCount, mLineStarts.length * 2);
+        mLineStarts = grow(mLineStarts, capacity);
+        mLineTops = grow(mLineTops, capacity);
+        mLineHeights = grow(mLineHeights, capacity);
+        mLineWidthsBefore = grow(mLineWidthsBefore, capacity);
+    }
 
-            int children = lineViews.size();
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
 
-            for (int j = 0; j < children; j++) {
+    private void stretchMeasuredWidth(View v, int lineTotalWidth, int lineCurrentWidth) {
+        int remaining = lineTotalWidth - lineCurrentWidth;
+        int newWidth = v.getMeasuredWidth() + remaining;
+        v.measure(MeasureSpec.makeMeasureSpec(newWidth, MeasureSpec.EXACTLY), v.getMeasuredHeightAndState());
+    }
 
-                View child = lineViews.get(j);
+    /**
+     * Positions children at the line and offset assigned to them in onMeasure().
+     */
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        int paddingLeft = getPaddingLeft();
+        int availableWidth = getWidth() - paddingLeft - getPaddingRight();
+        int childCount = Math.min(getChildCount(), mMeasuredChildCount);
 
-                if (child.getVisibility() == View.GONE) {
-                    continue;
-                }
+        for (int i = 0; i < childCount; i++) {
+            View child = getChildAt(i);
+            if (child.getVisibility() == View.GONE) continue;
 
-                LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            int line = mChildLines[i];
+            int lineHeight = mLineHeights[line];
+            int left = paddingLeft + mChildLefts[i];
+            int top = mLineTops[line];
 
-                // if height is match_parent we need to remeasure child to line height
-                if (lp.height == LayoutParams.MATCH_PARENT) {
-                    int childWidthMode = MeasureSpec.AT_MOST;
-                    int childWidthSize = lineWidth;
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
 
-                    if (lp.width == LayoutParams.MATCH_PARENT) {
-                        childWidthMode = MeasureSpec.EXACTLY;
-                    } else if (lp.width >= 0) {
-                        childWidthMode = MeasureSpec.EXACTLY;
-                        childWidthSize = lp.width;
-                    }
+            // if height is match_parent we need to remeasure child to line height
+            if (lp.height == LayoutParams.MATCH_PARENT) {
+                int childWidthMode = MeasureSpec.AT_MOST;
+                int childWidthSize = availableWidth;
 
-                    child.measure(
-                            MeasureSpec.makeMeasureSpec(childWidthSize, childWidthMode),
-                            MeasureSpec.makeMeasureSpec(lineHeight - lp.topMargin - lp.bottomMargin, MeasureSpec.EXACTLY)
-                    );
+                if (lp.width == LayoutParams.MATCH_PARENT) {
+                    childWidthMode = MeasureSpec.EXACTLY;
+                } else if (lp.width >= 0) {
+                    childWidthMode = MeasureSpec.EXACTLY;
+                    childWidthSize = lp.width;
                 }
 
-                int childWidth = child.getMeasuredWidth();
-                int childHeight = child.getMeasuredHeight();
+                child.measure(
+                        MeasureSpec.makeMeasureSpec(childWidthSize, childWidthMode),
+                        MeasureSpec.makeMeasureSpec(lineHeight - lp.topMargin - lp.bottomMargin, MeasureSpec.EXACTLY)
+                );
+            }
 
-                child.layout(left + lp.leftMargin,
-                        top + lp.topMargin,
-                        left + childWidth + lp.leftMargin,
-                        top + childHeight + lp.topMargin);
+            int childWidth = child.getMeasuredWidth();
+            int childHeight = child.getMeasuredHeight();
 
-                left += childWidth + lp.leftMargin + lp.rightMargin;
-            }
-            top += lineHeight;
+            child.layout(left + lp.leftMargin,
+                    top + lp.topMargin,
+                    left + childWidth + lp.leftMargin,
+                    top + childHeight + lp.topMargin);
         }
     }
 
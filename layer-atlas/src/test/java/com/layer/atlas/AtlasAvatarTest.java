@@ -0,0 +1,170 @@
+package com.layer.atlas;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.layer.atlas.provider.Participant;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.squareup.picasso.Picasso;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Counts the bytes AtlasAvatar allocates when rebinding, as AtlasConversationsAdapter does for
+ * each bound Conversation.
+ */
+public class AtlasAvatarTest {
+    // Any allocation per rebind is at least 16 bytes, so fewer bytes than rebinds in total leaves
+    // only one-off runtime allocations, such as the JIT's
+    private static final int REBINDS = 1000;
+
+    // Warm-up rebinds, so class loading and lazy initialization are not counted
+    private static final int WARM_UP_REBINDS = 100;
+
+    private AtlasAvatar mAvatar;
+    private Provider mProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = new Provider();
+        for (int i = 0; i < 10; i++) mProvider.add("user" + i, "User Number" + i);
+
+        // init() reads colors from Resources, which are not available here
+        mAvatar = new AtlasAvatar(mock(Context.class));
+        setField(mAvatar, "mParticipantProvider", mProvider);
+        setField(mAvatar, "mPicasso", mock(Picasso.class));
+    }
+
+    @Test
+    public void rebindingSameParticipantsDoesNotAllocate() {
+        Set<String> participants = participants(0, 1, 2);
+        mAvatar.setParticipants(participants);
+        assertEquals(participants, mAvatar.getParticipants());
+
+        long bytes = measureRebinds(participants);
+        System.out.println(String.format("AtlasAvatar: %d rebinds, %d bytes allocated", REBINDS, bytes));
+        assertTrue("Allocated " + bytes + " bytes over " + REBINDS + " rebinds", bytes < REBINDS);
+        assertEquals(participants, mAvatar.getParticipants());
+    }
+
+    @Test
+    public void rebindingSameLargeGroupDoesNotAllocate() {
+        // More participants than shown, so selection runs on the first bind only
+        Set<String> participants = participants(0, 1, 2, 3, 4, 5, 6);
+        mAvatar.setParticipants(participants);
+        assertEquals(3, mAvatar.getParticipants().size());
+
+        long bytes = measureRebinds(participants);
+        System.out.println(String.format("AtlasAvatar: %d rebinds of 7, %d bytes allocated", REBINDS, bytes));
+        assertTrue("Allocated " + bytes + " bytes over " + REBINDS + " rebinds", bytes < REBINDS);
+    }
+
+    @Test
+    public void rebindingAnotherSetUpdatesParticipants() {
+        mAvatar.setParticipants(participants(0, 1));
+        mAvatar.setParticipants(participants(1, 2));
+        assertEquals(participants(1, 2), mAvatar.getParticipants());
+    }
+
+    @Test
+    public void rebindingSameParticipantsPicksUpNewlyAvailableParticipant() throws Exception {
+        // A participant missing from the provider is drawn once it becomes available
+        Participant participant = mProvider.mParticipants.remove("user3");
+        mAvatar.setParticipants(participants(3));
+        assertEquals(0, ((Map) getField(mAvatar, "mInitials")).size());
+
+        mProvider.mParticipants.put("user3", participant);
+        mAvatar.setParticipants(participants(3));
+        assertEquals(1, ((Map) getField(mAvatar, "mInitials")).size());
+    }
+
+    private long measureRebinds(Set<String> participants) {
+        for (int i = 0; i < WARM_UP_REBINDS; i++) mAvatar.setParticipants(participants);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < REBINDS; i++) mAvatar.setParticipants(participants);
+        long after = threads.getThreadAllocatedBytes(threadId);
+
+        // Subtract the cost of measuring itself
+        long overhead = threads.getThreadAllocatedBytes(threadId) - after;
+        return Math.max(0, after - before - overhead);
+    }
+
+    private static Set<String> participants(int... indices) {
+        Set<String> participantIds = new HashSet<String>();
+        for (int index : indices) participantIds.add("user" + index);
+        return participantIds;
+    }
+
+    private static Object getField(Object object, String name) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static void setField(Object object, String name, Object value) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Provider returns Participants without avatar URLs, so no Picasso loads are made.  Written by
+     * hand rather than mocked, so mock bookkeeping is not counted as AtlasAvatar allocations.
+     */
+    private static class Provider implements ParticipantProvider {
+        final Map<String, Participant> mParticipants = new HashMap<String, Participant>();
+
+        void add(final String id, final String name) {
+            mParticipants.put(id, new Participant() {
+                @Override
+                public String getId() {
+                    return id;
+                }
+
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public Uri getAvatarUrl() {
+                    return null;
+                }
+
+                @Override
+                public int compareTo(Participant another) {
+                    return getName().compareTo(another.getName());
+                }
+            });
+        }
+
+        @Override
+        public Map<String, Participant> getMatchingParticipants(String filter, Map<String, Participant> result) {
+            return result;
+        }
+
+        @Override
+        public Participant getParticipant(String userId) {
+            return mParticipants.get(userId);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.Handler;
+
+import com.layer.atlas.adapters.MessageClusterer.Cluster;
+import com.layer.atlas.adapters.MessageClusterer.ClusterType;
+import com.layer.sdk.messaging.Actor;
+import com.layer.sdk.messaging.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks MessageClusterer against the unbounded clustering AtlasMessagesAdapter used before it, on
+ * generated Message sequences.
+ */
+public class MessageClustererTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final int MARGIN = 10;
+
+    private final Map<String, Actor> mActors = new HashMap<String, Actor>();
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mRandom = new Random(42);
+    }
+
+    @Test
+    public void sequentialScrollMatchesLegacy() {
+        List<Message> messages = generate(2000);
+        Harness harness = new Harness(messages, MARGIN);
+        for (int position = messages.size() - 1; position >= 0; position--) {
+            harness.bindAndCompare(position);
+        }
+        for (int position = 0; position < messages.size(); position++) {
+            harness.bindAndCompare(position);
+        }
+    }
+
+    @Test
+    public void randomJumpsMatchLegacy() {
+        List<Message> messages = generate(3000);
+        Harness harness = new Harness(messages, MARGIN);
+        for (int i = 0; i < 20000; i++) {
+            harness.bindAndCompare(mRandom.nextInt(messages.size()));
+        }
+    }
+
+    @Test
+    public void cacheStaysBoundedByWindow() {
+        List<Message> messages = generate(5000);
+        Harness harness = new Harness(messages, MARGIN);
+        int windowSize = 2 * MARGIN + 1;
+        for (int position = 0; position < messages.size(); position++) {
+            harness.bindAndCompare(position);
+            // Eviction runs once the cache exceeds two windows; a bind adds at most three entries
+            assertTrue("Cache size " + harness.mClusterer.size(), harness.mClusterer.size() <= 2 * windowSize + 3);
+        }
+    }
+
+    @Test
+    public void evictedNeighboursAreRecomputed() {
+        List<Message> messages = generate(500);
+        Harness harness = new Harness(messages, MARGIN);
+        int windowSize = 2 * MARGIN + 1;
+
+        // Bind past the eviction threshold, then move the window far away
+        int position = 0;
+        for (; position <= 2 * windowSize; position++) {
+            harness.bindAndCompare(position);
+        }
+        harness.bindAndCompare(400);
+
+        // Positions at and just beyond the window edges, both sides
+        int[] edges = {400 - MARGIN - 1, 400 - MARGIN, 400 + MARGIN, 400 + MARGIN + 1, 0, 1, position - 1, position};
+        for (int edge : edges) {
+            harness.bindAndCompare(edge);
+        }
+    }
+
+    @Test
+    public void firstAndLastPositionsMatchLegacy() {
+        List<Message> messages = generate(100);
+        Harness harness = new Harness(messages, MARGIN);
+        harness.bindAndCompare(0);
+        harness.bindAndCompare(99);
+        harness.bindAndCompare(50);
+        harness.bindAndCompare(0);
+        harness.bindAndCompare(99);
+    }
+
+    @Test
+    public void neighbourRefreshesMatchLegacyWithinWindow() {
+        List<Message> messages = generate(200);
+        // A margin covering the whole list never evicts, so refreshes must match exactly
+        Harness harness = new Harness(messages, messages.size());
+        for (int i = 0; i < 2000; i++) {
+            harness.bindAndCompare(mRandom.nextInt(messages.size()));
+            harness.mClusterer.flush();
+            assertEquals("Refreshed positions after bind " + i, harness.mLegacyUpdates, harness.mUpdates);
+        }
+    }
+
+    @Test
+    public void neighbourRefreshesAreBatchedIntoRanges() {
+        List<Message> messages = generate(50);
+        Harness harness = new Harness(messages, MARGIN);
+        // Bind every other position, so binding the gaps refreshes runs of neighbours
+        for (int position = 0; position < 20; position += 2) {
+            harness.bindAndCompare(position);
+        }
+        for (int position = 1; position < 20; position += 2) {
+            harness.bindAndCompare(position);
+        }
+        harness.mRanges.clear();
+        harness.mClusterer.flush();
+        int notified = 0;
+        for (int[] range : harness.mRanges) notified += range[1];
+        assertEquals(harness.mUpdates.size(), notified);
+        assertTrue(harness.mRanges.size() <= harness.mUpdates.size());
+    }
+
+    @Test
+    public void dateBoundaries() {
+        Date morning = date(2016, Calendar.FEBRUARY, 1, 9);
+        Date evening = date(2016, Calendar.FEBRUARY, 1, 21);
+        Date nextDay = date(2016, Calendar.FEBRUARY, 2, 9);
+        assertEquals(false, MessageClusterer.isDateBoundary(morning, evening));
+        assertEquals(true, MessageClusterer.isDateBoundary(evening, nextDay));
+        assertEquals(false, MessageClusterer.isDateBoundary(null, nextDay));
+    }
+
+    /**
+     * Generates Messages from three senders with gaps spanning all ClusterTypes and day
+     * boundaries, and occasionally no sent-at time.
+     */
+    private List<Message> generate(int count) {
+        long[] gaps = {10 * 1000, 30 * MINUTE, 2 * HOUR, 20 * HOUR};
+        String[] senders = {"alice", "bob", "carol"};
+        List<Message> messages = new ArrayList<Message>(count);
+        long time = date(2016, Calendar.JANUARY, 1, 0).getTime();
+        String sender = senders[0];
+        for (int i = 0; i < count; i++) {
+            time += gaps[mRandom.nextInt(gaps.length)];
+            if (mRandom.nextInt(4) == 0) sender = senders[mRandom.nextInt(senders.length)];
+            Date sentAt = mRandom.nextInt(50) == 0 ? null : new Date(time);
+            messages.add(message(sender, sentAt));
+        }
+        return messages;
+    }
+
+    private static Date date(int year, int month, int day, int hour) {
+        return new GregorianCalendar(year, month, day, hour, 0).getTime();
+    }
+
+    private Message message(String sender, Date sentAt) {
+        Actor actor = mActors.get(sender);
+        if (actor == null) {
+            actor = mock(Actor.class);
+            mActors.put(sender, actor);
+        }
+        Uri id = mock(Uri.class);
+        Message message = mock(Message.class);
+        when(message.getId()).thenReturn(id);
+        when(message.getSender()).thenReturn(actor);
+        when(message.getSentAt()).thenReturn(sentAt);
+        return message;
+    }
+
+    private static void assertSameCluster(String message, Cluster expected, Cluster actual) {
+        assertEquals(message + " cluster with previous", expected.mClusterWithPrevious, actual.mClusterWithPrevious);
+        assertEquals(message + " date boundary with previous", expected.mDateBoundaryWithPrevious, actual.mDateBoundaryWithPrevious);
+        assertEquals(message + " cluster with next", expected.mClusterWithNext, actual.mClusterWithNext);
+        assertEquals(message + " date boundary with next", expected.mDateBoundaryWithNext, actual.mDateBoundaryWithNext);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Harness binds positions on both a MessageClusterer and the legacy algorithm, recording the
+     * neighbour refreshes each requests.
+     */
+    private static class Harness implements MessageClusterer.Source {
+        final List<Message> mMessages;
+        final MessageClusterer mClusterer;
+        final LegacyClusterer mLegacy;
+        final Set<Integer> mUpdates = new TreeSet<Integer>();
+        final Set<Integer> mLegacyUpdates = new TreeSet<Integer>();
+        final List<int[]> mRanges = new ArrayList<int[]>();
+
+        Harness(List<Message> messages, int margin) {
+            mMessages = messages;
+            mClusterer = new MessageClusterer(this, mock(Handler.class), margin);
+            mLegacy = new LegacyClusterer(messages, mLegacyUpdates);
+        }
+
+        void bindAndCompare(int position) {
+            Message message = mMessages.get(position);
+            Cluster actual = mClusterer.getClustering(message, position);
+            Cluster expected = mLegacy.getClustering(message, position);
+            assertSameCluster("Position " + position, expected, actual);
+        }
+
+        @Override
+        public int getItemCount() {
+            return mMessages.size();
+        }
+
+        @Override
+        public Message getItem(int position) {
+            return mMessages.get(position);
+        }
+
+        @Override
+        public Integer getPosition(Message message, int lastPosition) {
+            return mMessages.indexOf(message);
+        }
+
+        @Override
+        public void onClustersChanged(int positionStart, int itemCount) {
+            mRanges.add(new int[]{positionStart, itemCount});
+            for (int i = 0; i < itemCount; i++) mUpdates.add(positionStart + i);
+        }
+    }
+
+    /**
+     * LegacyClusterer is AtlasMessagesAdapter's clustering before MessageClusterer: an unbounded
+     * cache, with each neighbour refresh posted separately.
+     */
+    private static class LegacyClusterer {
+        private final List<Message> mMessages;
+        private final Set<Integer> mUpdates;
+        private final Map<Uri, Cluster> mClusterCache = new HashMap<Uri, Cluster>();
+
+        LegacyClusterer(List<Message> messages, Set<Integer> updates) {
+            mMessages = messages;
+            mUpdates = updates;
+        }
+
+        Cluster getClustering(Message message, int position) {
+            Cluster result = mClusterCache.get(message.getId());
+            if (result == null) {
+                result = new Cluster();
+                mClusterCache.put(message.getId(), result);
+            }
+
+            int previousPosition = position - 1;
+            Message previousMessage = (previousPosition >= 0) ? mMessages.get(previousPosition) : null;
+            if (previousMessage != null) {
+                result.mDateBoundaryWithPrevious = MessageClusterer.isDateBoundary(previousMessage.getSentAt(), message.getSentAt());
+                result.mClusterWithPrevious = ClusterType.fromMessages(previousMessage, message);
+
+                Cluster previousCluster = mClusterCache.get(previousMessage.getId());
+                if (previousCluster == null) {
+                    previousCluster = new Cluster();
+                    mClusterCache.put(previousMessage.getId(), previousCluster);
+                } else {
+                    if ((previousCluster.mClusterWithNext != result.mClusterWithPrevious) ||
+                            (previousCluster.mDateBoundaryWithNext != result.mDateBoundaryWithPrevious)) {
+                        mUpdates.add(previousPosition);
+                    }
+                }
+                previousCluster.mClusterWithNext = result.mClusterWithPrevious;
+                previousCluster.mDateBoundaryWithNext = result.mDateBoundaryWithPrevious;
+            }
+
+            int nextPosition = position + 1;
+            Message nextMessage = (nextPosition < mMessages.size()) ? mMessages.get(nextPosition) : null;
+            if (nextMessage != null) {
+                result.mDateBoundaryWithNext = MessageClusterer.isDateBoundary(message.getSentAt(), nextMessage.getSentAt());
+                result.mClusterWithNext = ClusterType.fromMessages(message, nextMessage);
+
+                Cluster nextCluster = mClusterCache.get(nextMessage.getId());
+                if (nextCluster == null) {
+                    nextCluster = new Cluster();
+                    mClusterCache.put(nextMessage.getId(), nextCluster);
+                } else {
+                    if ((nextCluster.mClusterWithPrevious != result.mClusterWithNext) ||
+                            (nextCluster.mDateBoundaryWithPrevious != result.mDateBoundaryWithNext)) {
+                        mUpdates.add(nextPosition);
+                    }
+                }
+                nextCluster.mClusterWithPrevious = result.mClusterWithNext;
+                nextCluster.mDateBoundaryWithPrevious = result.mDateBoundaryWithNext;
+            }
+            return result;
+        }
+    }
+}
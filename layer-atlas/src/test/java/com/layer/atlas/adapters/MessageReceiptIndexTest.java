@@ -0,0 +1,225 @@
+package com.layer.atlas.adapters;
+
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Actor;
+import com.layer.sdk.messaging.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks MessageReceiptIndex against the full backwards scan AtlasMessagesAdapter used before it,
+ * and that the work per callback does not grow with the length of the conversation.
+ */
+public class MessageReceiptIndexTest {
+    private static final String ME = "me";
+    private static final String THEM = "them";
+    private static final Message.RecipientStatus READ = Message.RecipientStatus.READ;
+    private static final Message.RecipientStatus DELIVERED = Message.RecipientStatus.DELIVERED;
+    private static final Message.RecipientStatus SENT = Message.RecipientStatus.SENT;
+
+    private Actor mMe;
+    private Actor mThem;
+    private LayerClient mLayerClient;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mMe = mock(Actor.class);
+        when(mMe.getUserId()).thenReturn(ME);
+        mThem = mock(Actor.class);
+        when(mThem.getUserId()).thenReturn(THEM);
+        mLayerClient = mock(LayerClient.class);
+        when(mLayerClient.getAuthenticatedUserId()).thenReturn(ME);
+        mRandom = new Random(7);
+    }
+
+    @Test
+    public void trackedMessageLosingStatusFallsBackToEarlierMessageInRange() {
+        ListSource source = new ListSource();
+        source.mMessages.add(message(mMe, READ));
+        source.mMessages.add(message(mMe, READ));
+        source.mMessages.add(message(mMe, READ));
+        MessageReceiptIndex index = new MessageReceiptIndex(mLayerClient, source);
+        index.rebuild();
+        assertSame(source.mMessages.get(2), index.get(READ));
+
+        // Positions 1 and 2 change together; only 1 keeps READ
+        setStatus(source.mMessages.get(2), DELIVERED);
+        index.onItemRangeChanged(1, 2);
+        assertSame(source.mMessages.get(1), index.get(READ));
+        assertSame(source.mMessages.get(2), index.get(DELIVERED));
+    }
+
+    @Test
+    public void randomCallbacksMatchFullScan() {
+        ListSource source = new ListSource();
+        for (int i = 0; i < 50; i++) source.mMessages.add(randomMessage());
+        MessageReceiptIndex index = new MessageReceiptIndex(mLayerClient, source);
+        index.rebuild();
+
+        for (int step = 0; step < 20000; step++) {
+            List<Message> messages = source.mMessages;
+            int size = messages.size();
+            switch (mRandom.nextInt(size < 5 ? 2 : 4)) {
+                case 0: {
+                    int count = 1 + mRandom.nextInt(3);
+                    int start = mRandom.nextInt(size + 1);
+                    for (int i = 0; i < count; i++) messages.add(start, randomMessage());
+                    index.onItemRangeInserted(start, count);
+                    break;
+                }
+                case 1: {
+                    if (size == 0) break;
+                    int count = 1 + mRandom.nextInt(Math.min(3, size));
+                    int start = mRandom.nextInt(size - count + 1);
+                    for (int i = start; i < start + count; i++) setStatus(messages.get(i), randomStatus());
+                    index.onItemRangeChanged(start, count);
+                    break;
+                }
+                case 2: {
+                    int count = 1 + mRandom.nextInt(3);
+                    int start = mRandom.nextInt(size - count + 1);
+                    for (int i = 0; i < count; i++) messages.remove(start);
+                    index.onItemRangeRemoved(start, count);
+                    break;
+                }
+                default: {
+                    int from = mRandom.nextInt(size);
+                    int to = mRandom.nextInt(size);
+                    messages.add(to, messages.remove(from));
+                    index.onItemMoved(from, to);
+                    break;
+                }
+            }
+            Map<Message.RecipientStatus, Message> expected = scan(messages);
+            assertSame("READ after step " + step, expected.get(READ), index.get(READ));
+            assertSame("DELIVERED after step " + step, expected.get(DELIVERED), index.get(DELIVERED));
+        }
+    }
+
+    /**
+     * Runs the same callbacks near the end of a short and a long conversation, counting Messages
+     * read.  The counts, and so the per-callback cost, must not depend on the conversation length.
+     */
+    @Test
+    public void perCallbackCostIsIndependentOfLength() {
+        long shortReads = runCallbacks(1000);
+        long longReads = runCallbacks(100000);
+        assertEquals(shortReads, longReads);
+    }
+
+    private long runCallbacks(int length) {
+        ListSource source = new ListSource();
+        for (int i = 0; i < length; i++) {
+            // Every fifth Message is ours and read, the rest are theirs
+            source.mMessages.add(i % 5 == 0 ? message(mMe, READ) : message(mThem, SENT));
+        }
+        MessageReceiptIndex index = new MessageReceiptIndex(mLayerClient, source);
+        index.rebuild();
+        source.mReads = 0;
+
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        int callbacks = 1000;
+        for (int i = 0; i < callbacks; i++) {
+            int size = source.mMessages.size();
+            switch (random.nextInt(3)) {
+                case 0:
+                    source.mMessages.add(message(mMe, random.nextBoolean() ? READ : DELIVERED));
+                    index.onItemRangeInserted(size, 1);
+                    break;
+                case 1: {
+                    int position = size - 1 - random.nextInt(10);
+                    Message message = source.mMessages.get(position);
+                    if (message.getSender() == mMe) setStatus(message, random.nextBoolean() ? READ : DELIVERED);
+                    index.onItemRangeChanged(position, 1);
+                    break;
+                }
+                default:
+                    source.mMessages.remove(size - 1);
+                    index.onItemRangeRemoved(size - 1, 1);
+                    break;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("MessageReceiptIndex: %d messages, %d callbacks, %d reads, %d ns/callback",
+                length, callbacks, source.mReads, nanos / callbacks));
+        return source.mReads;
+    }
+
+    /**
+     * The latest of our Messages for each RecipientStatus, as found by the former full scan.
+     */
+    private static Map<Message.RecipientStatus, Message> scan(List<Message> messages) {
+        Map<Message.RecipientStatus, Message> latest = new HashMap<Message.RecipientStatus, Message>();
+        for (int position = messages.size() - 1; position >= 0; position--) {
+            Message message = messages.get(position);
+            if (!ME.equals(message.getSender().getUserId())) continue;
+            for (Map.Entry<String, Message.RecipientStatus> entry : message.getRecipientStatus().entrySet()) {
+                if (entry.getKey().equals(ME)) continue;
+                if (!latest.containsKey(entry.getValue())) latest.put(entry.getValue(), message);
+            }
+        }
+        return latest;
+    }
+
+    private Message randomMessage() {
+        return message(mRandom.nextInt(3) == 0 ? mThem : mMe, randomStatus());
+    }
+
+    private Message.RecipientStatus randomStatus() {
+        Message.RecipientStatus[] statuses = {SENT, DELIVERED, READ};
+        return statuses[mRandom.nextInt(statuses.length)];
+    }
+
+    private Message message(Actor sender, Message.RecipientStatus status) {
+        Map<String, Message.RecipientStatus> statuses = new HashMap<String, Message.RecipientStatus>();
+        statuses.put(ME, READ);
+        statuses.put(THEM, status);
+        Message message = mock(Message.class);
+        when(message.getSender()).thenReturn(sender);
+        when(message.getRecipientStatus()).thenReturn(statuses);
+        return message;
+    }
+
+    private static void setStatus(Message message, Message.RecipientStatus status) {
+        message.getRecipientStatus().put(THEM, status);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class ListSource implements MessageReceiptIndex.Source {
+        final List<Message> mMessages = new ArrayList<Message>();
+        long mReads = 0;
+
+        @Override
+        public int getItemCount() {
+            return mMessages.size();
+        }
+
+        @Override
+        public Message getItem(int position) {
+            mReads++;
+            return mMessages.get(position);
+        }
+
+        @Override
+        public void onReceiptChanged(int position) {
+        }
+    }
+}
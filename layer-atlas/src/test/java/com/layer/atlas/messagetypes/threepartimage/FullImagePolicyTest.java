@@ -0,0 +1,256 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.media.ExifInterface;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the sizes FullImagePolicy recompresses full images at, and its JPEG metadata stripping on
+ * synthetic JPEGs.
+ */
+public class FullImagePolicyTest {
+    private static final int SOI = 0xD8;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int EOI = 0xD9;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP13 = 0xED;
+    private static final int COM = 0xFE;
+
+    private static final byte[] JFIF = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+    private static final byte[] EXIF = {'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0, 8, 0, 1,
+            (byte) 0x88, 0x25, 0, 4, 0, 0, 0, 1, 0, 0, 0, 26, 0, 0, 0, 0, 'G', 'P', 'S'};
+    private static final byte[] XMP = "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes();
+    private static final byte[] ICC = "ICC_PROFILE\0\1\1profile data".getBytes();
+    private static final byte[] IPTC = "Photoshop 3.0\08BIM".getBytes();
+    private static final byte[] COMMENT = "Taken at home".getBytes();
+    private static final byte[] TABLE = {0, 16, 11, 12, 14, 12, 10, 16, 14, 13, 14, (byte) 0xFF, 18};
+    // Entropy-coded data, with stuffed 0xFF bytes and a sequence that would be an APP1 marker
+    private static final byte[] SCAN = {0, 3, 1, 0, 2, 17, 3, 17, 0, 63, 0, 12, (byte) 0xFF, 0, 34,
+            (byte) 0xFF, (byte) APP1, 0, 4, 'h', 'i', (byte) 0xFF, (byte) EOI};
+
+    @Test
+    public void recompressesAtMaxDimension() {
+        FullImagePolicy policy = new FullImagePolicy().setMaxDimension(1024);
+        assertTrue(policy.shouldRecompress("image/jpeg", 4000, 3000, 1));
+        assertArrayEquals(new int[]{1024, 768}, policy.getTargetSize(4000, 3000));
+    }
+
+    /**
+     * Without a maximum dimension, a byte budget still decodes large images at a bounded size,
+     * rather than at full size.
+     */
+    @Test
+    public void byteBudgetDecodeIsCappedWithoutMaxDimension() {
+        FullImagePolicy policy = new FullImagePolicy().setMaxDimension(0).setMaxBytes(1000000);
+        assertFalse(policy.shouldRecompress("image/jpeg", 12000, 9000, 1000000));
+        assertTrue(policy.shouldRecompress("image/jpeg", 12000, 9000, 1000001));
+        assertArrayEquals(new int[]{FullImagePolicy.DEFAULT_MAX_DIMENSION, 1536}, policy.getTargetSize(12000, 9000));
+        assertArrayEquals(new int[]{1600, 1200}, policy.getTargetSize(1600, 1200));
+    }
+
+    @Test
+    public void removesExifXmpIptcAndComments() throws IOException {
+        byte[] source = new Jpeg().segment(APP0, JFIF).segment(APP1, EXIF).segment(APP1, XMP).segment(APP2, ICC)
+                .segment(APP13, IPTC).segment(COM, COMMENT).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        byte[] expected = new Jpeg().segment(APP0, JFIF).segment(APP2, ICC).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        assertArrayEquals(expected, strip(source, ExifInterface.ORIENTATION_UNDEFINED));
+    }
+
+    /**
+     * Kept segments, and everything from the start of scan on, are copied byte for byte.
+     */
+    @Test
+    public void copiesImageDataUnchanged() throws IOException {
+        byte[] source = new Jpeg().segment(APP0, JFIF).segment(APP2, ICC).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        assertArrayEquals(source, strip(source, ExifInterface.ORIENTATION_UNDEFINED));
+    }
+
+    @Test
+    public void skipsFillBytesBeforeMarkers() throws IOException {
+        byte[] source = new Jpeg().fill(3).segment(APP1, EXIF).fill(1).segment(DQT, TABLE).fill(2).scan(SCAN).toByteArray();
+        byte[] expected = new Jpeg().segment(DQT, TABLE).scan(SCAN).toByteArray();
+        assertArrayEquals(expected, strip(source, ExifInterface.ORIENTATION_UNDEFINED));
+    }
+
+    @Test
+    public void rejectsMalformedJpegs() {
+        assertMalformed("No SOI", new byte[]{(byte) 0xFF, (byte) DQT, 0, 2, (byte) 0xFF, (byte) SOS});
+        assertMalformed("Length below 2", new byte[]{(byte) 0xFF, (byte) SOI, (byte) 0xFF, (byte) DQT, 0, 1, 0});
+        assertMalformed("Truncated APP1", new byte[]{(byte) 0xFF, (byte) SOI, (byte) 0xFF, (byte) APP1, 0, 100, 'E', 'x'});
+        assertMalformed("Truncated DQT", new byte[]{(byte) 0xFF, (byte) SOI, (byte) 0xFF, (byte) DQT, 0, 10, 1, 2});
+        assertMalformed("No marker", new byte[]{(byte) 0xFF, (byte) SOI, 0, (byte) DQT});
+        assertMalformed("No SOS", new Jpeg().segment(DQT, TABLE).toByteArray());
+    }
+
+    /**
+     * The orientation is written as the only Exif tag, after the JFIF segment if there is one.
+     */
+    @Test
+    public void keepsOnlyOrientation() throws IOException {
+        byte[] source = new Jpeg().segment(APP0, JFIF).segment(APP1, EXIF).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        byte[] stripped = strip(source, ExifInterface.ORIENTATION_ROTATE_90);
+        List<Segment> segments = parse(stripped);
+        assertEquals(4, segments.size());
+        assertEquals(APP0, segments.get(0).mMarker);
+        assertEquals(APP1, segments.get(1).mMarker);
+        assertEquals(DQT, segments.get(2).mMarker);
+        assertEquals(SOS, segments.get(3).mMarker);
+        assertOrientationOnly(segments.get(1), ExifInterface.ORIENTATION_ROTATE_90);
+
+        source = new Jpeg().segment(APP1, EXIF).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        segments = parse(strip(source, ExifInterface.ORIENTATION_FLIP_VERTICAL));
+        assertEquals(APP1, segments.get(0).mMarker);
+        assertOrientationOnly(segments.get(0), ExifInterface.ORIENTATION_FLIP_VERTICAL);
+    }
+
+    /**
+     * Recompressed JPEGs, as Bitmap.compress() writes them, get the orientation and no other
+     * metadata.
+     */
+    @Test
+    public void recompressedImagesGetOnlyOrientation() throws IOException {
+        byte[] compressed = new Jpeg().segment(APP0, JFIF).segment(DQT, TABLE).scan(SCAN).toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FullImagePolicy.writeRecompressed(compressed, out, ExifInterface.ORIENTATION_ROTATE_270);
+
+        List<Segment> segments = parse(out.toByteArray());
+        int exifSegments = 0;
+        for (Segment segment : segments) {
+            assertTrue(segment.mMarker != APP13 && segment.mMarker != COM);
+            if (segment.mMarker != APP1) continue;
+            exifSegments++;
+            assertOrientationOnly(segment, ExifInterface.ORIENTATION_ROTATE_270);
+        }
+        assertEquals(1, exifSegments);
+
+        // Without an orientation the JPEG is written unchanged
+        out = new ByteArrayOutputStream();
+        FullImagePolicy.writeRecompressed(compressed, out, ExifInterface.ORIENTATION_UNDEFINED);
+        assertArrayEquals(compressed, out.toByteArray());
+    }
+
+    private static byte[] strip(byte[] source, int exifOrientation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FullImagePolicy.stripMetadata(new ByteArrayInputStream(source), out, exifOrientation);
+        return out.toByteArray();
+    }
+
+    private static void assertMalformed(String description, byte[] source) {
+        try {
+            strip(source, ExifInterface.ORIENTATION_UNDEFINED);
+            fail("Stripped malformed JPEG: " + description);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Asserts that `segment` is a big-endian Exif segment whose IFD0 holds only the orientation.
+     */
+    private static void assertOrientationOnly(Segment segment, int exifOrientation) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(segment.mData));
+        byte[] header = new byte[6];
+        in.readFully(header);
+        assertArrayEquals(new byte[]{'E', 'x', 'i', 'f', 0, 0}, header);
+        assertEquals(0x4D4D, in.readUnsignedShort());
+        assertEquals(42, in.readUnsignedShort());
+        assertEquals(8, in.readInt());
+        assertEquals("IFD0 entries", 1, in.readUnsignedShort());
+        assertEquals(0x0112, in.readUnsignedShort());
+        assertEquals(3, in.readUnsignedShort());
+        assertEquals(1, in.readInt());
+        assertEquals(exifOrientation, in.readUnsignedShort());
+        assertEquals(0, in.readUnsignedShort());
+        assertEquals("Next IFD", 0, in.readInt());
+        assertEquals(-1, in.read());
+    }
+
+    /**
+     * Returns the segments of `jpeg` up to and including the start of scan.
+     */
+    private static List<Segment> parse(byte[] jpeg) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(jpeg));
+        assertEquals(0xFF, in.readUnsignedByte());
+        assertEquals(SOI, in.readUnsignedByte());
+        List<Segment> segments = new ArrayList<Segment>();
+        while (true) {
+            assertEquals(0xFF, in.readUnsignedByte());
+            int marker = in.readUnsignedByte();
+            if (marker == SOS) {
+                segments.add(new Segment(marker, new byte[0]));
+                return segments;
+            }
+            byte[] data = new byte[in.readUnsignedShort() - 2];
+            in.readFully(data);
+            segments.add(new Segment(marker, data));
+        }
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Jpeg writes the markers and segments of a synthetic JPEG, starting with SOI.
+     */
+    private static class Jpeg {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        Jpeg() {
+            mOut.write(0xFF);
+            mOut.write(SOI);
+        }
+
+        Jpeg fill(int count) {
+            for (int i = 0; i < count; i++) mOut.write(0xFF);
+            return this;
+        }
+
+        Jpeg segment(int marker, byte[] data) {
+            mOut.write(0xFF);
+            mOut.write(marker);
+            mOut.write((data.length + 2) >> 8);
+            mOut.write((data.length + 2) & 0xFF);
+            mOut.write(data, 0, data.length);
+            return this;
+        }
+
+        Jpeg scan(byte[] data) {
+            mOut.write(0xFF);
+            mOut.write(SOS);
+            mOut.write(data, 0, data.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+    }
+
+    private static class Segment {
+        final int mMarker;
+        final byte[] mData;
+
+        Segment(int marker, byte[] data) {
+            mMarker = marker;
+            mData = data;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.layer.atlas.util.Util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that preview decodes of large images allocate a single preview-sized Bitmap, by applying
+ * BitmapFactory's sampling and density scaling rules to the decode options.
+ */
+public class ThreePartImageUtilsTest {
+    private static final long PLENTY = Long.MAX_VALUE;
+
+    @Test
+    public void largePhotoDecodesOnceAtPreviewSize() {
+        // A 48 megapixel camera photo
+        int fullWidth = 8000;
+        int fullHeight = 6000;
+        int[] preview = Util.scaleDownInside(fullWidth, fullHeight, ThreePartImageUtils.PREVIEW_MAX_WIDTH, ThreePartImageUtils.PREVIEW_MAX_HEIGHT);
+        assertEquals(512, preview[0]);
+        assertEquals(384, preview[1]);
+
+        BitmapFactory.Options options = ThreePartImageUtils.newScaledDecodeOptions(fullWidth, fullHeight, preview[0], preview[1], PLENTY);
+        Decode decode = new Decode(fullWidth, fullHeight, options);
+        assertEquals(8, options.inSampleSize);
+        assertEquals(Bitmap.Config.ARGB_8888, options.inPreferredConfig);
+
+        // The only Bitmap returned is preview-sized; no full-size Bitmap is allocated
+        assertEquals(preview[0], decode.mWidth);
+        assertEquals(preview[1], decode.mHeight);
+        assertEquals(preview[0] * preview[1] * 4L, decode.getBytes());
+        assertTrue(decode.mSampledWidth * (long) decode.mSampledHeight < (long) fullWidth * fullHeight / 32);
+    }
+
+    @Test
+    public void decodesMatchPreviewSize() {
+        Random random = new Random(22);
+        for (int i = 0; i < 10000; i++) {
+            int fullWidth = 1 + random.nextInt(12000);
+            int fullHeight = 1 + random.nextInt(12000);
+            int[] preview = Util.scaleDownInside(fullWidth, fullHeight, ThreePartImageUtils.PREVIEW_MAX_WIDTH, ThreePartImageUtils.PREVIEW_MAX_HEIGHT);
+            BitmapFactory.Options options = ThreePartImageUtils.newScaledDecodeOptions(fullWidth, fullHeight, preview[0], preview[1], PLENTY);
+            Decode decode = new Decode(fullWidth, fullHeight, options);
+            String size = fullWidth + "x" + fullHeight;
+
+            // The longer side is exact, and the other may be off by rounding
+            if (preview[0] >= preview[1]) {
+                assertEquals(size + " width", preview[0], decode.mWidth);
+                assertTrue(size + " height " + decode.mHeight, Math.abs(preview[1] - decode.mHeight) <= 1);
+            } else {
+                assertEquals(size + " height", preview[1], decode.mHeight);
+                assertTrue(size + " width " + decode.mWidth, Math.abs(preview[0] - decode.mWidth) <= 1);
+            }
+
+            // The sample size stops before either dimension drops below the preview, so the
+            // decoder's sampled image is under twice the preview size in at least one dimension
+            assertTrue(size + " sampled", decode.mSampledWidth < 2 * preview[0] || decode.mSampledHeight < 2 * preview[1]);
+            assertTrue(size + " undersampled", decode.mSampledWidth >= preview[0] && decode.mSampledHeight >= preview[1]);
+        }
+    }
+
+    @Test
+    public void smallImagesAreNotScaled() {
+        BitmapFactory.Options options = ThreePartImageUtils.newScaledDecodeOptions(400, 300, 400, 300, PLENTY);
+        assertEquals(1, options.inSampleSize);
+        assertEquals(0, options.inDensity);
+    }
+
+    @Test
+    public void lowMemoryDecodesAt16Bits() {
+        long previewBytes = 512 * 384 * 4;
+        BitmapFactory.Options options = ThreePartImageUtils.newScaledDecodeOptions(8000, 6000, 512, 384, previewBytes);
+        assertEquals(Bitmap.Config.RGB_565, options.inPreferredConfig);
+        options = ThreePartImageUtils.newScaledDecodeOptions(8000, 6000, 512, 384, previewBytes * 2);
+        assertEquals(Bitmap.Config.ARGB_8888, options.inPreferredConfig);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Decode computes the Bitmap BitmapFactory returns for the given options: dimensions divided
+     * by the sample size and rounded up, then scaled by the target density over the density.
+     */
+    private static class Decode {
+        final int mSampledWidth;
+        final int mSampledHeight;
+        final int mWidth;
+        final int mHeight;
+        final Bitmap.Config mConfig;
+
+        Decode(int fullWidth, int fullHeight, BitmapFactory.Options options) {
+            int sampleSize = Math.max(1, options.inSampleSize);
+            mSampledWidth = (fullWidth + sampleSize - 1) / sampleSize;
+            mSampledHeight = (fullHeight + sampleSize - 1) / sampleSize;
+            if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0) {
+                float scale = options.inTargetDensity / (float) options.inDensity;
+                mWidth = (int) (mSampledWidth * scale + 0.5f);
+                mHeight = (int) (mSampledHeight * scale + 0.5f);
+            } else {
+                mWidth = mSampledWidth;
+                mHeight = mSampledHeight;
+            }
+            mConfig = options.inPreferredConfig;
+        }
+
+        long getBytes() {
+            return (long) mWidth * mHeight * (mConfig == Bitmap.Config.RGB_565 ? 2 : 4);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.layer.atlas.provider;
+
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks IndexedParticipantProvider against a linear scan of a synthetic directory, and compares
+ * their search times on 100,000 Participants.
+ */
+public class IndexedParticipantProviderTest {
+    private static final String[] FIRST_NAMES = {"Ada", "\u00c9mile", "Zo\u00eb", "Jos\u00e9", "Grace", "Linus", "\u00c1ngel",
+            "Bj\u00f6rn", "Chlo\u00e9", "Dmitri", "Esther", "Fran\u00e7ois", "G\u00e9rard", "Hannah", "Ingrid", "J\u00fcrgen", "Kenji",
+            "L\u00e9a", "Mateo", "No\u00e9mie", "Oskar", "Priya", "Quentin", "Ren\u00e9e", "S\u00f8ren", "Th\u00e9r\u00e8se", "Uma", "Val\u00e9rie"};
+    private static final String[] LAST_NAMES = {"Lovelace", "Hopper", "Torvalds", "N\u00fa\u00f1ez", "M\u00fcller", "O'Brien",
+            "Garc\u00eda", "Kowalski", "Nakamura", "Andersson", "Dubois", "Sch\u00e4fer", "Rossi", "Ivanova", "Fern\u00e1ndez",
+            "Van der Berg", "Smith-Jones", "Bj\u00f6rklund", "Lef\u00e8vre", "Okafor"};
+    private static final String[] FILTERS = {"a", "ad", "ada", "ada lo", "ada lov", "emile", "EMI", "zoe",
+            "jose nunez", "ove", "ller", "grace h", "van der", "smith jones", "o brien", "bjor", "x", "", "ef",
+            "francois lef", "renee 12", "ing"};
+    private static final int LIMIT = 10;
+
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mRandom = new Random(15);
+    }
+
+    @Test
+    public void searchMatchesLinearScan() {
+        Directory directory = generate(5000);
+        IndexedParticipantProvider provider = new IndexedParticipantProvider(directory);
+        provider.rebuild();
+        assertEquals(5000, provider.size());
+
+        for (String filter : FILTERS) {
+            assertEquals("Filter '" + filter + "'", LinearScan.search(directory, filter, LIMIT), provider.search(filter, LIMIT));
+            assertEquals("Filter '" + filter + "' unlimited", LinearScan.search(directory, filter, Integer.MAX_VALUE),
+                    provider.search(filter, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void typingMatchesLinearScan() {
+        Directory directory = generate(5000);
+        IndexedParticipantProvider provider = new IndexedParticipantProvider(directory);
+        provider.rebuild();
+
+        // Each prefix narrows the previous filter, whether or not its matches exceeded the limit
+        for (int limit : new int[]{LIMIT, Integer.MAX_VALUE}) {
+            for (String filter : new String[]{"ada lovelace", "francois lefevre 3", "van der berg"}) {
+                for (int length = 1; length <= filter.length(); length++) {
+                    String typed = filter.substring(0, length);
+                    assertEquals("Filter '" + typed + "'", LinearScan.search(directory, typed, limit), provider.search(typed, limit));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void updatesMatchLinearScan() {
+        Directory directory = generate(2000);
+        IndexedParticipantProvider provider = new IndexedParticipantProvider(directory);
+        provider.rebuild();
+        provider.search("ada", LIMIT);
+
+        for (int i = 0; i < 500; i++) {
+            String id = "user" + mRandom.nextInt(2500);
+            if (mRandom.nextBoolean()) {
+                TestParticipant participant = new TestParticipant(id, randomName());
+                directory.mParticipants.put(id, participant);
+                provider.put(participant);
+            } else {
+                directory.mParticipants.remove(id);
+                provider.remove(id);
+            }
+            String filter = FILTERS[mRandom.nextInt(FILTERS.length)];
+            assertEquals("Filter '" + filter + "'", LinearScan.search(directory, filter, LIMIT), provider.search(filter, LIMIT));
+        }
+    }
+
+    @Test
+    public void limitedSearchKeepsAtMostLimitMatches() throws Exception {
+        Directory directory = generate(20000);
+        IndexedParticipantProvider provider = new IndexedParticipantProvider(directory);
+        provider.rebuild();
+
+        assertEquals(LIMIT, provider.search("a", LIMIT).size());
+        Collection<?> kept = getLastMatches(provider);
+        // Too many matches to keep: the posting set candidates are kept instead, without copying
+        assertTrue(kept.size() > LIMIT && !(kept instanceof List));
+
+        provider.search("zoe kowalski 12", LIMIT);
+        kept = getLastMatches(provider);
+        assertTrue(kept instanceof List && kept.size() <= LIMIT);
+    }
+
+    /**
+     * Benchmark: top-K searches on a 100,000 Participant directory, indexed and by linear scan.
+     */
+    @Test
+    public void benchmark100k() {
+        Directory directory = generate(100000);
+        IndexedParticipantProvider provider = new IndexedParticipantProvider(directory);
+        long start = System.nanoTime();
+        provider.rebuild();
+        long rebuildNanos = System.nanoTime() - start;
+
+        // Warm up both paths
+        for (String filter : FILTERS) {
+            provider.search(filter, LIMIT);
+            LinearScan.search(directory, filter, LIMIT);
+        }
+
+        int rounds = 5;
+        long indexedNanos = 0;
+        long scanNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (String filter : FILTERS) {
+                start = System.nanoTime();
+                List<Participant> indexed = provider.search(filter, LIMIT);
+                indexedNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                List<Participant> scanned = LinearScan.search(directory, filter, LIMIT);
+                scanNanos += System.nanoTime() - start;
+                assertEquals("Filter '" + filter + "'", scanned, indexed);
+            }
+        }
+        int searches = rounds * FILTERS.length;
+        System.out.println(String.format("IndexedParticipantProvider: 100000 participants, rebuild %d ms, " +
+                        "%d us/search indexed, %d us/search linear scan",
+                rebuildNanos / 1000000, indexedNanos / searches / 1000, scanNanos / searches / 1000));
+    }
+
+    private Directory generate(int count) {
+        Directory directory = new Directory();
+        for (int i = 0; i < count; i++) {
+            String id = "user" + i;
+            directory.mParticipants.put(id, new TestParticipant(id, randomName()));
+        }
+        return directory;
+    }
+
+    private String randomName() {
+        String name = FIRST_NAMES[mRandom.nextInt(FIRST_NAMES.length)] + " " + LAST_NAMES[mRandom.nextInt(LAST_NAMES.length)];
+        return mRandom.nextInt(4) == 0 ? name + " " + mRandom.nextInt(100) : name;
+    }
+
+    private static Collection<?> getLastMatches(IndexedParticipantProvider provider) throws Exception {
+        Field field = IndexedParticipantProvider.class.getDeclaredField("mLastMatches");
+        field.setAccessible(true);
+        return (Collection<?>) field.get(provider);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Directory implements ParticipantProvider {
+        final Map<String, Participant> mParticipants = new HashMap<String, Participant>();
+
+        @Override
+        public Map<String, Participant> getMatchingParticipants(String filter, Map<String, Participant> result) {
+            if (result == null) result = new HashMap<String, Participant>();
+            result.putAll(mParticipants);
+            return result;
+        }
+
+        @Override
+        public Participant getParticipant(String userId) {
+            return mParticipants.get(userId);
+        }
+    }
+
+    private static class TestParticipant implements Participant {
+        private final String mId;
+        private final String mName;
+
+        TestParticipant(String id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        @Override
+        public String getId() {
+            return mId;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public Uri getAvatarUrl() {
+            return null;
+        }
+
+        @Override
+        public int compareTo(Participant another) {
+            int result = mName.compareTo(another.getName());
+            return result != 0 ? result : mId.compareTo(another.getId());
+        }
+
+        @Override
+        public String toString() {
+            return mId + ":" + mName;
+        }
+    }
+
+    /**
+     * LinearScan scores every Participant with the documented matching rules and sorts them.
+     */
+    private static class LinearScan {
+        static List<Participant> search(Directory directory, String filter, int limit) {
+            final String[] filterTokens = IndexedParticipantProvider.tokenize(filter);
+            final Map<Participant, Integer> scores = new HashMap<Participant, Integer>();
+            for (Participant participant : directory.mParticipants.values()) {
+                int score = score(IndexedParticipantProvider.tokenize(participant.getName()), filterTokens);
+                if (score > 0) scores.put(participant, score);
+            }
+            List<Participant> results = new ArrayList<Participant>(scores.keySet());
+            Collections.sort(results, new Comparator<Participant>() {
+                @Override
+                public int compare(Participant lhs, Participant rhs) {
+                    int result = scores.get(rhs).compareTo(scores.get(lhs));
+                    return result != 0 ? result : lhs.compareTo(rhs);
+                }
+            });
+            return results.size() > limit ? results.subList(0, limit) : results;
+        }
+
+        static int score(String[] nameTokens, String[] filterTokens) {
+            if (filterTokens.length == 0) return 1;
+            int total = 0;
+            for (String filterToken : filterTokens) {
+                int best = 0;
+                for (int i = 0; i < nameTokens.length; i++) {
+                    String nameToken = nameTokens[i];
+                    if (nameToken.equals(filterToken)) {
+                        best = Math.max(best, 4);
+                    } else if (nameToken.startsWith(filterToken)) {
+                        best = Math.max(best, i == 0 ? 3 : 2);
+                    } else if (filterToken.length() >= 3 && nameToken.contains(filterToken)) {
+                        best = Math.max(best, 1);
+                    }
+                }
+                if (best == 0) return 0;
+                total += best;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.layer.atlas.util;
+
+import android.net.Uri;
+
+import com.layer.atlas.BuildConfig;
+import com.layer.atlas.messagetypes.AtlasCellFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks HeapSize estimates against a reflective walk of the built-in ParsedContent classes and of
+ * real parsed Uris, measured with the Android layout HeapSize assumes.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class HeapSizeTest {
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog";
+    private static final String URI = "layer:///messages/0123456789abcdef/parts/1";
+
+    @Test
+    public void primitives() {
+        assertEquals(16, HeapSize.ofObject(0, 1));
+        assertEquals(16, HeapSize.ofObject(2, 0));
+        assertEquals(16, HeapSize.ofCharArray(0));
+        assertEquals(16, HeapSize.ofCharArray(2));
+        assertEquals(24, HeapSize.ofCharArray(3));
+        assertEquals(0, HeapSize.ofString(null));
+        assertEquals(0, HeapSize.ofUri(null));
+    }
+
+    @Test
+    public void stringMatchesLayout() {
+        assertEquals(AndroidLayout.ofString(""), HeapSize.ofString(""));
+        assertEquals(AndroidLayout.ofString(TEXT), HeapSize.ofString(TEXT));
+    }
+
+    /**
+     * A Uri parsed up to its path segments retains its string, its path part, and its segments,
+     * which are substrings sharing the string's characters.  The characters must only be counted
+     * once.
+     */
+    @Test
+    public void uriMatchesLayout() throws Exception {
+        for (String string : new String[]{URI, URI + URI.substring(URI.indexOf("/messages")),
+                "layer:///messages/0123456789abcdef", "content://media/external/images/media/42?limit=1#top",
+                "layer:///", "mailto:someone@example.com"}) {
+            Uri uri = parse(string);
+            assertEquals(string, new AndroidLayout().measure(uri), HeapSize.ofUri(uri));
+        }
+    }
+
+    /**
+     * A Uri that was not parsed yet retains less than its estimate.
+     */
+    @Test
+    public void unparsedUriIsWithinEstimate() throws Exception {
+        Uri uri = Uri.parse(URI);
+        int measured = new AndroidLayout().measure(uri);
+        assertTrue("Measured " + measured, measured < HeapSize.ofUri(uri));
+    }
+
+    @Test
+    public void textInfoMatchesLayout() throws Exception {
+        Object info = construct("com.layer.atlas.messagetypes.text.TextCellFactory$TextInfo",
+                new Class[]{String.class, String.class}, TEXT, "Alice: ");
+        assertMatches(info);
+    }
+
+    @Test
+    public void genericContentMatchesLayout() throws Exception {
+        Object content = construct("com.layer.atlas.messagetypes.generic.GenericCellFactory$ParsedContent",
+                new Class[]{String.class}, TEXT);
+        assertMatches(content);
+    }
+
+    @Test
+    public void locationMatchesLayout() throws Exception {
+        Object location = construct("com.layer.atlas.messagetypes.location.LocationCellFactory$Location",
+                new Class[0]);
+        setField(location, "mLabel", TEXT);
+        assertMatches(location);
+    }
+
+    @Test
+    public void uriHoldersMatchLayout() throws Exception {
+        Object partId = construct("com.layer.atlas.messagetypes.singlepartimage.SinglePartImageCellFactory$PartId",
+                new Class[]{Uri.class}, parse(URI));
+        assertMatches(partId);
+
+        Object info = construct("com.layer.atlas.messagetypes.threepartimage.ThreePartImageCellFactory$Info",
+                new Class[0]);
+        setField(info, "fullPartId", parse("layer:///messages/0123456789abcdef/parts/0"));
+        setField(info, "previewPartId", parse("layer:///messages/0123456789abcdef/parts/1"));
+        assertMatches(info);
+    }
+
+    /**
+     * Returns a Uri parsed as MessagePart ids are when their images are loaded.
+     */
+    private static Uri parse(String string) {
+        Uri uri = Uri.parse(string);
+        uri.getPathSegments();
+        uri.getLastPathSegment();
+        return uri;
+    }
+
+    private static void assertMatches(Object content) throws Exception {
+        int measured = new AndroidLayout().measure(content);
+        int estimated = ((AtlasCellFactory.ParsedContent) content).sizeOf();
+        assertTrue("Measured " + measured, measured > 0);
+        assertEquals(content.getClass().getSimpleName(), measured, estimated);
+    }
+
+    private static Object construct(String className, Class[] types, Object... args) throws Exception {
+        Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(types);
+        constructor.setAccessible(true);
+        return constructor.newInstance(args);
+    }
+
+    private static void setField(Object object, String name, Object value) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * AndroidLayout measures an object graph by reflection as the Android runtime lays it out,
+     * independently of the JVM running the test.  Strings are measured as a shallow String plus a
+     * separate char array, as HeapSize documents; substrings of a Uri's string share its array, as
+     * substring() does on that runtime.  Objects held by static fields, such as Uri's "not cached"
+     * markers, are shared rather than retained, so are not counted.
+     */
+    private static class AndroidLayout {
+        private final Map<Object, Boolean> mVisited = new IdentityHashMap<Object, Boolean>();
+        private final List<String> mUriStrings = new ArrayList<String>();
+
+        static int ofObject(int references, int primitiveBytes) {
+            return align(8 + references * 4 + primitiveBytes);
+        }
+
+        static int ofString(String string) {
+            return ofObject(1, 3 * 4) + align(12 + string.length() * 2);
+        }
+
+        static int align(int bytes) {
+            return (bytes + 7) / 8 * 8;
+        }
+
+        int measure(Object object) throws IllegalAccessException {
+            if (object == null) return 0;
+            if (object instanceof String) return measure((String) object);
+            markShared(object.getClass());
+            if (mVisited.put(object, Boolean.TRUE) != null) return 0;
+            if (object instanceof Uri) {
+                String string = object.toString();
+                mUriStrings.add(string);
+                // The Uri's own string is its uriString field
+                mVisited.put(string, Boolean.TRUE);
+                int size = ofString(string) + measureFields(object);
+                mUriStrings.remove(string);
+                return size;
+            }
+            if (object.getClass().isArray()) {
+                Class<?> componentType = object.getClass().getComponentType();
+                if (componentType.isPrimitive()) throw new IllegalArgumentException("Unsupported: " + object.getClass());
+                int length = Array.getLength(object);
+                int size = align(12 + length * 4);
+                for (int i = 0; i < length; i++) size += measure(Array.get(object, i));
+                return size;
+            }
+            return measureFields(object);
+        }
+
+        /**
+         * Marks the objects held by static fields of `type` and its superclasses as visited, so
+         * they are not counted when reached through instance fields.
+         */
+        private void markShared(Class<?> type) throws IllegalAccessException {
+            for (; type != null && type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) continue;
+                    field.setAccessible(true);
+                    Object shared = field.get(null);
+                    if (shared != null) mVisited.put(shared, Boolean.TRUE);
+                }
+            }
+        }
+
+        private int measureFields(Object object) throws IllegalAccessException {
+            int references = 0;
+            int primitiveBytes = 0;
+            int retained = 0;
+            for (Class<?> type = object.getClass(); type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) continue;
+                    Class<?> fieldType = field.getType();
+                    if (!fieldType.isPrimitive()) {
+                        references++;
+                        field.setAccessible(true);
+                        retained += measure(field.get(object));
+                    } else if (fieldType == long.class || fieldType == double.class) {
+                        primitiveBytes += 8;
+                    } else if (fieldType == int.class || fieldType == float.class) {
+                        primitiveBytes += 4;
+                    } else if (fieldType == char.class || fieldType == short.class) {
+                        primitiveBytes += 2;
+                    } else {
+                        primitiveBytes += 1;
+                    }
+                }
+            }
+            return ofObject(references, primitiveBytes) + retained;
+        }
+
+        /**
+         * Measures a String, which only shares its characters if it is a substring of a Uri being
+         * measured.
+         */
+        private int measure(String string) {
+            if (mVisited.put(string, Boolean.TRUE) != null) return 0;
+            for (String uriString : mUriStrings) {
+                if (uriString.contains(string)) return ofObject(1, 3 * 4);
+            }
+            return ofString(string);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.layer.atlas.util.views;
+
+import android.content.Context;
+import android.view.View;
+
+import com.layer.atlas.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks FlowLayout's incremental measure against a freshly measured FlowLayout, and benchmarks
+ * laying out 200 chips.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class FlowLayoutTest {
+    private static final int WIDTH = 1080;
+    private static final int CHIPS = 200;
+
+    private Context mContext;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mRandom = new Random(18);
+    }
+
+    @Test
+    public void incrementalChangesMatchFreshLayout() {
+        FlowLayout layout = new FlowLayout(mContext);
+        for (int i = 0; i < CHIPS; i++) layout.addView(randomChip());
+        layout(layout, WIDTH);
+        assertSameLayout(layout, WIDTH);
+
+        for (int step = 0; step < 200; step++) {
+            if (step == 100) layout.setPadding(12, 8, 16, 24);
+            int childCount = layout.getChildCount();
+            switch (mRandom.nextInt(4)) {
+                case 0:
+                    layout.addView(randomChip(), mRandom.nextInt(childCount + 1));
+                    break;
+                case 1:
+                    if (childCount > 1) layout.removeViewAt(mRandom.nextInt(childCount));
+                    break;
+                case 2: {
+                    Chip chip = (Chip) layout.getChildAt(mRandom.nextInt(childCount));
+                    chip.setNaturalSize(40 + mRandom.nextInt(300), 60 + mRandom.nextInt(40));
+                    break;
+                }
+                default: {
+                    View chip = layout.getChildAt(mRandom.nextInt(childCount));
+                    chip.setVisibility(chip.getVisibility() == View.GONE ? View.VISIBLE : View.GONE);
+                    break;
+                }
+            }
+            layout(layout, WIDTH);
+            assertSameLayout(layout, WIDTH);
+        }
+
+        // Width changes re-measure everything
+        layout(layout, WIDTH / 2);
+        assertSameLayout(layout, WIDTH / 2);
+    }
+
+    /**
+     * A `MATCH_PARENT` height child is re-measured to its line's height in onLayout(), so must be
+     * re-measured in the next onMeasure() even if it did not request layout.
+     */
+    @Test
+    public void matchParentHeightChildFollowsLineHeight() {
+        FlowLayout layout = new FlowLayout(mContext);
+        Chip matchParent = new Chip(mContext, 100, 20);
+        matchParent.setLayoutParams(new FlowLayout.LayoutParams(FlowLayout.LayoutParams.WRAP_CONTENT, FlowLayout.LayoutParams.MATCH_PARENT));
+        Chip tall = new Chip(mContext, 100, 100);
+        layout.addView(matchParent);
+        layout.addView(tall);
+        layout(layout, WIDTH);
+        assertEquals(100, matchParent.getHeight());
+
+        tall.setNaturalSize(100, 40);
+        layout(layout, WIDTH);
+        assertEquals(40, layout.getMeasuredHeight());
+        assertEquals(40, matchParent.getHeight());
+    }
+
+    /**
+     * Padding offsets lines by the top padding and adds both vertical paddings to the measured
+     * height, including when only the bottom padding changes between measures.
+     */
+    @Test
+    public void paddingIsMeasured() {
+        FlowLayout layout = new FlowLayout(mContext);
+        for (int i = 0; i < 20; i++) layout.addView(randomChip());
+        layout.setPadding(10, 20, 30, 40);
+        layout(layout, WIDTH);
+        assertSameLayout(layout, WIDTH);
+
+        FlowLayout unpadded = new FlowLayout(mContext);
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            Chip chip = (Chip) layout.getChildAt(i);
+            unpadded.addView(new Chip(mContext, chip.mNaturalWidth, chip.mNaturalHeight));
+        }
+        layout(unpadded, WIDTH - 10 - 30);
+        assertEquals(unpadded.getMeasuredHeight() + 20 + 40, layout.getMeasuredHeight());
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            assertEquals("Left of " + i, unpadded.getChildAt(i).getLeft() + 10, layout.getChildAt(i).getLeft());
+            assertEquals("Top of " + i, unpadded.getChildAt(i).getTop() + 20, layout.getChildAt(i).getTop());
+        }
+
+        layout.setPadding(10, 20, 30, 5);
+        layout(layout, WIDTH);
+        assertEquals(unpadded.getMeasuredHeight() + 20 + 5, layout.getMeasuredHeight());
+        assertSameLayout(layout, WIDTH);
+    }
+
+    /**
+     * Benchmark: measures and lays out 200 chips, then appends, edits, and removes single chips.
+     */
+    @Test
+    public void benchmark200Chips() {
+        FlowLayout layout = new FlowLayout(mContext);
+        for (int i = 0; i < CHIPS; i++) layout.addView(randomChip());
+        for (int i = 0; i < 20; i++) {
+            // Warm up, alternating widths so every pass measures all chips
+            layout(layout, i % 2 == 0 ? WIDTH : WIDTH - 1);
+        }
+
+        int rounds = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) layout(layout, i % 2 == 0 ? WIDTH : WIDTH - 1);
+        long fullNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            layout.addView(randomChip());
+            layout(layout, WIDTH);
+        }
+        long appendNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            ((Chip) layout.getChildAt(layout.getChildCount() - 1)).setNaturalSize(40 + mRandom.nextInt(300), 80);
+            layout(layout, WIDTH);
+        }
+        long editNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            layout.removeViewAt(layout.getChildCount() - 1);
+            layout(layout, WIDTH);
+        }
+        long removeNanos = System.nanoTime() - start;
+        assertSameLayout(layout, WIDTH);
+
+        System.out.println(String.format("FlowLayout: %d chips, %d us full layout, %d us after append, " +
+                        "%d us after editing last chip, %d us after removing last chip",
+                CHIPS, fullNanos / rounds / 1000, appendNanos / rounds / 1000, editNanos / rounds / 1000,
+                removeNanos / rounds / 1000));
+    }
+
+    private Chip randomChip() {
+        return new Chip(mContext, 40 + mRandom.nextInt(300), 60 + mRandom.nextInt(40));
+    }
+
+    private static void layout(FlowLayout layout, int width) {
+        layout.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+    }
+
+    /**
+     * Asserts that `layout`, last laid out at `width`, positions its children as a new FlowLayout
+     * with the same padding and chips does.
+     */
+    private void assertSameLayout(FlowLayout layout, int width) {
+        FlowLayout fresh = new FlowLayout(mContext);
+        fresh.setPadding(layout.getPaddingLeft(), layout.getPaddingTop(), layout.getPaddingRight(), layout.getPaddingBottom());
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            Chip chip = (Chip) layout.getChildAt(i);
+            Chip copy = new Chip(mContext, chip.mNaturalWidth, chip.mNaturalHeight);
+            copy.setVisibility(chip.getVisibility());
+            fresh.addView(copy);
+        }
+        layout(fresh, width);
+
+        assertEquals("Height", fresh.getMeasuredHeight(), layout.getMeasuredHeight());
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            View actual = layout.getChildAt(i);
+            if (actual.getVisibility() == View.GONE) continue;
+            View expected = fresh.getChildAt(i);
+            assertEquals("Left of " + i, expected.getLeft(), actual.getLeft());
+            assertEquals("Top of " + i, expected.getTop(), actual.getTop());
+            assertEquals("Width of " + i, expected.getWidth(), actual.getWidth());
+            assertEquals("Height of " + i, expected.getHeight(), actual.getHeight());
+        }
+    }
+
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * Chip measures to a fixed natural size within its MeasureSpecs, and wraps its content by
+     * default.
+     */
+    private static class Chip extends View {
+        int mNaturalWidth;
+        int mNaturalHeight;
+
+        Chip(Context context, int naturalWidth, int naturalHeight) {
+            super(context);
+            mNaturalWidth = naturalWidth;
+            mNaturalHeight = naturalHeight;
+            setLayoutParams(new FlowLayout.LayoutParams(FlowLayout.LayoutParams.WRAP_CONTENT, FlowLayout.LayoutParams.WRAP_CONTENT));
+        }
+
+        void setNaturalSize(int naturalWidth, int naturalHeight) {
+            mNaturalWidth = naturalWidth;
+            mNaturalHeight = naturalHeight;
+            requestLayout();
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            setMeasuredDimension(resolveSize(mNaturalWidth, widthMeasureSpec), resolveSize(mNaturalHeight, heightMeasureSpec));
+        }
+    }
+}